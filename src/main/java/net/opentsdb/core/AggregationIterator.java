@@ -123,22 +123,15 @@ public class AggregationIterator implements SeekableView, DataPoint,
 			LoggerFactory.getLogger(AggregationIterator.class);
 
 	/**
-	 * Extra bit we set on the timestamp of floating point values.
+	 * Aggregator to use to aggregate data points from different Spans.
 	 */
-	private static final long FLAG_FLOAT = 0x8000000000000000L;
+	private final Aggregator aggregator;
 
 	/**
-	 * Mask to use in order to get rid of the flag above.
-	 * This value also conveniently represents the largest timestamp we can
-	 * possibly store, provided that the most significant bit is reserved by
-	 * FLAG_FLOAT.
+	 * Loop computing the aggregation without going through {@link #aggregator},
+	 * or {@code null} if it has none.
 	 */
-	protected static final long TIME_MASK = 0x7FFFFFFFFFFFFFFFL;
-
-	/**
-	 * Aggregator to use to aggregate data points from different Spans.
-	 */
-	private final Aggregator aggregator;
+	private final Aggregators.Kernel kernel;
 
 	/**
 	 * Interpolation method to use when aggregating time series
@@ -150,6 +143,12 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	 */
 	private final boolean rate;
 
+	/**
+	 * If true, integer values are converted to doubles before being
+	 * aggregated, as they would be by a {@link Downsampler}.
+	 */
+	private final boolean to_double;
+
 	/**
 	 * Where we are in each {@link Span} in the group.
 	 * The iterators in this array always points to 2 values ahead of the
@@ -212,6 +211,12 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	 */
 	private int pos;
 
+	/**
+	 * Number of entries of {@link #timestamps} with the {@code FLAG_FLOAT},
+	 * so that {@link #isInteger} doesn't have to look at all of them.
+	 */
+	private int num_floats;
+
 	/**
 	 * Creates a new iterator for a {@link SpanGroup}.
 	 *
@@ -243,12 +248,43 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	                                         final boolean rate,
 	                                         final RateOptions rate_options,
 	                                         boolean adjust_drops) {
+		return create(spans, start_time, end_time, aggregator, method, downsampler,
+				sample_interval_ms, rate, rate_options, adjust_drops, false);
+	}
+
+	/**
+	 * Creates a new iterator for a {@link SpanGroup}.
+	 *
+	 * @param to_double If {@code true}, integer values are aggregated as
+	 *                  doubles, like downsampled ones.  Used when the spans
+	 *                  aren't downsampled but would have been.
+	 * @see #create(List, long, long, Aggregator, Interpolation, Aggregator,
+	 * long, boolean, RateOptions, boolean)
+	 */
+	static AggregationIterator create(final List<Span> spans,
+	                                  final long start_time,
+	                                  final long end_time,
+	                                  final Aggregator aggregator,
+	                                  final Interpolation method,
+	                                  final Aggregator downsampler,
+	                                  final long sample_interval_ms,
+	                                  final boolean rate,
+	                                  final RateOptions rate_options,
+	                                  final boolean adjust_drops,
+	                                  final boolean to_double) {
 		final int size = spans.size();
 		final SeekableView[] iterators = new SeekableView[size];
 		for (int i = 0; i < size; i++) {
 			SeekableView it;
 			if (downsampler == null) {
 				it = spans.get(i).spanIterator();
+				if (rate) {
+					it = new RateSpan(it, rate_options);
+				}
+			} else if (rate) {
+				// The downsampler computes the rate itself.
+				it = spans.get(i).downsampler(sample_interval_ms, downsampler,
+						adjust_drops && rate_options.isCounter(), rate_options);
 			} else {
 				if (adjust_drops) {
 					it = spans.get(i).downsampler(sample_interval_ms, downsampler, rate_options.isCounter());
@@ -256,13 +292,10 @@ public class AggregationIterator implements SeekableView, DataPoint,
 					it = spans.get(i).downsampler(sample_interval_ms, downsampler);
 				}
 			}
-			if (rate) {
-				it = new RateSpan(it, rate_options);
-			}
 			iterators[i] = it;
 		}
 		return new AggregationIterator(iterators, start_time, end_time, aggregator,
-				method, rate);
+				method, rate, to_double);
 	}
 
 	/**
@@ -285,13 +318,33 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	                           final Aggregator aggregator,
 	                           final Interpolation method,
 	                           final boolean rate) {
+		this(iterators, start_time, end_time, aggregator, method, rate, false);
+	}
+
+	/**
+	 * Creates an aggregation iterator for a group of data point iterators.
+	 *
+	 * @param to_double If {@code true}, integer values are aggregated as
+	 *                  doubles.
+	 * @see #AggregationIterator(SeekableView[], long, long, Aggregator,
+	 * Interpolation, boolean)
+	 */
+	AggregationIterator(final SeekableView[] iterators,
+	                    final long start_time,
+	                    final long end_time,
+	                    final Aggregator aggregator,
+	                    final Interpolation method,
+	                    final boolean rate,
+	                    final boolean to_double) {
 		LOG.debug("Aggregating {} iterators", iterators.length);
 		this.iterators = iterators;
 		this.start_time = start_time;
 		this.end_time = end_time;
 		this.aggregator = aggregator;
+		this.kernel = Aggregators.kernelOf(aggregator);
 		this.method = method;
 		this.rate = rate;
+		this.to_double = to_double;
 		final int size = iterators.length;
 		timestamps = new long[size * 2];
 		values = new long[size * 2];
@@ -352,7 +405,7 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	 */
 	private void endReached(final int i) {
 		//LOG.debug("No more DP for #" + i);
-		timestamps[iterators.length + i] = TIME_MASK;
+		setTimestamp(iterators.length + i, TIME_MASK);
 		if (iterators[i] instanceof Downsampler) {
 			downsampleTimeInNanos += ((Downsampler) iterators[i]).totalTime();
 		}
@@ -366,17 +419,31 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	 * @param dp The last data point returned by that iterator.
 	 */
 	private void putDataPoint(final int i, final DataPoint dp) {
-		timestamps[i] = dp.timestamp();
-		if (dp.isInteger()) {
+		if (dp.isInteger() && !to_double) {
 			//LOG.debug("Putting #" + i + " (long) " + dp.longValue()
 			//          + " @ time " + dp.timestamp());
+			setTimestamp(i, dp.timestamp());
 			values[i] = dp.longValue();
 		} else {
 			//LOG.debug("Putting #" + i + " (double) " + dp.doubleValue()
 			//          + " @ time " + dp.timestamp());
-			values[i] = Double.doubleToRawLongBits(dp.doubleValue());
-			timestamps[i] |= FLAG_FLOAT;
+			setTimestamp(i, dp.timestamp() | FLAG_FLOAT);
+			values[i] = Double.doubleToRawLongBits(dp.toDouble());
+		}
+	}
+
+	/**
+	 * Sets an entry of {@link #timestamps}, keeping {@link #num_floats} up to
+	 * date.  All writes to {@link #timestamps} must go through here.
+	 */
+	private void setTimestamp(final int i, final long timestamp) {
+		if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
+			num_floats--;
+		}
+		if ((timestamp & FLAG_FLOAT) == FLAG_FLOAT) {
+			num_floats++;
 		}
+		timestamps[i] = timestamp;
 	}
 
 	// ------------------ //
@@ -419,7 +486,7 @@ public class AggregationIterator implements SeekableView, DataPoint,
 			for (int i = current; i < size; i++) {
 				if (timestamps[i + size] == TIME_MASK) {
 					//LOG.debug("Expiring last DP for #" + current);
-					timestamps[i] = 0;
+					setTimestamp(i, 0);
 				}
 			}
 
@@ -475,7 +542,7 @@ public class AggregationIterator implements SeekableView, DataPoint,
 	 */
 	private void moveToNext(final int i) {
 		final int next = iterators.length + i;
-		timestamps[i] = timestamps[next];
+		setTimestamp(i, timestamps[next]);
 		values[i] = values[next];
 		//LOG.debug("Moving #" + next + " -> #" + i
 		//          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -504,6 +571,23 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		}
 	}
 
+	public int nextBatch(final long[] out_timestamps, final long[] out_values) {
+		final int max = Math.min(out_timestamps.length, out_values.length);
+		int n = 0;
+		while (n < max && hasNext()) {
+			next();
+			if (isInteger()) {
+				out_timestamps[n] = timestamp();
+				out_values[n] = longValue();
+			} else {
+				out_timestamps[n] = timestamp() | FLAG_FLOAT;
+				out_values[n] = Double.doubleToRawLongBits(doubleValue());
+			}
+			n++;
+		}
+		return n;
+	}
+
 	// ------------------- //
 	// DataPoint interface //
 	// ------------------- //
@@ -519,12 +603,7 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		}
 		// If at least one of the values we're going to aggregate or interpolate
 		// with is a float, we have to convert everything to a float.
-		for (int i = timestamps.length - 1; i >= 0; i--) {
-			if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
-				return false;
-			}
-		}
-		return true;
+		return num_floats == 0;
 	}
 
 	long aggregationTimeInNanos = 0;
@@ -536,10 +615,11 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		long aggregationTimeStart = System.nanoTime();
 		try {
 			if (isInteger()) {
+				if (kernel != null) {
+					return runLongKernel();
+				}
 				pos = -1;
-				long l = aggregator.runLong(this);
-				aggregationTimeInNanos += (System.nanoTime() - aggregationTimeInNanos);
-				return l;
+				return aggregator.runLong(this);
 			}
 			throw new ClassCastException("current value is a double: " + this);
 		} finally {
@@ -551,8 +631,13 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		long aggregationTimeStart = System.nanoTime();
 		try {
 			if (!isInteger()) {
-				pos = -1;
-				final double value = aggregator.runDouble(this);
+				final double value;
+				if (kernel != null) {
+					value = runDoubleKernel();
+				} else {
+					pos = -1;
+					value = aggregator.runDouble(this);
+				}
 				if (value != value || Double.isInfinite(value)) {
 					throw new IllegalStateException("Got NaN or Infinity: "
 							+ value + " in this " + this);
@@ -569,6 +654,152 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		return isInteger() ? longValue() : doubleValue();
 	}
 
+	/**
+	 * Returns the index in {@link #iterators} of the first value to aggregate.
+	 */
+	private int firstValue() {
+		final int size = iterators.length;
+		for (int i = 0; i < size; i++) {
+			if (timestamps[i] != 0) {
+				return i;
+			}
+		}
+		throw new NoSuchElementException("no more values in " + this);
+	}
+
+	/**
+	 * Computes {@link #kernel} on integer values.  Same result as running the
+	 * aggregator, without an interface call and a timer per value.
+	 */
+	private long runLongKernel() {
+		final int size = iterators.length;
+		final int first = firstValue();
+		switch (kernel) {
+			case SUM: {
+				long sum = longValueAt(first);
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						sum += longValueAt(i);
+					}
+				}
+				return sum;
+			}
+			case MIN: {
+				long min = longValueAt(first);
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						final long val = longValueAt(i);
+						if (val < min) {
+							min = val;
+						}
+					}
+				}
+				return min;
+			}
+			case MAX: {
+				long max = longValueAt(first);
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						final long val = longValueAt(i);
+						if (val > max) {
+							max = val;
+						}
+					}
+				}
+				return max;
+			}
+			case AVG: {
+				long sum = longValueAt(first);
+				int n = 1;
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						sum += longValueAt(i);
+						n++;
+					}
+				}
+				return sum / n;
+			}
+			case COUNT:
+				return countValues(first);
+			default:
+				throw new AssertionError("Unknown kernel " + kernel + " in " + this);
+		}
+	}
+
+	/**
+	 * Computes {@link #kernel} on floating point values, or a mix of integer
+	 * and floating point values.  Same result as running the aggregator,
+	 * without an interface call and a timer per value.
+	 */
+	private double runDoubleKernel() {
+		final int size = iterators.length;
+		final int first = firstValue();
+		switch (kernel) {
+			case SUM: {
+				double sum = doubleValueAt(first);
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						sum += doubleValueAt(i);
+					}
+				}
+				return sum;
+			}
+			case MIN: {
+				double min = doubleValueAt(first);
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						final double val = doubleValueAt(i);
+						if (val < min) {
+							min = val;
+						}
+					}
+				}
+				return min;
+			}
+			case MAX: {
+				double max = doubleValueAt(first);
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						final double val = doubleValueAt(i);
+						if (val > max) {
+							max = val;
+						}
+					}
+				}
+				return max;
+			}
+			case AVG: {
+				double sum = doubleValueAt(first);
+				int n = 1;
+				for (int i = first + 1; i < size; i++) {
+					if (timestamps[i] != 0) {
+						sum += doubleValueAt(i);
+						n++;
+					}
+				}
+				return sum / n;
+			}
+			case COUNT:
+				return countValues(first);
+			default:
+				throw new AssertionError("Unknown kernel " + kernel + " in " + this);
+		}
+	}
+
+	/**
+	 * Returns the number of values to aggregate from the given index on.
+	 */
+	private int countValues(final int first) {
+		final int size = iterators.length;
+		int n = 0;
+		for (int i = first; i < size; i++) {
+			if (timestamps[i] != 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
 	// -------------------------- //
 	// Aggregator.Longs interface //
 	// -------------------------- //
@@ -605,46 +836,7 @@ public class AggregationIterator implements SeekableView, DataPoint,
 
 		try {
 			if (hasNextValue(true)) {
-				final long y0 = values[pos];
-				if (rate) {
-					throw new AssertionError("Should not be here, impossible! " + this);
-				}
-				if (current == pos) {
-					return y0;
-				}
-				final long x = timestamps[current] & TIME_MASK;
-				final long x0 = timestamps[pos] & TIME_MASK;
-				if (x == x0) {
-					return y0;
-				}
-				final long y1 = values[pos + iterators.length];
-				final long x1 = timestamps[pos + iterators.length] & TIME_MASK;
-				if (x == x1) {
-					return y1;
-				}
-				if ((x1 & Const.MILLISECOND_MASK) != 0) {
-					throw new AssertionError("x1=" + x1 + " in " + this);
-				}
-				final long r;
-				switch (method) {
-					case LERP:
-						r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
-						//LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
-						//          + " -> " + y1 + " @ " + x1 + " => " + r);
-						break;
-					case ZIM:
-						r = 0;
-						break;
-					case MAX:
-						r = Long.MAX_VALUE;
-						break;
-					case MIN:
-						r = Long.MIN_VALUE;
-						break;
-					default:
-						throw new IllegalDataException("Invalid interploation somehow??");
-				}
-				return r;
+				return longValueAt(pos);
 			}
 			throw new NoSuchElementException("no more longs in " + this);
 		} finally {
@@ -652,6 +844,55 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		}
 	}
 
+	/**
+	 * Returns the integer value of iterator number {@code i} at the current
+	 * timestamp, interpolating if it has no data point there.
+	 *
+	 * @param i The index in {@link #iterators} of the iterator.
+	 */
+	private long longValueAt(final int i) {
+		final long y0 = values[i];
+		if (rate) {
+			throw new AssertionError("Should not be here, impossible! " + this);
+		}
+		if (current == i) {
+			return y0;
+		}
+		final long x = timestamps[current] & TIME_MASK;
+		final long x0 = timestamps[i] & TIME_MASK;
+		if (x == x0) {
+			return y0;
+		}
+		final long y1 = values[i + iterators.length];
+		final long x1 = timestamps[i + iterators.length] & TIME_MASK;
+		if (x == x1) {
+			return y1;
+		}
+		if ((x1 & Const.MILLISECOND_MASK) != 0) {
+			throw new AssertionError("x1=" + x1 + " in " + this);
+		}
+		final long r;
+		switch (method) {
+			case LERP:
+				r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+				//LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
+				//          + " -> " + y1 + " @ " + x1 + " => " + r);
+				break;
+			case ZIM:
+				r = 0;
+				break;
+			case MAX:
+				r = Long.MAX_VALUE;
+				break;
+			case MIN:
+				r = Long.MIN_VALUE;
+				break;
+			default:
+				throw new IllegalDataException("Invalid interploation somehow??");
+		}
+		return r;
+	}
+
 	// ---------------------------- //
 	// Aggregator.Doubles interface //
 	// ---------------------------- //
@@ -661,68 +902,7 @@ public class AggregationIterator implements SeekableView, DataPoint,
 
 		try {
 			if (hasNextValue(true)) {
-				final double y0 = ((timestamps[pos] & FLAG_FLOAT) == FLAG_FLOAT
-						? Double.longBitsToDouble(values[pos])
-						: values[pos]);
-				if (current == pos) {
-					//LOG.debug("Exact match, no lerp needed");
-					return y0;
-				}
-				if (rate) {
-					// No LERP for the rate. Just uses the rate of any previous timestamp.
-					// If x0 is smaller than the current time stamp 'x', we just use
-					// y0 as a current rate of the 'pos' span. If x0 is bigger than the
-					// current timestamp 'x', we don't go back further and just use y0
-					// instead. It happens only at the beginning of iteration.
-					// TODO: Use the next rate the time range of which includes the current
-					// timestamp 'x'.
-					return y0;
-				}
-				final long x = timestamps[current] & TIME_MASK;
-				final long x0 = timestamps[pos] & TIME_MASK;
-				if (x == x0) {
-					//LOG.debug("No lerp needed x == x0 (" + x + " == "+x0+") => " + y0);
-					return y0;
-				}
-				final int next = pos + iterators.length;
-				final double y1 = ((timestamps[next] & FLAG_FLOAT) == FLAG_FLOAT
-						? Double.longBitsToDouble(values[next])
-						: values[next]);
-				final long x1 = timestamps[next] & TIME_MASK;
-				if (x == x1) {
-					//LOG.debug("No lerp needed x == x1 (" + x + " == "+x1+") => " + y1);
-					return y1;
-				}
-				if ((x1 & Const.MILLISECOND_MASK) != 0) {
-					throw new AssertionError("x1=" + x1 + " in " + this);
-				}
-				final double r;
-				switch (method) {
-					case LERP:
-						r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
-						//LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
-						//          + " -> " + y1 + " @ " + x1 + " => " + r);
-//        LOG.info("LERP x1="+ x1
-//                + ", x1=" + x1
-//                + ", x=" + x
-//                + ", x0=" + x0
-//                + ", y1=" + y1
-//                + ", y0=" + y0
-//                + ", r=" + r);
-						break;
-					case ZIM:
-						r = 0;
-						break;
-					case MAX:
-						r = Double.MAX_VALUE;
-						break;
-					case MIN:
-						r = Double.MIN_VALUE;
-						break;
-					default:
-						throw new IllegalDataException("Invalid interploation somehow??");
-				}
-				return r;
+				return doubleValueAt(pos);
 			}
 
 			throw new NoSuchElementException("no more doubles in " + this);
@@ -731,6 +911,70 @@ public class AggregationIterator implements SeekableView, DataPoint,
 		}
 	}
 
+	/**
+	 * Returns the value of iterator number {@code i} at the current timestamp
+	 * as a double, interpolating if it has no data point there.
+	 *
+	 * @param i The index in {@link #iterators} of the iterator.
+	 */
+	private double doubleValueAt(final int i) {
+		final double y0 = ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
+				? Double.longBitsToDouble(values[i])
+				: values[i]);
+		if (current == i) {
+			//LOG.debug("Exact match, no lerp needed");
+			return y0;
+		}
+		if (rate) {
+			// No LERP for the rate. Just uses the rate of any previous timestamp.
+			// If x0 is smaller than the current time stamp 'x', we just use
+			// y0 as a current rate of the 'pos' span. If x0 is bigger than the
+			// current timestamp 'x', we don't go back further and just use y0
+			// instead. It happens only at the beginning of iteration.
+			// TODO: Use the next rate the time range of which includes the current
+			// timestamp 'x'.
+			return y0;
+		}
+		final long x = timestamps[current] & TIME_MASK;
+		final long x0 = timestamps[i] & TIME_MASK;
+		if (x == x0) {
+			//LOG.debug("No lerp needed x == x0 (" + x + " == "+x0+") => " + y0);
+			return y0;
+		}
+		final int next = i + iterators.length;
+		final double y1 = ((timestamps[next] & FLAG_FLOAT) == FLAG_FLOAT
+				? Double.longBitsToDouble(values[next])
+				: values[next]);
+		final long x1 = timestamps[next] & TIME_MASK;
+		if (x == x1) {
+			//LOG.debug("No lerp needed x == x1 (" + x + " == "+x1+") => " + y1);
+			return y1;
+		}
+		if ((x1 & Const.MILLISECOND_MASK) != 0) {
+			throw new AssertionError("x1=" + x1 + " in " + this);
+		}
+		final double r;
+		switch (method) {
+			case LERP:
+				r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+				//LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
+				//          + " -> " + y1 + " @ " + x1 + " => " + r);
+				break;
+			case ZIM:
+				r = 0;
+				break;
+			case MAX:
+				r = Double.MAX_VALUE;
+				break;
+			case MIN:
+				r = Double.MIN_VALUE;
+				break;
+			default:
+				throw new IllegalDataException("Invalid interploation somehow??");
+		}
+		return r;
+	}
+
 	public String toString() {
 		return "SpanGroup.Iterator(timestamps=" + Arrays.toString(timestamps)
 				+ ", values=" + Arrays.toString(values)
@@ -13,15 +13,12 @@
 package net.opentsdb.core;
 
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
 import com.google.common.base.Preconditions;
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
 import org.apache.commons.math3.stat.descriptive.rank.Percentile.EstimationType;
-import org.apache.commons.math3.util.ResizableDoubleArray;
 
 /**
  * Utility class that provides common, generally useful aggregators.
@@ -197,6 +194,31 @@ public final class Aggregators {
 	public static final PercentileAgg ep50r7 =
 			new PercentileAgg(50d, "ep50r7", EstimationType.R_7);
 
+	/**
+	 * Aggregator that returns approximate 99.9th percentile.
+	 */
+	public static final ApproxPercentileAgg ap999 = new ApproxPercentileAgg(99.9d, "ap999");
+	/**
+	 * Aggregator that returns approximate 99th percentile.
+	 */
+	public static final ApproxPercentileAgg ap99 = new ApproxPercentileAgg(99d, "ap99");
+	/**
+	 * Aggregator that returns approximate 95th percentile.
+	 */
+	public static final ApproxPercentileAgg ap95 = new ApproxPercentileAgg(95d, "ap95");
+	/**
+	 * Aggregator that returns approximate 90th percentile.
+	 */
+	public static final ApproxPercentileAgg ap90 = new ApproxPercentileAgg(90d, "ap90");
+	/**
+	 * Aggregator that returns approximate 75th percentile.
+	 */
+	public static final ApproxPercentileAgg ap75 = new ApproxPercentileAgg(75d, "ap75");
+	/**
+	 * Aggregator that returns approximate 50th percentile.
+	 */
+	public static final ApproxPercentileAgg ap50 = new ApproxPercentileAgg(50d, "ap50");
+
 	static {
 		aggregators = new HashMap<String, Aggregator>(8);
 		aggregators.put("sum", SUM);
@@ -217,6 +239,13 @@ public final class Aggregators {
 		for (PercentileAgg agg : percentiles) {
 			aggregators.put(agg.getName(), agg);
 		}
+
+		ApproxPercentileAgg[] approx_percentiles = {
+				ap999, ap99, ap95, ap90, ap75, ap50
+		};
+		for (ApproxPercentileAgg agg : approx_percentiles) {
+			aggregators.put(agg.getName(), agg);
+		}
 	}
 
 	private Aggregators() {
@@ -245,6 +274,36 @@ public final class Aggregators {
 		throw new NoSuchElementException("No such aggregator: " + name);
 	}
 
+	/**
+	 * Aggregations simple enough for {@link AggregationIterator} to compute
+	 * them with its own loops instead of calling the aggregator through the
+	 * {@link Aggregator.Longs} and {@link Aggregator.Doubles} interfaces.  The
+	 * results are the same, the interpolation method still applies.
+	 */
+	enum Kernel {
+		SUM, MIN, MAX, AVG, COUNT
+	}
+
+	/**
+	 * Returns the kernel computing the same thing as the given aggregator.
+	 *
+	 * @return The kernel, or {@code null} if the aggregator has none.
+	 */
+	static Kernel kernelOf(final Aggregator aggregator) {
+		if (aggregator instanceof Sum) {
+			return Kernel.SUM;
+		} else if (aggregator instanceof Min) {
+			return Kernel.MIN;
+		} else if (aggregator instanceof Max) {
+			return Kernel.MAX;
+		} else if (aggregator instanceof Avg) {
+			return Kernel.AVG;
+		} else if (aggregator instanceof Count) {
+			return Kernel.COUNT;
+		}
+		return null;
+	}
+
 	private static final class Sum implements Aggregator {
 
 		private final Interpolation method;
@@ -321,18 +380,78 @@ public final class Aggregators {
 		}
 	}
 
+	/**
+	 * Averages the points that precede the current one in a window of either a
+	 * number of points or a duration.
+	 * <p/>
+	 * For a point window the average covers the {@code numPoints} previous
+	 * points.  For a time window it covers every previous point in the window
+	 * plus the most recent one before the window.  Until the window is full
+	 * 0 is returned.
+	 * <p/>
+	 * The previous points are kept in a ring buffer along with a running sum,
+	 * so each call is O(1) amortized and the memory is bounded by the window.
+	 * The floating point sum is compensated (Neumaier), so its rounding errors
+	 * don't accumulate as points are added and evicted over long series.
+	 * Instances are stateful and must not be shared across queries.
+	 */
 	static final class MovingAverage implements Aggregator {
-		private LinkedList<SumPoint> list = new LinkedList<SumPoint>();
+		/**
+		 * Initial capacity of the ring buffer of time windows, which grows as
+		 * needed.
+		 */
+		private static final int INITIAL_TIME_CAPACITY = 16;
+
 		private final Interpolation method;
 		private final String name;
 		private final long numPoints;
 		private final boolean isTimeUnit;
 
+		/**
+		 * Timestamps of the buffered points.
+		 */
+		private long[] timestamps;
+		/**
+		 * Integer sums of the buffered points.
+		 */
+		private long[] long_values;
+		/**
+		 * Floating point sums of the buffered points.
+		 */
+		private double[] double_values;
+		/**
+		 * Index of the oldest buffered point.
+		 */
+		private int head;
+		/**
+		 * Number of buffered points.
+		 */
+		private int count;
+		/**
+		 * Running sums over the buffered points.
+		 */
+		private long long_sum;
+		private double double_sum;
+		/**
+		 * Low-order bits lost by {@link #double_sum}, see {@link #addDouble}.
+		 */
+		private double double_compensation;
+
 		public MovingAverage(final Interpolation method, final String name, long numPoints, boolean isTimeUnit) {
+			if (numPoints <= 0) {
+				throw new IllegalArgumentException("Invalid window: " + numPoints);
+			}
+			if (!isTimeUnit && numPoints > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Window too large: " + numPoints);
+			}
 			this.method = method;
 			this.name = name;
 			this.numPoints = numPoints;
 			this.isTimeUnit = isTimeUnit;
+			final int capacity = isTimeUnit ? INITIAL_TIME_CAPACITY : (int) numPoints;
+			this.timestamps = new long[capacity];
+			this.long_values = new long[capacity];
+			this.double_values = new double[capacity];
 		}
 
 		public long runLong(final Longs values) {
@@ -341,37 +460,11 @@ public final class Aggregators {
 				sum += values.nextLongValue();
 			}
 
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				list.addFirst(new SumPoint(ts, sum));
-			}
-
-			long result = 0;
-			int count = 0;
-
-			Iterator<SumPoint> iter = list.iterator();
-			SumPoint first = iter.next();
-			boolean conditionMet = false;
-
-			// now sum up the preceeding points
-			while (iter.hasNext()) {
-				SumPoint next = iter.next();
-				result += (Long) next.val;
-				count++;
-				if (!isTimeUnit && count >= numPoints) {
-					conditionMet = true;
-					break;
-				} else if (isTimeUnit && ((first.ts - next.ts) > numPoints)) {
-					conditionMet = true;
-					break;
-				}
-			}
-
-			if (!conditionMet || count == 0) {
-				return 0;
-			}
-
-			return result / count;
+			final long ts = timestampOf(values);
+			final boolean full = windowFull(ts);
+			final long result = full ? long_sum / count : 0;
+			push(ts, sum, sum);
+			return result;
 		}
 
 		@Override
@@ -381,281 +474,103 @@ public final class Aggregators {
 				sum += values.nextDoubleValue();
 			}
 
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				list.addFirst(new SumPoint(ts, sum));
-			}
-
-			double result = 0;
-			int count = 0;
-
-			Iterator<SumPoint> iter = list.iterator();
-			SumPoint first = iter.next();
-			boolean conditionMet = false;
-
-			// now sum up the preceeding points
-			while (iter.hasNext()) {
-				SumPoint next = iter.next();
-				result += (Double) next.val;
-				count++;
-				if (!isTimeUnit && count >= numPoints) {
-					conditionMet = true;
-					break;
-				} else if (isTimeUnit && ((first.ts - next.ts) > numPoints)) {
-					conditionMet = true;
-					break;
-				}
-			}
-
-			if (!conditionMet || count == 0) {
-				return 0;
-			}
-
-			return result / count;
-		}
-
-		@Override
-		public Interpolation interpolationMethod() {
-			return method;
+			final long ts = timestampOf(values);
+			final boolean full = windowFull(ts);
+			final double result = full ? (double_sum + double_compensation) / count : 0;
+			push(ts, (long) sum, sum);
+			return result;
 		}
 
-		@Override
-		public String toString() {
-			return name;
+		private static long timestampOf(final Object values) {
+			return values instanceof DataPoint ? ((DataPoint) values).timestamp() : 0;
 		}
 
-		class SumPoint {
-			long ts;
-			Object val;
-
-			public SumPoint(long ts, Object val) {
-				this.ts = ts;
-				this.val = val;
+		/**
+		 * Drops the points that fell out of the window of the given timestamp and
+		 * tells whether or not the remaining points make up a full window.
+		 */
+		private boolean windowFull(final long ts) {
+			if (!isTimeUnit) {
+				return count >= numPoints;
 			}
-		}
-	}
-
-	public static class MaxCacheAggregator implements Aggregator {
-
-		private final Interpolation method;
-		private final String name;
-		private final int size;
-		private final long[] maxLongs;
-		private final double[] maxDoubles;
-		private boolean hasLongs = false;
-		private boolean hasDoubles = false;
-
-		private long start;
-		private long end;
-
-		public MaxCacheAggregator(Interpolation method, String name, int size,
-		                          long startTimeInMillis, long endTimeInMillis) {
-			this.method = method;
-			this.name = name;
-			this.size = size;
-			this.start = startTimeInMillis;
-			this.end = endTimeInMillis;
-
-			this.maxLongs = new long[size];
-			this.maxDoubles = new double[size];
-
-			for (int i = 0; i < size; i++) {
-				maxDoubles[i] = Double.MIN_VALUE;
-				maxLongs[i] = Long.MIN_VALUE;
+			// Keep the most recent point before the window: it closes the window.
+			while (count >= 2
+					&& ts - timestamps[(head + 1) % timestamps.length] > numPoints) {
+				evict();
 			}
+			return count > 0 && ts - timestamps[head] > numPoints;
 		}
 
-		@Override
-		public long runLong(Longs values) {
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				//data point falls outside required range
-				if (ts < start || ts > end) {
-					return 0;
+		private void push(final long ts, final long long_value, final double double_value) {
+			if (count == timestamps.length) {
+				if (isTimeUnit) {
+					grow();
+				} else {
+					evict();
 				}
 			}
-
-			long[] longs = new long[size];
-			int ix = 0;
-			longs[ix++] = values.nextLongValue();
-			while (values.hasNextValue()) {
-				longs[ix++] = values.nextLongValue();
+			final int idx = (head + count) % timestamps.length;
+			timestamps[idx] = ts;
+			long_values[idx] = long_value;
+			double_values[idx] = double_value;
+			long_sum += long_value;
+			addDouble(double_value);
+			count++;
+		}
+
+		private void evict() {
+			long_sum -= long_values[head];
+			addDouble(-double_values[head]);
+			head = (head + 1) % timestamps.length;
+			count--;
+			if (count == 0) {
+				double_sum = 0;
+				double_compensation = 0;
 			}
-
-			for (int i = 0; i < size; i++) {
-				maxLongs[i] = Math.max(maxLongs[i], longs[i]);
-			}
-
-			hasLongs = true;
-			return 0;
 		}
 
-		@Override
-		public double runDouble(Doubles values) {
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				//data point falls outside required range
-				if (ts < start || ts > end) {
-					return 0;
-				}
+		/**
+		 * Adds a value to the floating point sum, keeping the low-order bits
+		 * lost to rounding in {@link #double_compensation}.
+		 */
+		private void addDouble(final double value) {
+			final double sum = double_sum + value;
+			if (Math.abs(double_sum) >= Math.abs(value)) {
+				double_compensation += (double_sum - sum) + value;
+			} else {
+				double_compensation += (value - sum) + double_sum;
 			}
-
-			double[] doubles = new double[size];
-			int ix = 0;
-			doubles[ix++] = values.nextDoubleValue();
-			while (values.hasNextValue()) {
-				doubles[ix++] = values.nextDoubleValue();
-			}
-			for (int i = 0; i < size; i++) {
-				maxDoubles[i] = Math.max(maxDoubles[i], doubles[i]);
+			double_sum = sum;
+		}
+
+		private void grow() {
+			final int capacity = timestamps.length * 2;
+			final long[] new_timestamps = new long[capacity];
+			final long[] new_long_values = new long[capacity];
+			final double[] new_double_values = new double[capacity];
+			for (int i = 0; i < count; i++) {
+				final int idx = (head + i) % timestamps.length;
+				new_timestamps[i] = timestamps[idx];
+				new_long_values[i] = long_values[idx];
+				new_double_values[i] = double_values[idx];
 			}
-
-			hasDoubles = true;
-			return 0;
-		}
-
-		public long[] getLongMaxes() {
-			return maxLongs;
-		}
-
-		public double[] getDoubleMaxes() {
-			return maxDoubles;
-		}
-
-		public boolean hasLongs() {
-			return hasLongs;
-		}
-
-		public boolean hasDoubles() {
-			return hasDoubles;
-		}
-
-		@Override
-		public String toString() {
-			return name;
+			timestamps = new_timestamps;
+			long_values = new_long_values;
+			double_values = new_double_values;
+			head = 0;
 		}
 
 		@Override
 		public Interpolation interpolationMethod() {
 			return method;
 		}
-	}
-
-	public static class MaxLatestAggregator implements Aggregator {
-
-		private final Interpolation method;
-		private final String name;
-		private final int size;
-		private final long[] maxLongs;
-		private final double[] maxDoubles;
-		private final long start;
-		private final long end;
-		private boolean hasLongs = false;
-		private boolean hasDoubles = false;
-		private long latestTS = -1;
-
-		public MaxLatestAggregator(Interpolation method, String name, int size,
-		                           long startTimeInMillis, long endTimeInMillis) {
-			this.method = method;
-			this.name = name;
-			this.size = size;
-			this.start = startTimeInMillis;
-			this.end = endTimeInMillis;
-
-
-			this.maxLongs = new long[size];
-			this.maxDoubles = new double[size];
-
-			for (int i = 0; i < size; i++) {
-				maxDoubles[i] = Double.MIN_VALUE;
-				maxLongs[i] = Long.MIN_VALUE;
-			}
-		}
-
-		@Override
-		public long runLong(Longs values) {
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				//data point falls outside required range
-				if (ts < start || ts > end) {
-					return 0;
-				}
-			}
-
-			long[] longs = new long[size];
-			int ix = 0;
-			longs[ix++] = values.nextLongValue();
-			while (values.hasNextValue()) {
-				longs[ix++] = values.nextLongValue();
-			}
-
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				if (ts > latestTS) {
-					System.arraycopy(longs, 0, maxLongs, 0, size);
-				}
-			}
-
-			hasLongs = true;
-			return 0;
-		}
-
-		@Override
-		public double runDouble(Doubles values) {
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				//data point falls outside required range
-				if (ts < start || ts > end) {
-					return 0;
-				}
-			}
-
-			double[] doubles = new double[size];
-			int ix = 0;
-			doubles[ix++] = values.nextDoubleValue();
-			while (values.hasNextValue()) {
-				doubles[ix++] = values.nextDoubleValue();
-			}
-
-			if (values instanceof DataPoint) {
-				long ts = ((DataPoint) values).timestamp();
-				if (ts > latestTS) {
-					System.arraycopy(doubles, 0, maxDoubles, 0, size);
-				}
-			}
-
-			hasDoubles = true;
-			return 0;
-		}
-
-		public long[] getLongMaxes() {
-			return maxLongs;
-		}
-
-		public double[] getDoubleMaxes() {
-			return maxDoubles;
-		}
-
-		public boolean hasLongs() {
-			return hasLongs;
-		}
-
-		public boolean hasDoubles() {
-			return hasDoubles;
-		}
 
 		@Override
 		public String toString() {
 			return name;
 		}
-
-		@Override
-		public Interpolation interpolationMethod() {
-			return method;
-		}
 	}
 
-
 	private static final class Min implements Aggregator {
 		private final Interpolation method;
 		private final String name;
@@ -892,11 +807,36 @@ public final class Aggregators {
 	 * estimate=x⌈h−1/2⌉
 	 * minLimit=0
 	 * maxLimit=1
+	 * <p/>
+	 * Values are collected into a buffer reused by each thread, since the
+	 * aggregator is called once per output timestamp.  The default estimation
+	 * is computed in place with a quickselect; the other estimation types go
+	 * through commons math.
 	 */
 	private static final class PercentileAgg implements Aggregator {
+		/**
+		 * Buffers larger than this are not kept around between calls.
+		 */
+		private static final int MAX_RETAINED_VALUES = 1 << 16;
+
+		/**
+		 * Values of the current call, confined to the calling thread.
+		 */
+		private static final ThreadLocal<double[]> BUFFER = new ThreadLocal<double[]>() {
+			@Override
+			protected double[] initialValue() {
+				return new double[64];
+			}
+		};
+
 		private final Double percentile;
 		private final String name;
 		private final EstimationType estimation;
+		/**
+		 * Commons math estimator used when {@link #estimation} is set.  It keeps
+		 * state between calls, so each thread gets its own.
+		 */
+		private final ThreadLocal<Percentile> estimator;
 
 		PercentileAgg(final Double percentile, final String name) {
 			this(percentile, name, null);
@@ -911,29 +851,210 @@ public final class Aggregators {
 			this.percentile = percentile;
 			this.name = name;
 			this.estimation = est;
+			this.estimator = est == null ? null : new ThreadLocal<Percentile>() {
+				@Override
+				protected Percentile initialValue() {
+					return new Percentile(PercentileAgg.this.percentile).withEstimationType(estimation);
+				}
+			};
+		}
+
+		public long runLong(final Longs values) {
+			double[] buffer = BUFFER.get();
+			int n = 0;
+			while (values.hasNextValue()) {
+				if (n == buffer.length) {
+					buffer = grow(buffer);
+				}
+				buffer[n++] = values.nextLongValue();
+			}
+			final double result = estimation == null
+					? evaluate(buffer, n)
+					: estimator.get().evaluate(buffer, 0, n);
+			release(buffer);
+			return (long) result;
+		}
+
+		public double runDouble(final Doubles values) {
+			double[] buffer = BUFFER.get();
+			int n = 0;
+			while (values.hasNextValue()) {
+				if (n == buffer.length) {
+					buffer = grow(buffer);
+				}
+				buffer[n++] = values.nextDoubleValue();
+			}
+			// NOTE: Doubles have always been evaluated with the default estimation,
+			// whatever the estimation type of this aggregator.
+			final double result = evaluate(buffer, n);
+			release(buffer);
+			return result;
+		}
+
+		/**
+		 * Computes the percentile of the {@code n} first values with the default
+		 * (legacy) estimation of commons math, reordering the values in place.
+		 */
+		private double evaluate(final double[] buffer, final int n) {
+			if (n == 0) {
+				return Double.NaN;
+			}
+			if (n == 1) {
+				return buffer[0];
+			}
+			for (int i = 0; i < n; i++) {
+				if (Double.isNaN(buffer[i])) {
+					// Leave the NaN ordering to commons math.
+					return new Percentile(percentile).evaluate(buffer, 0, n);
+				}
+			}
+			final double p = percentile / 100;
+			final double pos = p == 1d ? n : p * (n + 1);
+			if (pos < 1) {
+				return select(buffer, n, 0);
+			}
+			if (pos >= n) {
+				return select(buffer, n, n - 1);
+			}
+			final double fpos = Math.floor(pos);
+			final int int_pos = (int) fpos;
+			final double dif = pos - fpos;
+			final double lower = select(buffer, n, int_pos - 1);
+			// Everything after the k-th element is greater than or equal to it.
+			double upper = buffer[int_pos];
+			for (int i = int_pos + 1; i < n; i++) {
+				if (buffer[i] < upper) {
+					upper = buffer[i];
+				}
+			}
+			return lower + dif * (upper - lower);
+		}
+
+		/**
+		 * Partially orders the {@code n} first values so that the k-th smallest
+		 * is at index {@code k}, and returns it.
+		 */
+		private static double select(final double[] work, final int n, final int k) {
+			int lo = 0;
+			int hi = n - 1;
+			while (lo < hi) {
+				// Median of three as pivot to dodge the sorted input worst case.
+				final int mid = (lo + hi) >>> 1;
+				if (work[mid] < work[lo]) {
+					swap(work, mid, lo);
+				}
+				if (work[hi] < work[lo]) {
+					swap(work, hi, lo);
+				}
+				if (work[hi] < work[mid]) {
+					swap(work, hi, mid);
+				}
+				final double pivot = work[mid];
+				int i = lo;
+				int j = hi;
+				while (i <= j) {
+					while (work[i] < pivot) {
+						i++;
+					}
+					while (pivot < work[j]) {
+						j--;
+					}
+					if (i <= j) {
+						swap(work, i, j);
+						i++;
+						j--;
+					}
+				}
+				if (k <= j) {
+					hi = j;
+				} else if (k >= i) {
+					lo = i;
+				} else {
+					break;
+				}
+			}
+			return work[k];
+		}
+
+		private static void swap(final double[] work, final int i, final int j) {
+			final double tmp = work[i];
+			work[i] = work[j];
+			work[j] = tmp;
+		}
+
+		private static double[] grow(final double[] buffer) {
+			final double[] grown = new double[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, buffer.length);
+			return grown;
+		}
+
+		/**
+		 * Keeps the buffer for the next call on this thread, unless it got too big.
+		 */
+		private static void release(final double[] buffer) {
+			if (buffer.length <= MAX_RETAINED_VALUES) {
+				BUFFER.set(buffer);
+			} else {
+				BUFFER.remove();
+			}
+		}
+
+		public String toString() {
+			return name;
+		}
+
+		@Override
+		public Interpolation interpolationMethod() {
+			return Interpolation.LERP;
+		}
+
+	}
+
+	/**
+	 * Percentile aggregator estimated with a {@link QuantileSketch}, within 1%
+	 * of the exact value.  Unlike {@link PercentileAgg} the memory used doesn't
+	 * depend on the number of values aggregated.
+	 */
+	private static final class ApproxPercentileAgg implements Aggregator {
+		/**
+		 * Sketch of the current call, confined to the calling thread.
+		 */
+		private static final ThreadLocal<QuantileSketch> SKETCH = new ThreadLocal<QuantileSketch>() {
+			@Override
+			protected QuantileSketch initialValue() {
+				return new QuantileSketch();
+			}
+		};
+
+		private final double quantile;
+		private final String name;
+
+		ApproxPercentileAgg(final double percentile, final String name) {
+			Preconditions.checkArgument(percentile > 0 && percentile <= 100, "Invalid percentile value");
+			this.quantile = percentile / 100;
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
 		}
 
 		public long runLong(final Longs values) {
-			final Percentile percentile =
-					this.estimation == null
-							? new Percentile(this.percentile)
-							: new Percentile(this.percentile).withEstimationType(estimation);
-			final ResizableDoubleArray local_values = new ResizableDoubleArray();
+			final QuantileSketch sketch = SKETCH.get();
+			sketch.reset();
 			while (values.hasNextValue()) {
-				local_values.addElement(values.nextLongValue());
+				sketch.add(values.nextLongValue());
 			}
-			percentile.setData(local_values.getElements());
-			return (long) percentile.evaluate();
+			return (long) sketch.quantile(quantile);
 		}
 
 		public double runDouble(final Doubles values) {
-			final Percentile percentile = new Percentile(this.percentile);
-			final ResizableDoubleArray local_values = new ResizableDoubleArray();
+			final QuantileSketch sketch = SKETCH.get();
+			sketch.reset();
 			while (values.hasNextValue()) {
-				local_values.addElement(values.nextDoubleValue());
+				sketch.add(values.nextDoubleValue());
 			}
-			percentile.setData(local_values.getElements());
-			return percentile.evaluate();
+			return sketch.quantile(quantile);
 		}
 
 		public String toString() {
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a {@link SeekableView} one batch at a time.
+ * <p/>
+ * The source is drained with {@link SeekableView#nextBatch} into a pair of
+ * primitive arrays and the caller walks the arrays through this final class,
+ * so the per data point calls are monomorphic and can be inlined.  Only one
+ * virtual call into the source is made per batch.
+ * <p/>
+ * The current data point is copied out of the arrays when {@link #next} is
+ * called, so it stays valid across a refill triggered by {@link #hasNext}.
+ */
+final class BatchReader {
+
+	/**
+	 * Number of data points fetched from the source at once.  Kept small since
+	 * an {@link AggregationIterator} may hold one reader per span.
+	 */
+	static final int DEFAULT_BATCH_SIZE = 32;
+
+	/**
+	 * The view we read from.
+	 */
+	private final SeekableView source;
+
+	/**
+	 * Timestamps of the current batch, flagged with
+	 * {@link SeekableView#FLAG_FLOAT}.
+	 */
+	private final long[] timestamps;
+
+	/**
+	 * Raw values of the current batch.
+	 */
+	private final long[] values;
+
+	/**
+	 * Index in the batch of the next data point to return.
+	 */
+	private int pos;
+
+	/**
+	 * Number of valid entries in the batch.
+	 */
+	private int limit;
+
+	/**
+	 * Set once the source returned an empty batch.
+	 */
+	private boolean exhausted;
+
+	/**
+	 * Flagged timestamp of the current data point.
+	 */
+	private long timestamp;
+
+	/**
+	 * Raw value of the current data point.
+	 */
+	private long value;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source The view to read from.
+	 */
+	BatchReader(final SeekableView source) {
+		this(source, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source     The view to read from.
+	 * @param batch_size Number of data points to fetch from the source at once.
+	 */
+	BatchReader(final SeekableView source, final int batch_size) {
+		this.source = source;
+		this.timestamps = new long[batch_size];
+		this.values = new long[batch_size];
+	}
+
+	/**
+	 * Returns {@code true} if there is at least one more data point.
+	 */
+	boolean hasNext() {
+		if (pos < limit) {
+			return true;
+		}
+		if (exhausted) {
+			return false;
+		}
+		limit = source.nextBatch(timestamps, values);
+		pos = 0;
+		exhausted = limit == 0;
+		return !exhausted;
+	}
+
+	/**
+	 * Moves to the next data point.
+	 *
+	 * @throws NoSuchElementException if there are no more data points.
+	 */
+	void next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("no more elements in " + this);
+		}
+		timestamp = timestamps[pos];
+		value = values[pos];
+		pos++;
+	}
+
+	/**
+	 * Advances the source to the given point in time and drops the current
+	 * batch.
+	 *
+	 * @see SeekableView#seek
+	 */
+	void seek(final long timestamp) {
+		source.seek(timestamp);
+		pos = 0;
+		limit = 0;
+		exhausted = false;
+	}
+
+	/**
+	 * Returns the timestamp (in milliseconds) of the current data point.
+	 */
+	long timestamp() {
+		return timestamp & SeekableView.TIME_MASK;
+	}
+
+	/**
+	 * Tells whether or not the current data point is of integer type.
+	 */
+	boolean isInteger() {
+		return (timestamp & SeekableView.FLAG_FLOAT) == 0;
+	}
+
+	/**
+	 * Returns the current value as a {@code long}.
+	 *
+	 * @throws ClassCastException if the value is a floating point.
+	 */
+	long longValue() {
+		if (!isInteger()) {
+			throw new ClassCastException("value is not a long in " + this);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the current value as a {@code double}.
+	 *
+	 * @throws ClassCastException if the value is an integer.
+	 */
+	double doubleValue() {
+		if (isInteger()) {
+			throw new ClassCastException("value is not a float in " + this);
+		}
+		return Double.longBitsToDouble(value);
+	}
+
+	/**
+	 * Returns the current value as a {@code double}, even if it's a
+	 * {@code long}.
+	 */
+	double toDouble() {
+		return isInteger() ? value : Double.longBitsToDouble(value);
+	}
+
+	/**
+	 * Per data point implementation of {@link SeekableView#nextBatch}, used by
+	 * views that have no cheaper way to produce a batch.
+	 *
+	 * @param view       The view to copy data points from.
+	 * @param timestamps Array to fill with flagged timestamps.
+	 * @param values     Array to fill with raw values.
+	 * @return The number of data points copied.
+	 */
+	static int copyPerPoint(final SeekableView view,
+	                        final long[] timestamps,
+	                        final long[] values) {
+		final int max = Math.min(timestamps.length, values.length);
+		int n = 0;
+		while (n < max && view.hasNext()) {
+			final DataPoint dp = view.next();
+			if (dp.isInteger()) {
+				timestamps[n] = dp.timestamp();
+				values[n] = dp.longValue();
+			} else {
+				timestamps[n] = dp.timestamp() | SeekableView.FLAG_FLOAT;
+				values[n] = Double.doubleToRawLongBits(dp.doubleValue());
+			}
+			n++;
+		}
+		return n;
+	}
+
+	public String toString() {
+		return "BatchReader(pos=" + pos + ", limit=" + limit
+				+ ", exhausted=" + exhausted + ", source=" + source + ')';
+	}
+
+}
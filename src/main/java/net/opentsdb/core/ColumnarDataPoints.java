@@ -0,0 +1,388 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.meta.Annotation;
+
+/**
+ * Time series held in two primitive columns, used to pass series between
+ * expression functions.
+ * <p/>
+ * The timestamps are flagged with {@link SeekableView#FLAG_FLOAT} for floating
+ * point values, whose raw bits are in the values column, like the batches of
+ * {@link SeekableView#nextBatch}.  Reading a series doesn't allocate a
+ * {@link DataPoint} per data point, and {@link #of} doesn't copy a series that
+ * is already columnar, so nested expressions only copy their inputs once.
+ * <p/>
+ * The metric name, tags and other meta data come from the series this one
+ * was computed from, unless an alias is set.
+ * <p/>
+ * Instances are immutable, several of them may share the same columns.
+ */
+public final class ColumnarDataPoints implements DataPoints {
+
+	/**
+	 * Number of data points read from a view at once by {@link #collect}.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * Series to take the meta data from.
+	 */
+	private final DataPoints base;
+
+	/**
+	 * Name to use instead of the metric name of {@link #base}, without tags,
+	 * or {@code null}.
+	 */
+	private final String alias;
+
+	/**
+	 * Timestamps, flagged with {@link SeekableView#FLAG_FLOAT}.
+	 */
+	private final long[] timestamps;
+
+	/**
+	 * Values, integers or raw bits of doubles.
+	 */
+	private final long[] values;
+
+	/**
+	 * Number of data points, the columns may be longer.
+	 */
+	private final int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param base       Series to take the meta data from.
+	 * @param alias      Name to use instead of the metric name, or {@code null}.
+	 * @param timestamps Flagged timestamps, in increasing order.
+	 * @param values     Values.
+	 * @param size       Number of data points in the columns.
+	 */
+	ColumnarDataPoints(final DataPoints base, final String alias,
+	                   final long[] timestamps, final long[] values,
+	                   final int size) {
+		this.base = base;
+		this.alias = alias;
+		this.timestamps = timestamps;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the given series in columns, copying it only if needed.
+	 */
+	public static ColumnarDataPoints of(final DataPoints dps) {
+		if (dps instanceof ColumnarDataPoints) {
+			return (ColumnarDataPoints) dps;
+		}
+		return collect(dps, dps.iterator());
+	}
+
+	/**
+	 * Reads all the data points of a view into a new series.
+	 *
+	 * @param base Series to take the meta data from.
+	 * @param view The data points, in increasing timestamp order.
+	 */
+	static ColumnarDataPoints collect(final DataPoints base,
+	                                  final SeekableView view) {
+		final Builder builder = new Builder();
+		final long[] batch_timestamps = new long[BATCH_SIZE];
+		final long[] batch_values = new long[BATCH_SIZE];
+		int n;
+		while ((n = view.nextBatch(batch_timestamps, batch_values)) > 0) {
+			builder.addAll(batch_timestamps, batch_values, n);
+		}
+		return builder.build(base);
+	}
+
+	/**
+	 * Returns this series under another name, without tags.  The data points
+	 * are shared.
+	 */
+	public ColumnarDataPoints withAlias(final String alias) {
+		return new ColumnarDataPoints(base, alias, timestamps, values, size);
+	}
+
+	/**
+	 * @return the series the meta data comes from.
+	 */
+	DataPoints base() {
+		return base;
+	}
+
+	/**
+	 * @return the alias of the series, or {@code null}.
+	 */
+	String alias() {
+		return alias;
+	}
+
+	/**
+	 * @return the flagged timestamp of the {@code i}th data point.
+	 */
+	long flaggedTimestamp(final int i) {
+		return timestamps[i];
+	}
+
+	/**
+	 * @return the raw value of the {@code i}th data point.
+	 */
+	long rawValue(final int i) {
+		return values[i];
+	}
+
+	// ---------------------- //
+	// DataPoints interface   //
+	// ---------------------- //
+
+	@Override
+	public String metricName() {
+		return alias != null ? alias : base.metricName();
+	}
+
+	@Override
+	public Deferred<String> metricNameAsync() {
+		return alias != null ? Deferred.fromResult(alias) : base.metricNameAsync();
+	}
+
+	@Override
+	public Map<String, String> getTags() {
+		return alias != null ? new HashMap<String, String>() : base.getTags();
+	}
+
+	@Override
+	public Deferred<Map<String, String>> getTagsAsync() {
+		if (alias != null) {
+			return Deferred.fromResult((Map<String, String>) new HashMap<String, String>());
+		}
+		return base.getTagsAsync();
+	}
+
+	@Override
+	public List<String> getAggregatedTags() {
+		return base.getAggregatedTags();
+	}
+
+	@Override
+	public Deferred<List<String>> getAggregatedTagsAsync() {
+		return base.getAggregatedTagsAsync();
+	}
+
+	@Override
+	public List<String> getTSUIDs() {
+		return base.getTSUIDs();
+	}
+
+	@Override
+	public List<Annotation> getAnnotations() {
+		return base.getAnnotations();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int aggregatedSize() {
+		return size;
+	}
+
+	@Override
+	public SeekableView iterator() {
+		return new Iterator();
+	}
+
+	@Override
+	public long timestamp(final int i) {
+		checkIndex(i);
+		return timestamps[i] & SeekableView.TIME_MASK;
+	}
+
+	@Override
+	public boolean isInteger(final int i) {
+		checkIndex(i);
+		return (timestamps[i] & SeekableView.FLAG_FLOAT) == 0;
+	}
+
+	@Override
+	public long longValue(final int i) {
+		if (isInteger(i)) {
+			return values[i];
+		}
+		throw new ClassCastException("value #" + i + " is not a long in " + this);
+	}
+
+	@Override
+	public double doubleValue(final int i) {
+		if (!isInteger(i)) {
+			return Double.longBitsToDouble(values[i]);
+		}
+		throw new ClassCastException("value #" + i + " is not a double in " + this);
+	}
+
+	private void checkIndex(final int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("index " + i + " not in [0, "
+					+ size + ") in " + this);
+		}
+	}
+
+	public String toString() {
+		return "ColumnarDataPoints(size=" + size + ", alias=" + alias
+				+ ", base=" + base + ')';
+	}
+
+	/**
+	 * Accumulates data points for a new series.
+	 */
+	static final class Builder {
+		private long[] timestamps = new long[64];
+		private long[] values = new long[64];
+		private int size;
+
+		/**
+		 * Appends a batch as returned by {@link SeekableView#nextBatch}.
+		 */
+		void addAll(final long[] batch_timestamps, final long[] batch_values,
+		            final int n) {
+			ensureCapacity(size + n);
+			System.arraycopy(batch_timestamps, 0, timestamps, size, n);
+			System.arraycopy(batch_values, 0, values, size, n);
+			size += n;
+		}
+
+		/**
+		 * Returns the series built, the builder must not be used afterwards.
+		 *
+		 * @param base Series to take the meta data from.
+		 */
+		ColumnarDataPoints build(final DataPoints base) {
+			return new ColumnarDataPoints(base, null, timestamps, values, size);
+		}
+
+		private void ensureCapacity(final int capacity) {
+			if (capacity > timestamps.length) {
+				final int length = Math.max(capacity, timestamps.length * 2);
+				timestamps = Arrays.copyOf(timestamps, length);
+				values = Arrays.copyOf(values, length);
+			}
+		}
+	}
+
+	/**
+	 * Iterator over the columns, which is itself the data point it returns.
+	 */
+	private final class Iterator implements SeekableView, DataPoint {
+
+		/**
+		 * Index of the next data point.
+		 */
+		private int pos;
+
+		/**
+		 * Index of the current data point.
+		 */
+		private int current = -1;
+
+		@Override
+		public boolean hasNext() {
+			return pos < size;
+		}
+
+		@Override
+		public DataPoint next() {
+			if (pos < size) {
+				current = pos++;
+				return this;
+			}
+			throw new NoSuchElementException("no more data points in "
+					+ ColumnarDataPoints.this);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void seek(final long timestamp) {
+			// Binary search of the first data point at or after the timestamp.
+			int lo = pos;
+			int hi = size - 1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				if ((timestamps[mid] & TIME_MASK) < timestamp) {
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			pos = lo;
+		}
+
+		@Override
+		public int nextBatch(final long[] out_timestamps, final long[] out_values) {
+			final int n = Math.min(size - pos,
+					Math.min(out_timestamps.length, out_values.length));
+			if (n <= 0) {
+				return 0;
+			}
+			System.arraycopy(timestamps, pos, out_timestamps, 0, n);
+			System.arraycopy(values, pos, out_values, 0, n);
+			pos += n;
+			current = pos - 1;
+			return n;
+		}
+
+		@Override
+		public long timestamp() {
+			return timestamps[current] & TIME_MASK;
+		}
+
+		@Override
+		public boolean isInteger() {
+			return (timestamps[current] & FLAG_FLOAT) == 0;
+		}
+
+		@Override
+		public long longValue() {
+			if (isInteger()) {
+				return values[current];
+			}
+			throw new ClassCastException("Not a long in " + this);
+		}
+
+		@Override
+		public double doubleValue() {
+			if (!isInteger()) {
+				return Double.longBitsToDouble(values[current]);
+			}
+			throw new ClassCastException("Not a double in " + this);
+		}
+
+		@Override
+		public double toDouble() {
+			return isInteger() ? values[current] : Double.longBitsToDouble(values[current]);
+		}
+
+		public String toString() {
+			return "ColumnarDataPoints.Iterator(pos=" + pos + ", current=" + current
+					+ ", series=" + ColumnarDataPoints.this + ')';
+		}
+	}
+
+}
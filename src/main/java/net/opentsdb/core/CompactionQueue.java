@@ -243,12 +243,21 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 	 * Callback to compact a row once it's been read.
 	 * <p/>
 	 * This is used once the "get" completes, to actually compact the row and
-	 * write back the compacted version.
+	 * write back the compacted version, then roll it up if enabled.
 	 */
 	private final class CompactCB implements Callback<Object, ArrayList<KeyValue>> {
 		@Override
 		public Object call(final ArrayList<KeyValue> row) {
-			return compact(row, null);
+			final Rollups rollups = tsdb.getRollups();
+			if (rollups == null) {
+				return compact(row, null);
+			}
+			final KeyValue[] compacted = {null};
+			final Deferred<Object> result = compact(row, compacted, null);
+			if (compacted[0] != null) {
+				rollups.onCompacted(compacted[0]);
+			}
+			return result;
 		}
 
 		@Override
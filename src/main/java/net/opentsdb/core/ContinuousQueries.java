@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import net.opentsdb.stats.StatsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ContinuousQuery continuous queries} registered on a TSDB, fed by
+ * the data points written through {@link TSDB#addPoint}.
+ * <p/>
+ * The queries are in memory only: they must be registered again after a
+ * restart, and only see the data points written to this TSD.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class ContinuousQueries {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ContinuousQueries.class);
+
+	private final TSDB tsdb;
+
+	/**
+	 * Queries by ID.
+	 */
+	private final ConcurrentHashMap<String, ContinuousQuery> queries =
+			new ConcurrentHashMap<String, ContinuousQuery>();
+
+	/**
+	 * Queries by the metric they read.
+	 */
+	private final ConcurrentHashMap<String, CopyOnWriteArrayList<ContinuousQuery>> by_metric =
+			new ConcurrentHashMap<String, CopyOnWriteArrayList<ContinuousQuery>>();
+
+	private final AtomicLong next_id = new AtomicLong();
+	private final AtomicLong points_derived = new AtomicLong();
+
+	ContinuousQueries(final TSDB tsdb) {
+		this.tsdb = tsdb;
+	}
+
+	/**
+	 * Registers a query, evaluated from the next data point written.
+	 *
+	 * @param spec           The query, {@code agg:interval-downsampler:metric{tags}}.
+	 * @param retention      The number of buckets kept in memory.
+	 * @param derived_metric The metric to write closed buckets to, or
+	 *                       {@code null}.
+	 * @return The query registered.
+	 * @throws IllegalArgumentException if the query is invalid or can't be
+	 *                                  evaluated incrementally.
+	 */
+	public ContinuousQuery register(final String spec, final int retention,
+	                                final String derived_metric) {
+		return register(spec, retention, derived_metric,
+				Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Registers a query, evaluated from the next data point written.
+	 *
+	 * @param spec           The query, {@code agg:interval-downsampler:metric{tags}}.
+	 * @param retention      The number of buckets kept in memory.
+	 * @param derived_metric The metric to write closed buckets to, or
+	 *                       {@code null}.
+	 * @param derived_tags   Tags to add to those of the groups when writing
+	 *                       to the derived metric.
+	 * @return The query registered.
+	 * @throws IllegalArgumentException if the query is invalid or can't be
+	 *                                  evaluated incrementally.
+	 */
+	ContinuousQuery register(final String spec, final int retention,
+	                         final String derived_metric,
+	                         final Map<String, String> derived_tags) {
+		final ContinuousQuery query = ContinuousQuery.parse(
+				Long.toString(next_id.incrementAndGet()), spec, retention, derived_metric,
+				derived_tags);
+		synchronized (by_metric) {
+			CopyOnWriteArrayList<ContinuousQuery> list = by_metric.get(query.getMetric());
+			if (list == null) {
+				list = new CopyOnWriteArrayList<ContinuousQuery>();
+				by_metric.put(query.getMetric(), list);
+			}
+			list.add(query);
+			queries.put(query.getId(), query);
+		}
+		LOG.info("Registered " + query);
+		return query;
+	}
+
+	/**
+	 * Unregisters a query, dropping its state.
+	 *
+	 * @param id The ID of the query.
+	 * @return The query unregistered, or {@code null} if there is none with
+	 * this ID.
+	 */
+	public ContinuousQuery unregister(final String id) {
+		synchronized (by_metric) {
+			final ContinuousQuery query = queries.remove(id);
+			if (query == null) {
+				return null;
+			}
+			final List<ContinuousQuery> list = by_metric.get(query.getMetric());
+			list.remove(query);
+			if (list.isEmpty()) {
+				by_metric.remove(query.getMetric());
+			}
+			LOG.info("Unregistered " + query);
+			return query;
+		}
+	}
+
+	/**
+	 * @return the query with the given ID, or {@code null}.
+	 */
+	public ContinuousQuery get(final String id) {
+		return queries.get(id);
+	}
+
+	/**
+	 * @return all the queries registered.
+	 */
+	public Collection<ContinuousQuery> list() {
+		return new ArrayList<ContinuousQuery>(queries.values());
+	}
+
+	/**
+	 * Feeds a data point written to the queries on its metric, and writes
+	 * the buckets they closed to their derived metrics.
+	 *
+	 * @param metric    The metric.
+	 * @param timestamp The timestamp, in seconds or milliseconds.
+	 * @param value     The encoded value, as stored.
+	 * @param tags      The tags.
+	 * @param flags     The flags of the value, as stored.
+	 * @param row       The row key of the data point.
+	 */
+	void onPoint(final String metric, final long timestamp, final byte[] value,
+	             final Map<String, String> tags, final short flags,
+	             final byte[] row) {
+		if (by_metric.isEmpty()) {
+			return;
+		}
+		final List<ContinuousQuery> list = by_metric.get(metric);
+		if (list == null) {
+			return;
+		}
+		final boolean integer = (flags & Const.FLAG_FLOAT) == 0;
+		final double decoded = integer
+				? Internal.extractIntegerValue(value, 0, (byte) flags)
+				: Internal.extractFloatingPointValue(value, 0, (byte) flags);
+		// the tags of the row key identify the series, without copying them
+		final int tags_start = Const.SALT_WIDTH() + TSDB.metrics_width()
+				+ Const.TIMESTAMP_BYTES;
+		final ByteBuffer series = ByteBuffer.wrap(row, tags_start,
+				row.length - tags_start).slice();
+		for (final ContinuousQuery query : list) {
+			final List<ContinuousQuery.DerivedPoint> closed =
+					query.add(timestamp, decoded, integer, tags, series);
+			if (closed != null) {
+				for (final ContinuousQuery.DerivedPoint point : closed) {
+					write(point);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the value of a closed bucket, with a second timestamp unless the
+	 * bucket starts on a millisecond.
+	 */
+	private void write(final ContinuousQuery.DerivedPoint point) {
+		final long timestamp = point.timestamp_ms % 1000 == 0
+				? point.timestamp_ms / 1000
+				: point.timestamp_ms;
+		try {
+			if (point.value.integer) {
+				tsdb.addPoint(point.metric, timestamp, (long) point.value.value, point.tags)
+						.addErrback(new ErrBack(point));
+			} else {
+				tsdb.addPoint(point.metric, timestamp, point.value.value, point.tags)
+						.addErrback(new ErrBack(point));
+			}
+			points_derived.incrementAndGet();
+		} catch (RuntimeException e) {
+			LOG.error("Failed to write " + point.metric + ' ' + point.tags
+					+ " at " + timestamp, e);
+		}
+	}
+
+	/**
+	 * Logs the failure to write a derived data point.
+	 */
+	private static final class ErrBack implements Callback<Object, Exception> {
+		private final ContinuousQuery.DerivedPoint point;
+
+		ErrBack(final ContinuousQuery.DerivedPoint point) {
+			this.point = point;
+		}
+
+		public Object call(final Exception e) {
+			LOG.error("Failed to write " + point.metric + ' ' + point.tags
+					+ " at " + point.timestamp_ms + "ms", e);
+			return e;
+		}
+	}
+
+	public void collectStats(final StatsCollector collector) {
+		collector.record("continuous.queries", queries.size());
+		collector.record("continuous.points_derived", points_derived.get());
+	}
+
+}
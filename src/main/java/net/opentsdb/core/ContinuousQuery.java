@@ -0,0 +1,747 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Standing query evaluated incrementally as data points are written, like a
+ * materialized view of {@code agg:interval-downsampler:metric{tags}}.
+ * <p/>
+ * Each written data point matching the metric and tags is folded into the
+ * running state of its group: per bucket of the downsampling interval, one
+ * accumulator per series, so the result is available at once instead of
+ * scanning the rows.  The group value of a bucket aggregates the downsampled
+ * values of the series with data in that bucket, without interpolating the
+ * series which have none.  When the aggregator and downsampler are the same
+ * sum, min or max, the data points are folded into a single accumulator per
+ * group and bucket, as the result is the same.
+ * <p/>
+ * Only aggregators computed from a count, sum, min and max are supported,
+ * i.e. sum, min, max, avg and count.  The last {@code retention} buckets are
+ * kept.  A bucket is closed once a data point is written two intervals after
+ * its start, or when evicted; later data points for it are dropped, and if a
+ * derived metric is set, its value is written to that metric with the tags
+ * of the group.
+ * <p/>
+ * This class is thread-safe: writers only lock the group of their data
+ * point.
+ */
+public final class ContinuousQuery {
+
+	/**
+	 * Values of the 'GROUP BY' tags of the data point being added, to look
+	 * its group up, confined to the calling thread.
+	 */
+	private static final ThreadLocal<ArrayList<String>> GROUP_KEY =
+			new ThreadLocal<ArrayList<String>>() {
+				@Override
+				protected ArrayList<String> initialValue() {
+					return new ArrayList<String>();
+				}
+			};
+
+	/**
+	 * Functions which can be computed incrementally.
+	 */
+	enum Function {
+		SUM, MIN, MAX, AVG, COUNT;
+
+		/**
+		 * Returns the function of an aggregator or downsampler name.
+		 *
+		 * @throws IllegalArgumentException if the function can't be computed
+		 *                                  incrementally.
+		 */
+		static Function forName(final String name) {
+			final Function function = find(name);
+			if (function == null) {
+				throw new IllegalArgumentException("Aggregator " + name
+						+ " is not supported by continuous queries");
+			}
+			return function;
+		}
+
+		/**
+		 * @return the function of an aggregator or downsampler name, or
+		 * {@code null} if it can't be computed incrementally.
+		 */
+		static Function find(final String name) {
+			if ("sum".equals(name) || "zimsum".equals(name)) {
+				return SUM;
+			} else if ("min".equals(name) || "mimmin".equals(name)) {
+				return MIN;
+			} else if ("max".equals(name) || "mimmax".equals(name)) {
+				return MAX;
+			} else if ("avg".equals(name)) {
+				return AVG;
+			} else if ("count".equals(name)) {
+				return COUNT;
+			}
+			return null;
+		}
+	}
+
+	private final String id;
+
+	/**
+	 * The query, as registered.
+	 */
+	private final String spec;
+
+	private final String metric;
+
+	/**
+	 * Tags the series must have, with their value.
+	 */
+	private final Map<String, String> filters;
+
+	/**
+	 * 'GROUP BY' tags, with the values accepted or {@code null} for any value,
+	 * sorted by name.
+	 */
+	private final TreeMap<String, Set<String>> group_bys;
+
+	private final Function aggregator;
+	private final Function downsampler;
+	private final long interval_ms;
+
+	/**
+	 * Whether the data points of a group are accumulated together rather
+	 * than per series, see {@link #accumulatesGroups}.
+	 */
+	private final boolean group_level;
+
+	/**
+	 * Number of buckets kept in memory.
+	 */
+	private final int retention;
+
+	/**
+	 * Metric the closed buckets are written to, or {@code null}.
+	 */
+	private final String derived_metric;
+
+	/**
+	 * Tags added to those of the groups when writing to the derived metric.
+	 */
+	private final Map<String, String> derived_tags;
+
+	/**
+	 * Running state of each group, by the values of its 'GROUP BY' tags.
+	 */
+	private final ConcurrentHashMap<List<String>, Group> groups =
+			new ConcurrentHashMap<List<String>, Group>();
+
+	/**
+	 * Start of the most recent bucket, in milliseconds.  Only moves forward
+	 * while holding the lock of this query.
+	 */
+	private volatile long newest_bucket = Long.MIN_VALUE;
+
+	private final AtomicLong points_added = new AtomicLong();
+	private final AtomicLong points_dropped = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id             The ID of the query.
+	 * @param spec           The query, as registered.
+	 * @param metric         The metric to read.
+	 * @param tags           The tags, as in a {@link TSSubQuery}.
+	 * @param aggregator     The name of the aggregator.
+	 * @param interval_ms    The downsampling interval, in milliseconds.
+	 * @param downsampler    The name of the downsampler.
+	 * @param retention      The number of buckets kept in memory.
+	 * @param derived_metric The metric to write closed buckets to, or
+	 *                       {@code null}.
+	 * @param derived_tags   Tags to add to those of the groups when writing
+	 *                       to the derived metric.
+	 * @throws IllegalArgumentException if the query can't be evaluated
+	 *                                  incrementally.
+	 */
+	ContinuousQuery(final String id, final String spec, final String metric,
+	                final Map<String, String> tags, final String aggregator,
+	                final long interval_ms, final String downsampler,
+	                final int retention, final String derived_metric,
+	                final Map<String, String> derived_tags) {
+		if (interval_ms <= 0) {
+			throw new IllegalArgumentException("Continuous queries need a"
+					+ " downsampling interval: " + spec);
+		}
+		if (retention < 1) {
+			throw new IllegalArgumentException("Invalid retention " + retention);
+		}
+		if (metric.equals(derived_metric)) {
+			throw new IllegalArgumentException("The derived metric can't be the"
+					+ " metric queried: " + metric);
+		}
+		this.id = id;
+		this.spec = spec;
+		this.metric = metric;
+		this.aggregator = Function.forName(aggregator);
+		this.downsampler = Function.forName(downsampler);
+		this.interval_ms = interval_ms;
+		this.group_level = this.aggregator == this.downsampler
+				&& (this.aggregator == Function.SUM || this.aggregator == Function.MIN
+				|| this.aggregator == Function.MAX);
+		this.retention = retention;
+		this.derived_metric = derived_metric;
+		this.derived_tags = derived_tags;
+
+		filters = new HashMap<String, String>();
+		group_bys = new TreeMap<String, Set<String>>();
+		for (final Map.Entry<String, String> tag : tags.entrySet()) {
+			final String value = tag.getValue();
+			if ("*".equals(value)) {
+				group_bys.put(tag.getKey(), null);
+			} else if (value.indexOf('|') >= 0) {
+				group_bys.put(tag.getKey(),
+						new HashSet<String>(Arrays.asList(Tags.splitString(value, '|'))));
+			} else {
+				filters.put(tag.getKey(), value);
+			}
+		}
+		if (derived_metric != null && filters.isEmpty() && group_bys.isEmpty()) {
+			throw new IllegalArgumentException("The derived metric needs tags,"
+					+ " the query has none: " + spec);
+		}
+	}
+
+	/**
+	 * Parses a query of the form {@code agg:interval-downsampler:metric{tags}}.
+	 *
+	 * @param id             The ID of the query.
+	 * @param spec           The query.
+	 * @param retention      The number of buckets kept in memory.
+	 * @param derived_metric The metric to write closed buckets to, or
+	 *                       {@code null}.
+	 * @param derived_tags   Tags to add to those of the groups when writing
+	 *                       to the derived metric.
+	 * @throws IllegalArgumentException if the query is invalid or can't be
+	 *                                  evaluated incrementally.
+	 */
+	static ContinuousQuery parse(final String id, final String spec,
+	                             final int retention, final String derived_metric,
+	                             final Map<String, String> derived_tags) {
+		final String[] parts = Tags.splitString(spec, ':');
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("Invalid continuous query " + spec
+					+ ", expected agg:interval-downsampler:metric{tags}");
+		}
+		final int dash = parts[1].indexOf('-');
+		if (dash <= 0 || dash == parts[1].length() - 1) {
+			throw new IllegalArgumentException("Invalid downsampler " + parts[1]);
+		}
+		final long interval_ms = DateTime.parseDuration(parts[1].substring(0, dash));
+		final HashMap<String, String> tags = new HashMap<String, String>();
+		final String metric = Tags.parseWithMetric(parts[2], tags);
+		return new ContinuousQuery(id, spec, metric, tags, parts[0], interval_ms,
+				parts[1].substring(dash + 1), retention, derived_metric, derived_tags);
+	}
+
+	/**
+	 * Folds a written data point into the state of the query.
+	 *
+	 * @param timestamp The timestamp, in seconds or milliseconds.
+	 * @param value     The value.
+	 * @param integer   Whether the value is an integer.
+	 * @param tags      The tags of the series.
+	 * @param series    The tag UIDs of the row key of the series, which
+	 *                  identify it.
+	 * @return The closed buckets to write to the derived metric, or
+	 * {@code null}.
+	 */
+	List<DerivedPoint> add(final long timestamp, final double value,
+	                       final boolean integer, final Map<String, String> tags,
+	                       final ByteBuffer series) {
+		for (final Map.Entry<String, String> filter : filters.entrySet()) {
+			if (!filter.getValue().equals(tags.get(filter.getKey()))) {
+				return null;
+			}
+		}
+		final ArrayList<String> group_key = GROUP_KEY.get();
+		group_key.clear();
+		for (final Map.Entry<String, Set<String>> group_by : group_bys.entrySet()) {
+			final String value_of_tag = tags.get(group_by.getKey());
+			if (value_of_tag == null || (group_by.getValue() != null
+					&& !group_by.getValue().contains(value_of_tag))) {
+				return null;
+			}
+			group_key.add(value_of_tag);
+		}
+
+		final long timestamp_ms = (timestamp & Const.SECOND_MASK) != 0
+				? timestamp
+				: timestamp * 1000;
+		final long bucket = timestamp_ms - timestamp_ms % interval_ms;
+
+		while (true) {
+			Group group = groups.get(group_key);
+			if (group == null) {
+				final Group created = new Group(new ArrayList<String>(group_key));
+				group = groups.putIfAbsent(created.key, created);
+				if (group == null) {
+					group = created;
+				}
+			}
+			synchronized (group) {
+				if (group.removed) {
+					// evicted meanwhile, look it up again
+					continue;
+				}
+				// checked while holding the group, which the buckets are closed under
+				final long newest = newest_bucket;
+				if (newest != Long.MIN_VALUE && bucket < closedBefore(newest)) {
+					// closed or evicted
+					points_dropped.incrementAndGet();
+					return null;
+				}
+				group.add(bucket, series, value, integer);
+			}
+			break;
+		}
+		points_added.incrementAndGet();
+
+		if (bucket > newest_bucket) {
+			synchronized (this) {
+				if (bucket > newest_bucket) {
+					final long previous = newest_bucket;
+					newest_bucket = bucket;
+					if (previous != Long.MIN_VALUE) {
+						return advance(previous);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Closes and evicts buckets once the newest bucket moved forward.
+	 *
+	 * @param previous The previous newest bucket.
+	 * @return The closed buckets to write to the derived metric, or
+	 * {@code null}.
+	 */
+	private List<DerivedPoint> advance(final long previous) {
+		final long evicted_before = newest_bucket - (retention - 1) * interval_ms;
+		final ArrayList<DerivedPoint> closed = derived_metric != null
+				? new ArrayList<DerivedPoint>()
+				: null;
+		final Iterator<Group> it = groups.values().iterator();
+		while (it.hasNext()) {
+			final Group group = it.next();
+			synchronized (group) {
+				if (closed != null) {
+					for (final Map.Entry<Long, Bucket> bucket : group.buckets.subMap(
+							closedBefore(previous), closedBefore(newest_bucket)).entrySet()) {
+						closed.add(new DerivedPoint(derived_metric, bucket.getKey(),
+								bucket.getValue().value(), group.derived_tags));
+					}
+				}
+				group.buckets.headMap(evicted_before).clear();
+				if (group.buckets.isEmpty()) {
+					group.removed = true;
+					it.remove();
+				}
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * Returns the start of the first bucket still open when the given bucket
+	 * is the newest one: the previous bucket, unless evicted already.
+	 */
+	private long closedBefore(final long newest) {
+		return newest - Math.min(1, retention - 1) * interval_ms;
+	}
+
+	/**
+	 * Returns the time before which all the buckets are closed, their values
+	 * written to the derived metric if any.
+	 *
+	 * @return The start of the oldest open bucket, in milliseconds, or
+	 * {@code Long.MIN_VALUE} if no data point was added yet.
+	 */
+	synchronized long closedBefore() {
+		return newest_bucket == Long.MIN_VALUE
+				? Long.MIN_VALUE
+				: closedBefore(newest_bucket);
+	}
+
+	/**
+	 * Returns the current result of the query.
+	 *
+	 * @param start_ms The start of the time range, in milliseconds, inclusive.
+	 * @param end_ms   The end of the time range, in milliseconds, inclusive.
+	 * @return One series per group with data in the time range.
+	 */
+	public synchronized DataPoints[] getResults(final long start_ms,
+	                                            final long end_ms) {
+		final ArrayList<DataPoints> results = new ArrayList<DataPoints>(groups.size());
+		final List<String> aggregated_tags = Collections.emptyList();
+		for (final Group group : groups.values()) {
+			final MutableDataPoint[] dps;
+			synchronized (group) {
+				final Map<Long, Bucket> buckets = group.buckets.subMap(
+						start_ms - start_ms % interval_ms, true, end_ms, true);
+				if (buckets.isEmpty()) {
+					continue;
+				}
+				dps = new MutableDataPoint[buckets.size()];
+				int i = 0;
+				for (final Map.Entry<Long, Bucket> bucket : buckets.entrySet()) {
+					dps[i++] = bucket.getValue().value().toDataPoint(bucket.getKey());
+				}
+			}
+			results.add(new ViewDataPoints(metric,
+					new HashMap<String, String>(group.tags), aggregated_tags, dps));
+		}
+		return results.toArray(new DataPoints[results.size()]);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getSpec() {
+		return spec;
+	}
+
+	public String getMetric() {
+		return metric;
+	}
+
+	public String getDerivedMetric() {
+		return derived_metric;
+	}
+
+	public int getRetention() {
+		return retention;
+	}
+
+	public long getInterval() {
+		return interval_ms;
+	}
+
+	Function aggregator() {
+		return aggregator;
+	}
+
+	Function downsampler() {
+		return downsampler;
+	}
+
+	/**
+	 * Tells whether the data points of each group are accumulated together,
+	 * without keeping the state of its series: when the aggregator and
+	 * downsampler are the same sum, min or max, which combine directly.
+	 */
+	boolean accumulatesGroups() {
+		return group_level;
+	}
+
+	/**
+	 * @return the names of the 'GROUP BY' tags.
+	 */
+	Set<String> groupByTags() {
+		return group_bys.keySet();
+	}
+
+	/**
+	 * Tells whether the query only reads some values of its tags, rather than
+	 * grouping by any value.
+	 */
+	boolean filtersTags() {
+		if (!filters.isEmpty()) {
+			return true;
+		}
+		for (final Set<String> values : group_bys.values()) {
+			if (values != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a summary of the query and its state, to list queries.
+	 */
+	public synchronized Map<String, Object> describe() {
+		final TreeMap<String, Object> map = new TreeMap<String, Object>();
+		map.put("id", id);
+		map.put("query", spec);
+		map.put("derivedMetric", derived_metric);
+		map.put("retention", retention);
+		map.put("groups", groups.size());
+		map.put("pointsAdded", points_added.get());
+		map.put("pointsDropped", points_dropped.get());
+		map.put("newestBucket", newest_bucket == Long.MIN_VALUE ? null : newest_bucket);
+		return map;
+	}
+
+	public String toString() {
+		return "ContinuousQuery(id=" + id + ", spec=" + spec
+				+ ", derived_metric=" + derived_metric + ", retention=" + retention + ')';
+	}
+
+	/**
+	 * Count, sum, min and max of values.
+	 */
+	private static final class Accumulator {
+		long count;
+		double sum;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * Whether all the values were integers.
+		 */
+		boolean integer = true;
+
+		void add(final double value, final boolean integer_value) {
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			integer &= integer_value;
+		}
+
+		/**
+		 * @return the value of the function, computed from the values added.
+		 */
+		Value value(final Function function) {
+			switch (function) {
+				case SUM:
+					return new Value(sum, integer);
+				case MIN:
+					return new Value(min, integer);
+				case MAX:
+					return new Value(max, integer);
+				case AVG:
+					return new Value(sum / count, false);
+				default:
+					return new Value(count, true);
+			}
+		}
+	}
+
+	/**
+	 * A computed value, integer if all the values it was computed from were.
+	 */
+	static final class Value {
+		final double value;
+		final boolean integer;
+
+		Value(final double value, final boolean integer) {
+			this.value = value;
+			this.integer = integer;
+		}
+
+		MutableDataPoint toDataPoint(final long timestamp) {
+			return integer
+					? MutableDataPoint.ofLongValue(timestamp, (long) value)
+					: MutableDataPoint.ofDoubleValue(timestamp, value);
+		}
+	}
+
+	/**
+	 * The series of a group, downsampled in one bucket.
+	 */
+	private final class Bucket {
+
+		/**
+		 * Accumulator of the downsampler, by the tag UIDs of each series, or
+		 * {@code null} if the group is accumulated as a whole.
+		 */
+		private final HashMap<ByteBuffer, Accumulator> series = group_level
+				? null
+				: new HashMap<ByteBuffer, Accumulator>();
+
+		/**
+		 * Accumulator of all the data points of the group, if its series
+		 * aren't accumulated separately.
+		 */
+		private final Accumulator whole = group_level ? new Accumulator() : null;
+
+		void add(final ByteBuffer series_key, final double value,
+		         final boolean integer) {
+			if (group_level) {
+				whole.add(value, integer);
+				return;
+			}
+			Accumulator accumulator = series.get(series_key);
+			if (accumulator == null) {
+				accumulator = new Accumulator();
+				series.put(series_key, accumulator);
+			}
+			accumulator.add(value, integer);
+		}
+
+		/**
+		 * @return the value of the group: the aggregate of the downsampled
+		 * values of its series.
+		 */
+		Value value() {
+			if (group_level) {
+				return whole.value(aggregator);
+			}
+			final Accumulator group = new Accumulator();
+			for (final Accumulator accumulator : series.values()) {
+				final Value downsampled = accumulator.value(downsampler);
+				group.add(downsampled.value, downsampled.integer);
+			}
+			return group.value(aggregator);
+		}
+	}
+
+	/**
+	 * Running state of a group.  Guarded by its own lock.
+	 */
+	private final class Group {
+
+		/**
+		 * Values of the 'GROUP BY' tags of the group.
+		 */
+		private final List<String> key;
+
+		private final Map<String, String> tags;
+
+		/**
+		 * Tags of the data points written to the derived metric.
+		 */
+		private final Map<String, String> derived_tags;
+
+		/**
+		 * Buckets, by start time in milliseconds.
+		 */
+		private final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+
+		/**
+		 * Whether the group was evicted, to add its data points to a new one.
+		 */
+		private boolean removed;
+
+		Group(final List<String> key) {
+			this.key = key;
+			tags = new HashMap<String, String>(filters);
+			int i = 0;
+			for (final String name : group_bys.keySet()) {
+				tags.put(name, key.get(i++));
+			}
+			if (ContinuousQuery.this.derived_tags.isEmpty()) {
+				derived_tags = tags;
+			} else {
+				derived_tags = new HashMap<String, String>(tags);
+				derived_tags.putAll(ContinuousQuery.this.derived_tags);
+			}
+		}
+
+		void add(final long bucket_start, final ByteBuffer series,
+		         final double value, final boolean integer) {
+			Bucket bucket = buckets.get(bucket_start);
+			if (bucket == null) {
+				bucket = new Bucket();
+				buckets.put(bucket_start, bucket);
+			}
+			bucket.add(series, value, integer);
+		}
+	}
+
+	/**
+	 * Value of a closed bucket, to write to the derived metric.
+	 */
+	static final class DerivedPoint {
+		final String metric;
+		final long timestamp_ms;
+		final Value value;
+		final Map<String, String> tags;
+
+		DerivedPoint(final String metric, final long timestamp_ms,
+		             final Value value, final Map<String, String> tags) {
+			this.metric = metric;
+			this.timestamp_ms = timestamp_ms;
+			this.value = value;
+			this.tags = tags;
+		}
+	}
+
+	/**
+	 * Result of a continuous query for one group, with no row behind it.
+	 */
+	private static final class ViewDataPoints extends PostAggregatedDataPoints {
+		private final String metric;
+		private final Map<String, String> tags;
+		private final List<String> aggregated_tags;
+
+		ViewDataPoints(final String metric, final Map<String, String> tags,
+		               final List<String> aggregated_tags,
+		               final MutableDataPoint[] dps) {
+			super(null, dps);
+			this.metric = metric;
+			this.tags = tags;
+			this.aggregated_tags = aggregated_tags;
+		}
+
+		@Override
+		public String metricName() {
+			return metric;
+		}
+
+		@Override
+		public Deferred<String> metricNameAsync() {
+			return Deferred.fromResult(metric);
+		}
+
+		@Override
+		public Map<String, String> getTags() {
+			return tags;
+		}
+
+		@Override
+		public Deferred<Map<String, String>> getTagsAsync() {
+			return Deferred.fromResult(tags);
+		}
+
+		@Override
+		public List<String> getAggregatedTags() {
+			return aggregated_tags;
+		}
+
+		@Override
+		public Deferred<List<String>> getAggregatedTagsAsync() {
+			return Deferred.fromResult(aggregated_tags);
+		}
+
+		@Override
+		public List<String> getTSUIDs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public List<Annotation> getAnnotations() {
+			return null;
+		}
+	}
+
+}
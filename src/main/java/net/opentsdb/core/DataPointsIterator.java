@@ -62,6 +62,10 @@ final class DataPointsIterator implements SeekableView, DataPoint {
 	// SeekableView interface //
 	// ---------------------- //
 
+	public int nextBatch(final long[] timestamps, final long[] values) {
+		return BatchReader.copyPerPoint(this, timestamps, values);
+	}
+
 	public void seek(final long timestamp) {
 		if ((timestamp & 0xFFFFFFFF00000000L) != 0) {  // negative or not 32 bits
 			throw new IllegalArgumentException("invalid timestamp: " + timestamp);
@@ -12,18 +12,34 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 
 /**
  * Iterator that downsamples data points using an {@link Aggregator}.
+ * <p/>
+ * Several aggregators can be computed in the same pass over an interval: the
+ * first one gives the value of the data point, the others are available from
+ * {@link #doubleValue(int)}.
+ * <p/>
+ * Given {@link RateOptions}, the downsampler returns the rate of change of the
+ * downsampled values instead, as a {@link RateSpan} reading it would, without
+ * the extra stage.
  */
 public class Downsampler implements SeekableView, DataPoint {
 
 	/**
-	 * Function to use for downsampling.
+	 * Only one out of this many calls to {@link #next} is timed, to keep
+	 * {@link System#nanoTime} off the hot path.  Must be a power of 2.
 	 */
-	private final Aggregator downsampler;
+	private static final int TIMING_SAMPLE_RATE = 64;
+
+	/**
+	 * Functions to use for downsampling, the first one gives the value of the
+	 * data points.
+	 */
+	private final Aggregator[] downsamplers;
 	/**
 	 * Iterator to iterate the values of the current interval.
 	 */
@@ -35,23 +51,62 @@ public class Downsampler implements SeekableView, DataPoint {
 	private final boolean isCounter;
 
 	/**
-	 * All values returned by {@link #next()} must be greater than base_value. Default = 0;
+	 * All values returned by {@link #next()} must be greater than base_value,
+	 * one per downsampler. Default = 0;
+	 */
+	private final double[] base_values;
+
+	/**
+	 * Values of the previous interval, one per downsampler, before base
+	 * lifting, to detect the drops of counters.
+	 */
+	private final double[] previous_values;
+
+	/**
+	 * Values of the current interval, one per downsampler, before base lifting.
+	 */
+	private final double[] raw_values;
+
+	/**
+	 * Values of the current interval, one per downsampler, after base lifting
+	 * and, if computing rates, rates of those.
 	 */
-	private double base_value;
+	private final double[] lifted_values;
 
 	/**
-	 * The last value returned by the {@link #next()} method
+	 * Options to compute the rate of the downsampled values, or {@code null} to
+	 * return the values themselves.
 	 */
-	private Double last_value;
+	private final RateOptions rate_options;
+
+	/**
+	 * When computing rates, the timestamp and the values, one per
+	 * downsampler, of the previous interval.  Rates of the first interval
+	 * are computed against zero values at time zero, like {@link RateSpan}.
+	 */
+	private long rate_timestamp;
+	private final double[] rate_values;
+
+	/**
+	 * Values of the current interval when there are several downsamplers, so
+	 * that the source is read only once.  {@code null} otherwise.
+	 */
+	private final ReplayableValues replay;
 
 	/**
 	 * Last normalized timestamp
 	 */
 	private long timestamp;
+
+	/**
+	 * Number of calls to {@link #next}, used to sample the timing.
+	 */
+	private int calls;
+
 	/**
-	 * Last value as a double
+	 * Estimated time spent downsampling, in nanoseconds.
 	 */
-	private double value;
+	private long totalDownsampleTime = 0;
 
 	/**
 	 * Ctor.
@@ -83,39 +138,143 @@ public class Downsampler implements SeekableView, DataPoint {
 	Downsampler(final SeekableView source,
 	            final long interval_ms,
 	            final Aggregator downsampler, boolean isCounter) {
+		this(source, interval_ms, new Aggregator[]{downsampler}, isCounter);
+	}
+
+	/**
+	 * Ctor.
+	 *
+	 * @param source       The iterator to access the underlying data.
+	 * @param interval_ms  The interval in milli seconds wanted between each data
+	 *                     point.
+	 * @param downsamplers The downsampling functions to compute for each
+	 *                     interval.  The first one gives the value of the data
+	 *                     points.
+	 * @param isCounter    set to true if we expect source to represent a monotonically
+	 *                     increasing function.  The drops of each downsampler are
+	 *                     adjusted separately, as if computed on its own.
+	 * @throws IllegalArgumentException if no downsampler is given.
+	 */
+	Downsampler(final SeekableView source,
+	            final long interval_ms,
+	            final Aggregator[] downsamplers, boolean isCounter) {
+		this(source, interval_ms, downsamplers, isCounter, null);
+	}
+
+	/**
+	 * Ctor.
+	 *
+	 * @param source       The iterator to access the underlying data.
+	 * @param interval_ms  The interval in milli seconds wanted between each data
+	 *                     point.
+	 * @param downsampler  The downsampling function to use.
+	 * @param isCounter    set to true if we expect source to represent a monotonically
+	 *                     increasing function, whose drops are then adjusted.
+	 * @param rate_options If not {@code null}, the rates of the downsampled
+	 *                     values are returned instead of the values.
+	 */
+	Downsampler(final SeekableView source,
+	            final long interval_ms,
+	            final Aggregator downsampler, boolean isCounter,
+	            final RateOptions rate_options) {
+		this(source, interval_ms, new Aggregator[]{downsampler}, isCounter,
+				rate_options);
+	}
+
+	/**
+	 * Ctor.
+	 *
+	 * @param source       The iterator to access the underlying data.
+	 * @param interval_ms  The interval in milli seconds wanted between each data
+	 *                     point.
+	 * @param downsamplers The downsampling functions to compute for each
+	 *                     interval.  The first one gives the value of the data
+	 *                     points.
+	 * @param isCounter    set to true if we expect source to represent a monotonically
+	 *                     increasing function.  The drops of each downsampler are
+	 *                     adjusted separately, as if computed on its own.
+	 * @param rate_options If not {@code null}, the rates of the downsampled
+	 *                     values are returned instead of the values.
+	 * @throws IllegalArgumentException if no downsampler is given.
+	 */
+	Downsampler(final SeekableView source,
+	            final long interval_ms,
+	            final Aggregator[] downsamplers, boolean isCounter,
+	            final RateOptions rate_options) {
+		if (downsamplers.length == 0) {
+			throw new IllegalArgumentException("At least one downsampler is needed");
+		}
 		this.values_in_interval = new ValuesInInterval(source, interval_ms);
-		this.downsampler = downsampler;
+		this.downsamplers = downsamplers;
 		this.isCounter = isCounter;
+		this.raw_values = new double[downsamplers.length];
+		this.base_values = new double[downsamplers.length];
+		this.previous_values = new double[downsamplers.length];
+		this.lifted_values = new double[downsamplers.length];
+		this.replay = downsamplers.length > 1 ? new ReplayableValues() : null;
+		this.rate_options = rate_options;
+		this.rate_values = rate_options != null ? new double[downsamplers.length] : null;
 	}
 
 	// ------------------ //
 	// Iterator interface //
 	// ------------------ //
 
-	long totalDownsampleTime = 0;
-
 	public boolean hasNext() {
-		long hasNextStartTime = System.nanoTime();
-		boolean b = values_in_interval.hasNextValue();
-		totalDownsampleTime += System.nanoTime() - hasNextStartTime;
-		return b;
+		return values_in_interval.hasNextValue();
 	}
 
+	/**
+	 * Returns the estimated time spent in {@link #next}, in nanoseconds.
+	 */
 	public long totalTime() {
 		return totalDownsampleTime;
 	}
 
 	public DataPoint next() {
-		long hasNextStartTime = System.nanoTime();
-		if (hasNext()) {
-			last_value = value;
-			value = downsampler.runDouble(values_in_interval);
-			timestamp = values_in_interval.getIntervalTimestamp();
-			values_in_interval.moveToNextInterval();
-			totalDownsampleTime += System.nanoTime() - hasNextStartTime;
-			return this;
+		if ((++calls & (TIMING_SAMPLE_RATE - 1)) != 0) {
+			return moveToNextInterval();
 		}
-		throw new NoSuchElementException("no more data points in " + this);
+		final long start = System.nanoTime();
+		final DataPoint dp = moveToNextInterval();
+		totalDownsampleTime += (System.nanoTime() - start) * TIMING_SAMPLE_RATE;
+		return dp;
+	}
+
+	private DataPoint moveToNextInterval() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("no more data points in " + this);
+		}
+		if (isCounter) {
+			System.arraycopy(raw_values, 0, previous_values, 0, raw_values.length);
+		}
+		if (replay == null) {
+			raw_values[0] = downsamplers[0].runDouble(values_in_interval);
+		} else {
+			replay.fill(values_in_interval);
+			for (int i = 0; i < downsamplers.length; i++) {
+				replay.rewind();
+				raw_values[i] = downsamplers[i].runDouble(replay);
+			}
+		}
+		timestamp = values_in_interval.getIntervalTimestamp();
+		values_in_interval.moveToNextInterval();
+		for (int i = 0; i < raw_values.length; i++) {
+			if (isCounter && previous_values[i] > raw_values[i]) {
+				base_values[i] += previous_values[i];
+			}
+			lifted_values[i] = isCounter ? base_values[i] + raw_values[i] : raw_values[i];
+		}
+		if (rate_options != null) {
+			for (int i = 0; i < lifted_values.length; i++) {
+				final double value = lifted_values[i];
+				lifted_values[i] = RateSpan.rate(rate_options, rate_timestamp,
+						rate_values[i], timestamp, value);
+				rate_values[i] = value;
+			}
+			rate_timestamp = timestamp;
+		}
+		return this;
 	}
 
 	public void remove() {
@@ -128,6 +287,22 @@ public class Downsampler implements SeekableView, DataPoint {
 
 	public void seek(final long timestamp) {
 		values_in_interval.seekInterval(timestamp);
+		if (rate_options != null) {
+			rate_timestamp = 0;
+			Arrays.fill(rate_values, 0);
+		}
+	}
+
+	public int nextBatch(final long[] timestamps, final long[] values) {
+		final int max = Math.min(timestamps.length, values.length);
+		int n = 0;
+		while (n < max && hasNext()) {
+			next();
+			timestamps[n] = timestamp | FLAG_FLOAT;
+			values[n] = Double.doubleToRawLongBits(lifted_values[0]);
+			n++;
+		}
+		return n;
 	}
 
 	@Override
@@ -135,9 +310,10 @@ public class Downsampler implements SeekableView, DataPoint {
 		final StringBuilder buf = new StringBuilder();
 		buf.append("Downsampler: ")
 				.append("interval_ms=").append(values_in_interval.interval_ms)
-				.append(", downsampler=").append(downsampler)
+				.append(", downsamplers=").append(Arrays.toString(downsamplers))
+				.append(", rate_options=").append(rate_options)
 				.append(", current data=(timestamp=").append(timestamp)
-				.append(", value=").append(value)
+				.append(", values=").append(Arrays.toString(lifted_values))
 				.append("), values_in_interval=").append(values_in_interval);
 		return buf.toString();
 	}
@@ -155,24 +331,66 @@ public class Downsampler implements SeekableView, DataPoint {
 	}
 
 	public double doubleValue() {
-		return base_lift();
+		return lifted_values[0];
 	}
 
 	public double toDouble() {
-		return base_lift();
+		return lifted_values[0];
 	}
 
-	public double base_lift() {
-		if (isCounter) {
-			if (last_value > value) {
-				base_value += last_value;
+	/**
+	 * Returns the value of the current interval for one of the downsamplers.
+	 *
+	 * @param i The index of the downsampler given to the constructor.
+	 * @throws ArrayIndexOutOfBoundsException if there is no such downsampler.
+	 */
+	public double doubleValue(final int i) {
+		return lifted_values[i];
+	}
+
+	/**
+	 * Returns the number of values computed for each interval.
+	 */
+	public int numValues() {
+		return lifted_values.length;
+	}
+
+	/**
+	 * Values of an interval buffered so that they can be fed to several
+	 * aggregators.
+	 */
+	private static final class ReplayableValues implements Aggregator.Doubles {
+		private double[] values = new double[16];
+		private int size;
+		private int pos;
+
+		void fill(final Aggregator.Doubles source) {
+			size = 0;
+			while (source.hasNextValue()) {
+				if (size == values.length) {
+					values = Arrays.copyOf(values, size * 2);
+				}
+				values[size++] = source.nextDoubleValue();
 			}
-			return base_value + value;
-		} else {
-			return value;
 		}
-	}
 
+		void rewind() {
+			pos = 0;
+		}
+
+		@Override
+		public boolean hasNextValue() {
+			return pos < size;
+		}
+
+		@Override
+		public double nextDoubleValue() {
+			if (pos < size) {
+				return values[pos++];
+			}
+			throw new NoSuchElementException("no more values");
+		}
+	}
 
 	/**
 	 * Iterates source values for an interval.
@@ -180,9 +398,9 @@ public class Downsampler implements SeekableView, DataPoint {
 	private static class ValuesInInterval implements Aggregator.Doubles {
 
 		/**
-		 * The iterator of original source values.
+		 * The original source values, read one batch at a time.
 		 */
-		private final SeekableView source;
+		private final BatchReader source;
 		/**
 		 * The sampling interval in milliseconds.
 		 */
@@ -195,10 +413,6 @@ public class Downsampler implements SeekableView, DataPoint {
 		 * True if the last value was successfully extracted from the source.
 		 */
 		private boolean has_next_value_from_source = false;
-		/**
-		 * The last data point extracted from the source.
-		 */
-		private DataPoint next_dp = null;
 
 		/**
 		 * True if it is initialized for iterating intervals.
@@ -212,7 +426,7 @@ public class Downsampler implements SeekableView, DataPoint {
 		 * @param interval_ms Downsampling interval.
 		 */
 		ValuesInInterval(final SeekableView source, final long interval_ms) {
-			this.source = source;
+			this.source = new BatchReader(source);
 			this.interval_ms = interval_ms;
 			this.timestamp_end_interval = interval_ms;
 		}
@@ -237,7 +451,7 @@ public class Downsampler implements SeekableView, DataPoint {
 		private void moveToNextValue() {
 			if (source.hasNext()) {
 				has_next_value_from_source = true;
-				next_dp = source.next();
+				source.next();
 			} else {
 				has_next_value_from_source = false;
 			}
@@ -251,7 +465,7 @@ public class Downsampler implements SeekableView, DataPoint {
 		private void resetEndOfInterval() {
 			if (has_next_value_from_source) {
 				// Sets the end of the interval of the timestamp.
-				timestamp_end_interval = alignTimestamp(next_dp.timestamp()) +
+				timestamp_end_interval = alignTimestamp(source.timestamp()) +
 						interval_ms;
 			}
 		}
@@ -301,13 +515,13 @@ public class Downsampler implements SeekableView, DataPoint {
 		public boolean hasNextValue() {
 			initializeIfNotDone();
 			return has_next_value_from_source &&
-					next_dp.timestamp() < timestamp_end_interval;
+					source.timestamp() < timestamp_end_interval;
 		}
 
 		@Override
 		public double nextDoubleValue() {
 			if (hasNextValue()) {
-				double value = next_dp.toDouble();
+				double value = source.toDouble();
 				moveToNextValue();
 				return value;
 			}
@@ -324,7 +538,8 @@ public class Downsampler implements SeekableView, DataPoint {
 					.append(", has_next_value_from_source=")
 					.append(has_next_value_from_source);
 			if (has_next_value_from_source) {
-				buf.append(", nextValue=(").append(next_dp).append(')');
+				buf.append(", nextValue=(timestamp=").append(source.timestamp())
+						.append(", value=").append(source.toDouble()).append(')');
 			}
 			buf.append(", source=").append(source);
 			return buf.toString();
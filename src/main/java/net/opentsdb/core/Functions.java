@@ -4,15 +4,20 @@
  */
 package net.opentsdb.core;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import com.google.common.collect.Lists;
-import com.google.common.math.DoubleMath;
 import net.opentsdb.tsd.expression.Expression;
+import net.opentsdb.tsd.expression.StreamingExpression;
 import org.apache.log4j.Logger;
 
 public class Functions {
@@ -56,42 +61,21 @@ public class Functions {
 				size = size + results.length;
 			}
 
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
+			SeekableView[] views = new SeekableView[size];
 			int ix = 0;
 			for (DataPoints[] results : queryResults) {
 				for (DataPoints dpoints : results) {
-					List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-					for (DataPoint point : dpoints) {
-						mutablePoints.add(point.isInteger() ?
-								MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-								: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
-					}
-					seekablePoints[ix++] = new PostAggregatedDataPoints(dpoints,
-							mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
+					views[ix++] = ColumnarDataPoints.of(dpoints).iterator();
 				}
 			}
 
-			SeekableView[] views = new SeekableView[size];
-			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
-			}
-
 			SeekableView view = new AggregationIterator(views,
 					data_query.startTime(), data_query.endTime(),
 					new Aggregators.MovingAverage(Aggregators.Interpolation.LERP, "movingAverage", numPoints, isTimeUnit),
 					Aggregators.Interpolation.LERP, false);
 
-			List<DataPoint> points = Lists.newArrayList();
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				points.add(mdp.isInteger() ?
-						MutableDataPoint.ofLongValue(mdp.timestamp(), mdp.longValue()) :
-						MutableDataPoint.ofDoubleValue(mdp.timestamp(), mdp.doubleValue()));
-			}
-
 			if (queryResults.size() > 0 && queryResults.get(0).length > 0) {
-				return new DataPoints[]{new PostAggregatedDataPoints(queryResults.get(0)[0],
-						points.toArray(new DataPoint[points.size()]))};
+				return new DataPoints[]{ColumnarDataPoints.collect(queryResults.get(0)[0], view)};
 			} else {
 				return new DataPoints[]{};
 			}
@@ -138,114 +122,7 @@ public class Functions {
 		@Override
 		public DataPoints[] evaluate(TSQuery query, List<DataPoints[]> queryResults,
 		                             List<String> params) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
-			}
-
-			if (params == null || params.isEmpty()) {
-				throw new NullPointerException("Need aggregation window for moving average");
-			}
-
-			String param = params.get(0);
-			if (param == null || param.length() == 0) {
-				throw new NullPointerException("Invalid window='" + param + "'");
-			}
-
-			int k = Integer.parseInt(param.trim());
-
-			int size = 0;
-			for (DataPoints[] results : queryResults) {
-				size = size + results.length;
-			}
-
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
-			int ix = 0;
-			for (DataPoints[] results : queryResults) {
-				for (DataPoints dpoints : results) {
-					List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-					for (DataPoint point : dpoints) {
-						mutablePoints.add(point.isInteger() ?
-								MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-								: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
-					}
-					seekablePoints[ix++] = new PostAggregatedDataPoints(dpoints,
-							mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-				}
-			}
-
-			if (k >= size) {
-				return seekablePoints;
-			}
-
-			SeekableView[] views = new SeekableView[size];
-			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
-			}
-
-			Aggregators.MaxCacheAggregator aggregator = new Aggregators.MaxCacheAggregator(
-					Aggregators.Interpolation.LERP, "maxCache", size, query.startTime(), query.endTime());
-
-			SeekableView view = (new AggregationIterator(views,
-					query.startTime(), query.endTime(),
-					aggregator, Aggregators.Interpolation.LERP, false));
-
-			// slurp all the points
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				Object o = mdp.isInteger() ? mdp.longValue() : mdp.doubleValue();
-			}
-
-			long[] maxLongs = aggregator.getLongMaxes();
-			double[] maxDoubles = aggregator.getDoubleMaxes();
-			Entry[] maxesPerTS = new Entry[size];
-			if (aggregator.hasDoubles() && aggregator.hasLongs()) {
-				for (int i = 0; i < size; i++) {
-					maxesPerTS[i] = new Entry(Math.max((double) maxLongs[i], maxDoubles[i]), i);
-				}
-			} else if (aggregator.hasLongs() && !aggregator.hasDoubles()) {
-				for (int i = 0; i < size; i++) {
-					maxesPerTS[i] = new Entry((double) maxLongs[i], i);
-				}
-			} else if (aggregator.hasDoubles() && !aggregator.hasLongs()) {
-				for (int i = 0; i < size; i++) {
-					maxesPerTS[i] = new Entry(maxDoubles[i], i);
-				}
-			}
-
-			logger.info("Before Sorting: " + Arrays.toString(maxesPerTS));
-
-			Arrays.sort(maxesPerTS, new Comparator<Entry>() {
-				@Override
-				public int compare(Entry o1, Entry o2) {
-					// we want in descending order
-					return -1 * Double.compare(o1.val, o2.val);
-				}
-			});
-
-			logger.info("After Sorting: " + Arrays.toString(maxesPerTS));
-
-			DataPoints[] results = new DataPoints[k];
-			for (int i = 0; i < k; i++) {
-				results[i] = seekablePoints[maxesPerTS[i].pos];
-			}
-
-			return results;
-		}
-
-		class Entry {
-			public Entry(double val, int pos) {
-				this.val = val;
-				this.pos = pos;
-			}
-
-			double val;
-			int pos;
-
-			@Override
-			public String toString() {
-				return "{" + this.val + "," + this.pos + "}";
-			}
-
+			return highest(query, queryResults, params, false);
 		}
 
 		@Override
@@ -258,187 +135,415 @@ public class Functions {
 		@Override
 		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults,
 		                             List<String> params) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
-			}
+			return highest(data_query, queryResults, params, true);
+		}
 
-			if (params == null || params.isEmpty()) {
-				throw new NullPointerException("Need aggregation window for moving average");
-			}
+		@Override
+		public String writeStringField(List<String> queryParams, String innerExpression) {
+			return "highestCurrent(" + innerExpression + ")";
+		}
+	}
 
-			String param = params.get(0);
-			if (param == null || param.length() == 0) {
-				throw new NullPointerException("Invalid window='" + param + "'");
-			}
+	/**
+	 * Selects the series with the highest max or current value, in descending
+	 * order of that value.
+	 * <p/>
+	 * Each series is read once to compute its score, and only the best ones
+	 * are kept in a heap bounded by the number of series wanted, so only
+	 * those are copied into the result.
+	 *
+	 * @param query        The query, giving the time range to look at.
+	 * @param queryResults The series to choose from.
+	 * @param params       The number of series wanted.
+	 * @param latest       Whether to rank series by their latest value in the
+	 *                     time range rather than by their maximum.
+	 */
+	private static DataPoints[] highest(final TSQuery query,
+	                                    final List<DataPoints[]> queryResults,
+	                                    final List<String> params,
+	                                    final boolean latest) {
+		if (queryResults == null || queryResults.isEmpty()) {
+			throw new NullPointerException("Query results cannot be empty");
+		}
 
-			int k = Integer.parseInt(param.trim());
+		if (params == null || params.isEmpty()) {
+			throw new NullPointerException("Need number of series to return");
+		}
 
-			int size = 0;
-			for (DataPoints[] results : queryResults) {
-				size = size + results.length;
-			}
+		String param = params.get(0);
+		if (param == null || param.length() == 0) {
+			throw new NullPointerException("Invalid count='" + param + "'");
+		}
 
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
-			int ix = 0;
-			for (DataPoints[] results : queryResults) {
-				for (DataPoints dpoints : results) {
-					List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-					for (DataPoint point : dpoints) {
-						mutablePoints.add(point.isInteger() ?
-								MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-								: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
-					}
-					seekablePoints[ix++] = new PostAggregatedDataPoints(dpoints,
-							mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-				}
-			}
+		int k = Integer.parseInt(param.trim());
 
-			if (k >= size) {
-				return seekablePoints;
+		int size = 0;
+		for (DataPoints[] results : queryResults) {
+			size = size + results.length;
+		}
+		final DataPoints[] series = new DataPoints[size];
+		int ix = 0;
+		for (DataPoints[] results : queryResults) {
+			for (DataPoints dpoints : results) {
+				series[ix++] = dpoints;
 			}
+		}
 
-			SeekableView[] views = new SeekableView[size];
+		if (k >= size) {
+			final DataPoints[] results = new DataPoints[size];
 			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
+				results[i] = materialize(series[i]);
 			}
+			return results;
+		}
 
-			Aggregators.MaxLatestAggregator aggregator = new
-					Aggregators.MaxLatestAggregator(Aggregators.Interpolation.LERP,
-					"maxLatest", size, data_query.startTime(), data_query.endTime());
-
-			SeekableView view = (new AggregationIterator(views,
-					data_query.startTime(), data_query.endTime(),
-					aggregator, Aggregators.Interpolation.LERP, false));
+		final int[] winners = topK(series, k, query.startTime(), query.endTime(),
+				latest);
+		final DataPoints[] results = new DataPoints[winners.length];
+		for (int i = 0; i < winners.length; i++) {
+			results[i] = materialize(series[winners[i]]);
+		}
+		return results;
+	}
 
-			// slurp all the points
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				Object o = mdp.isInteger() ? mdp.longValue() : mdp.doubleValue();
+	/**
+	 * Finds the {@code k} series with the highest score, the score of a series
+	 * being its maximum or latest value in the time range.  Series without
+	 * any data point in the range score lowest.
+	 *
+	 * @return The indexes of the series found, by descending score.  On a tie
+	 * the first series wins.
+	 */
+	static int[] topK(final DataPoints[] series, final int k,
+	                  final long start_time, final long end_time,
+	                  final boolean latest) {
+		// Min-heap of the best series seen so far, the worst one at the root.
+		final double[] heap_scores = new double[k];
+		final int[] heap_series = new int[k];
+		int heap_size = 0;
+		for (int i = 0; i < series.length; i++) {
+			final double score = score(series[i], start_time, end_time, latest);
+			if (heap_size < k) {
+				int child = heap_size++;
+				while (child > 0) {
+					final int parent = (child - 1) >>> 1;
+					if (!worse(score, i, heap_scores[parent], heap_series[parent])) {
+						break;
+					}
+					heap_scores[child] = heap_scores[parent];
+					heap_series[child] = heap_series[parent];
+					child = parent;
+				}
+				heap_scores[child] = score;
+				heap_series[child] = i;
+			} else if (worse(heap_scores[0], heap_series[0], score, i)) {
+				int parent = 0;
+				while (true) {
+					int child = 2 * parent + 1;
+					if (child >= heap_size) {
+						break;
+					}
+					if (child + 1 < heap_size && worse(heap_scores[child + 1],
+							heap_series[child + 1], heap_scores[child], heap_series[child])) {
+						child++;
+					}
+					if (!worse(heap_scores[child], heap_series[child], score, i)) {
+						break;
+					}
+					heap_scores[parent] = heap_scores[child];
+					heap_series[parent] = heap_series[child];
+					parent = child;
+				}
+				heap_scores[parent] = score;
+				heap_series[parent] = i;
 			}
+		}
 
-			long[] maxLongs = aggregator.getLongMaxes();
-			double[] maxDoubles = aggregator.getDoubleMaxes();
-			Entry[] maxesPerTS = new Entry[size];
-			if (aggregator.hasDoubles() && aggregator.hasLongs()) {
-				for (int i = 0; i < size; i++) {
-					maxesPerTS[i] = new Entry(Math.max((double) maxLongs[i], maxDoubles[i]), i);
+		// Pop the heap from the worst to the best.
+		final int[] winners = new int[heap_size];
+		for (int n = heap_size - 1; n >= 0; n--) {
+			winners[n] = heap_series[0];
+			heap_size--;
+			final double score = heap_scores[heap_size];
+			final int index = heap_series[heap_size];
+			int parent = 0;
+			while (true) {
+				int child = 2 * parent + 1;
+				if (child >= heap_size) {
+					break;
 				}
-			} else if (aggregator.hasLongs() && !aggregator.hasDoubles()) {
-				for (int i = 0; i < size; i++) {
-					maxesPerTS[i] = new Entry((double) maxLongs[i], i);
+				if (child + 1 < heap_size && worse(heap_scores[child + 1],
+						heap_series[child + 1], heap_scores[child], heap_series[child])) {
+					child++;
 				}
-			} else if (aggregator.hasDoubles() && !aggregator.hasLongs()) {
-				for (int i = 0; i < size; i++) {
-					maxesPerTS[i] = new Entry(maxDoubles[i], i);
+				if (!worse(heap_scores[child], heap_series[child], score, index)) {
+					break;
 				}
+				heap_scores[parent] = heap_scores[child];
+				heap_series[parent] = heap_series[child];
+				parent = child;
 			}
+			heap_scores[parent] = score;
+			heap_series[parent] = index;
+		}
+		return winners;
+	}
 
-			Arrays.sort(maxesPerTS, new Comparator<Entry>() {
-				@Override
-				public int compare(Entry o1, Entry o2) {
-					return -1 * Double.compare(o1.val, o2.val);
-				}
-			});
+	/**
+	 * Tells whether series {@code a} ranks after series {@code b}.
+	 */
+	private static boolean worse(final double score_a, final int a,
+	                             final double score_b, final int b) {
+		final int cmp = Double.compare(score_a, score_b);
+		return cmp < 0 || (cmp == 0 && a > b);
+	}
 
-			DataPoints[] results = new DataPoints[k];
-			for (int i = 0; i < k; i++) {
-				results[i] = seekablePoints[maxesPerTS[i].pos];
+	/**
+	 * Computes the maximum or latest value of a series in a time range.
+	 *
+	 * @return The score, {@link Double#NEGATIVE_INFINITY} if the series has no
+	 * data point in the range.
+	 */
+	private static double score(final DataPoints dpoints,
+	                            final long start_time, final long end_time,
+	                            final boolean latest) {
+		final BatchReader reader = new BatchReader(dpoints.iterator());
+		double score = Double.NEGATIVE_INFINITY;
+		while (reader.hasNext()) {
+			reader.next();
+			final long timestamp = reader.timestamp();
+			if (timestamp > end_time) {
+				break;
+			}
+			if (timestamp < start_time) {
+				continue;
+			}
+			final double value = reader.toDouble();
+			if (latest || value > score) {
+				score = value;
 			}
+		}
+		return score;
+	}
 
-			return results;
+	/**
+	 * Returns the data points of a series in columns, so they can be read again.
+	 */
+	private static ColumnarDataPoints materialize(final DataPoints dpoints) {
+		return ColumnarDataPoints.of(dpoints);
+	}
+
+	/**
+	 * Aggregates all the input streams into one, named after the first one.
+	 */
+	private static SeriesStream[] aggregate(TSQuery data_query, List<SeriesStream[]> inputs,
+	                                        Aggregator aggregator) {
+		int size = 0;
+		for (SeriesStream[] streams : inputs) {
+			size = size + streams.length;
 		}
 
-		class Entry {
-			public Entry(double val, int pos) {
-				this.val = val;
-				this.pos = pos;
+		SeekableView[] views = new SeekableView[size];
+		int ix = 0;
+		for (SeriesStream[] streams : inputs) {
+			for (SeriesStream stream : streams) {
+				views[ix++] = stream.view();
 			}
+		}
 
-			double val;
-			int pos;
+		if (inputs.get(0).length > 0) {
+			SeekableView view = new AggregationIterator(views,
+					data_query.startTime(), data_query.endTime(),
+					aggregator, Aggregators.Interpolation.LERP, false);
+			return new SeriesStream[]{inputs.get(0)[0].derive(view)};
+		} else {
+			return new SeriesStream[]{};
 		}
+	}
 
-		@Override
-		public String writeStringField(List<String> queryParams, String innerExpression) {
-			return "highestCurrent(" + innerExpression + ")";
+	/**
+	 * Combines two streams on the timestamps they both cover, the result is
+	 * named after the first one.  With two inputs of several series, like two
+	 * group-by queries, the series of the inputs are matched by tags, see
+	 * {@link #join}, and each pair is combined.
+	 *
+	 * @param name The name of the function, for error messages.
+	 * @param op   Operation to apply to the second stream first.
+	 */
+	private static SeriesStream[] combine(TSQuery data_query, List<SeriesStream[]> inputs,
+	                                      String name, StreamView.Op op, Aggregator aggregator) {
+		List<SeriesStream[]> pairs;
+		if (inputs.size() == 2 && inputs.get(0).length == 1
+				&& inputs.get(1).length == 1) {
+			pairs = Collections.singletonList(
+					new SeriesStream[]{inputs.get(0)[0], inputs.get(1)[0]});
+		} else if (inputs.size() == 1 && inputs.get(0).length == 2) {
+			pairs = Collections.singletonList(
+					new SeriesStream[]{inputs.get(0)[0], inputs.get(0)[1]});
+		} else if (inputs.size() == 2) {
+			pairs = join(inputs.get(0), inputs.get(1));
+		} else {
+			throw new RuntimeException("Expected two query results for " + name);
+		}
+
+		SeriesStream[] results = new SeriesStream[pairs.size()];
+		for (int i = 0; i < results.length; i++) {
+			SeriesStream x = pairs.get(i)[0];
+			SeriesStream y = pairs.get(i)[1];
+			SeekableView[] views = new SeekableView[]{x.view(), y.map(op, 0).view()};
+
+			SeekableView view = new EndpointAligningAggregationIterator(views,
+					data_query.startTime(), data_query.endTime(),
+					aggregator, Aggregators.Interpolation.LERP, false);
+			results[i] = x.derive(view);
 		}
+		return results;
 	}
 
-	public static class DivideSeriesFunction implements Expression {
+	/**
+	 * Matches the series of two inputs on the tags identifying them, with a
+	 * hash join on the tag UIDs of their row keys, or on their tag names and
+	 * values if the UIDs of some series are unknown.  The series of a query
+	 * are identified by its 'GROUP BY's, or, once only known by name, by the
+	 * tags all of them have; only the tags of such names in both inputs are
+	 * joined on.  Series without a match are dropped, series with the same
+	 * tags are matched in order.
+	 *
+	 * @return The pairs of matching series, in the order of the left input.
+	 * @throws RuntimeException if no series match.
+	 */
+	private static List<SeriesStream[]> join(SeriesStream[] left, SeriesStream[] right) {
+		Object[] left_keys = tagUidKeys(left, right);
+		Object[] right_keys = tagUidKeys(right, left);
+		if (left_keys == null || right_keys == null) {
+			Set<String> names = sharedTagNames(left, right);
+			left_keys = tagKeys(left, names);
+			right_keys = tagKeys(right, names);
+		}
 
-		@Override
-		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults, List<String> params) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
+		Map<Object, LinkedList<SeriesStream>> table =
+				new HashMap<Object, LinkedList<SeriesStream>>(right.length * 2);
+		for (int i = 0; i < right.length; i++) {
+			LinkedList<SeriesStream> matches = table.get(right_keys[i]);
+			if (matches == null) {
+				matches = new LinkedList<SeriesStream>();
+				table.put(right_keys[i], matches);
 			}
+			matches.add(right[i]);
+		}
 
-			DataPoints x, y;
-			if (queryResults.size() == 2 && queryResults.get(0).length == 1
-					&& queryResults.get(1).length == 1) {
-				x = queryResults.get(0)[0];
-				y = queryResults.get(1)[0];
-			} else if (queryResults.size() == 1 && queryResults.get(0).length == 2) {
-				x = queryResults.get(0)[0];
-				y = queryResults.get(0)[1];
-			} else {
-				throw new RuntimeException("Expected two query results for difference");
+		List<SeriesStream[]> pairs = new ArrayList<SeriesStream[]>(left.length);
+		for (int i = 0; i < left.length; i++) {
+			LinkedList<SeriesStream> matches = table.get(left_keys[i]);
+			if (matches != null && !matches.isEmpty()) {
+				pairs.add(new SeriesStream[]{left[i], matches.removeFirst()});
 			}
+		}
+		if (pairs.isEmpty() && left.length > 0 && right.length > 0) {
+			throw new RuntimeException("None of the " + left.length + " and "
+					+ right.length + " series match on their tags, e.g. "
+					+ left[0].getTags() + " and " + right[0].getTags());
+		}
+		if (pairs.size() < Math.max(left.length, right.length)) {
+			logger.warn("Joined only " + pairs.size() + " pairs of series out of "
+					+ left.length + " and " + right.length + " series");
+		}
+		return pairs;
+	}
 
-			int size = 2;
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
+	/**
+	 * @return the group-by tag UIDs of the series, restricted to the tag names
+	 * of the other input, or {@code null} if unknown for one.
+	 */
+	private static Object[] tagUidKeys(SeriesStream[] streams, SeriesStream[] others) {
+		byte[] other = others.length > 0 ? others[0].getTagUids() : new byte[0];
+		if (other == null) {
+			return null;
+		}
+		Object[] keys = new Object[streams.length];
+		for (int i = 0; i < streams.length; i++) {
+			byte[] uids = streams[i].getTagUids();
+			if (uids == null) {
+				return null;
+			}
+			keys[i] = ByteBuffer.wrap(withTagNames(uids, other));
+		}
+		return keys;
+	}
 
-			List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-			for (DataPoint point : x) {
-				mutablePoints.add(point.isInteger() ?
-						MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-						: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
+	/**
+	 * @return the tag UID pairs of {@code uids} whose names are in {@code other}.
+	 */
+	private static byte[] withTagNames(byte[] uids, byte[] other) {
+		int name_width = TSDB.tagk_width();
+		int tag_width = name_width + TSDB.tagv_width();
+		byte[] kept = new byte[uids.length];
+		int length = 0;
+		for (int offset = 0; offset < uids.length; offset += tag_width) {
+			for (int other_offset = 0; other_offset < other.length; other_offset += tag_width) {
+				int i = 0;
+				while (i < name_width && uids[offset + i] == other[other_offset + i]) {
+					i++;
+				}
+				if (i == name_width) {
+					System.arraycopy(uids, offset, kept, length, tag_width);
+					length += tag_width;
+					break;
+				}
 			}
-			seekablePoints[0] = new PostAggregatedDataPoints(x,
-					mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-
-			mutablePoints = new ArrayList<DataPoint>();
-			for (DataPoint point : y) {
-				if (point.isInteger()) {
-					if (point.longValue() != 0) {
-						mutablePoints.add(MutableDataPoint.ofLongValue(point.timestamp(),
-								1 / point.longValue()));
-					}
+		}
+		return length == uids.length ? uids : Arrays.copyOf(kept, length);
+	}
+
+	/**
+	 * @return the names of the tags every series of both inputs has.
+	 */
+	private static Set<String> sharedTagNames(SeriesStream[] left, SeriesStream[] right) {
+		Set<String> names = null;
+		for (SeriesStream[] streams : Arrays.asList(left, right)) {
+			for (SeriesStream stream : streams) {
+				if (names == null) {
+					names = new HashSet<String>(stream.getTags().keySet());
 				} else {
-					if (DoubleMath.fuzzyCompare(point.doubleValue(), 0, 1E-7) != 0) {
-						mutablePoints.add(MutableDataPoint.ofDoubleValue(point.timestamp(),
-								1 / point.doubleValue()));
-					}
+					names.retainAll(stream.getTags().keySet());
 				}
 			}
+		}
+		return names == null ? Collections.<String>emptySet() : names;
+	}
 
-			seekablePoints[1] = new PostAggregatedDataPoints(x,
-					mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
+	/**
+	 * @return the tag names and values of the series, for the given names.
+	 */
+	private static Object[] tagKeys(SeriesStream[] streams, Set<String> names) {
+		Object[] keys = new Object[streams.length];
+		for (int i = 0; i < streams.length; i++) {
+			Map<String, String> tags = new HashMap<String, String>(streams[i].getTags());
+			tags.keySet().retainAll(names);
+			keys[i] = tags;
+		}
+		return keys;
+	}
 
-			SeekableView[] views = new SeekableView[size];
-			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
-			}
+	private static void checkInputs(List<?> inputs) {
+		if (inputs == null || inputs.isEmpty()) {
+			throw new NullPointerException("Query results cannot be empty");
+		}
+	}
 
-			SeekableView view = (new EndpointAligningAggregationIterator(views,
-					data_query.startTime(), data_query.endTime(),
-					Aggregators.MULTIPLY, Aggregators.Interpolation.LERP, false));
-
-			List<DataPoint> points = Lists.newArrayList();
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				points.add(mdp.isInteger() ?
-						MutableDataPoint.ofLongValue(mdp.timestamp(), mdp.longValue()) :
-						MutableDataPoint.ofDoubleValue(mdp.timestamp(), mdp.doubleValue()));
-			}
+	public static class DivideSeriesFunction implements StreamingExpression {
 
-			if (queryResults.size() > 0 && queryResults.get(0).length > 0) {
-				return new DataPoints[]{new PostAggregatedDataPoints(queryResults.get(0)[0],
-						points.toArray(new DataPoint[points.size()]))};
-			} else {
-				return new DataPoints[]{};
-			}
+		@Override
+		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults, List<String> params) {
+			return SeriesStream.materialize(stream(data_query, SeriesStream.of(queryResults), params));
 		}
 
+		@Override
+		public SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs, List<String> params) {
+			checkInputs(inputs);
+			return combine(data_query, inputs, "divide", StreamView.Op.INVERT,
+					Aggregators.MULTIPLY);
+		}
 
 		@Override
 		public String writeStringField(List<String> queryParams, String innerExpression) {
@@ -446,57 +551,30 @@ public class Functions {
 		}
 	}
 
-	public static class MultiplySeriesFunction implements Expression {
+	public static class MultiplySeriesFunction implements StreamingExpression {
 
 		@Override
 		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults, List<String> queryParams) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
-			}
-
-			int size = 0;
-			for (DataPoints[] results : queryResults) {
-				size = size + results.length;
-			}
-
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
-			int ix = 0;
-			for (DataPoints[] results : queryResults) {
-				for (DataPoints dpoints : results) {
-					List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-					for (DataPoint point : dpoints) {
-						mutablePoints.add(point.isInteger() ?
-								MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-								: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
-					}
-					seekablePoints[ix++] = new PostAggregatedDataPoints(dpoints,
-							mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-				}
-			}
-
-			SeekableView[] views = new SeekableView[size];
-			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
-			}
+			return SeriesStream.materialize(stream(data_query, SeriesStream.of(queryResults), queryParams));
+		}
 
-			SeekableView view = (new AggregationIterator(views,
-					data_query.startTime(), data_query.endTime(),
-					Aggregators.MULTIPLY, Aggregators.Interpolation.LERP, false));
-
-			List<DataPoint> points = Lists.newArrayList();
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				points.add(mdp.isInteger() ?
-						MutableDataPoint.ofLongValue(mdp.timestamp(), mdp.longValue()) :
-						MutableDataPoint.ofDoubleValue(mdp.timestamp(), mdp.doubleValue()));
+		@Override
+		public SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs, List<String> params) {
+			checkInputs(inputs);
+			if (inputs.size() != 2
+					|| (inputs.get(0).length == 1 && inputs.get(1).length == 1)) {
+				return aggregate(data_query, inputs, Aggregators.MULTIPLY);
 			}
 
-			if (queryResults.size() > 0 && queryResults.get(0).length > 0) {
-				return new DataPoints[]{new PostAggregatedDataPoints(queryResults.get(0)[0],
-						points.toArray(new DataPoint[points.size()]))};
-			} else {
-				return new DataPoints[]{};
+			// Two group-by results: multiply the series with the same tags.
+			List<SeriesStream[]> pairs = join(inputs.get(0), inputs.get(1));
+			SeriesStream[] results = new SeriesStream[pairs.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = aggregate(data_query, Arrays.asList(
+						new SeriesStream[]{pairs.get(i)[0]},
+						new SeriesStream[]{pairs.get(i)[1]}), Aggregators.MULTIPLY)[0];
 			}
+			return results;
 		}
 
 		@Override
@@ -505,72 +583,18 @@ public class Functions {
 		}
 	}
 
-	public static class DifferenceSeriesFunction implements Expression {
+	public static class DifferenceSeriesFunction implements StreamingExpression {
 
 		@Override
 		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults, List<String> params) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
-			}
-
-			DataPoints x, y;
-			if (queryResults.size() == 2 && queryResults.get(0).length == 1
-					&& queryResults.get(1).length == 1) {
-				x = queryResults.get(0)[0];
-				y = queryResults.get(1)[0];
-			} else if (queryResults.size() == 1 && queryResults.get(0).length == 2) {
-				x = queryResults.get(0)[0];
-				y = queryResults.get(0)[1];
-			} else {
-				throw new RuntimeException("Expected two query results for difference");
-			}
-
-			int size = 2;
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
-
-			List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-			for (DataPoint point : x) {
-				mutablePoints.add(point.isInteger() ?
-						MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-						: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
-			}
-			seekablePoints[0] = new PostAggregatedDataPoints(x,
-					mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-
-			mutablePoints = new ArrayList<DataPoint>();
-			for (DataPoint point : y) {
-				mutablePoints.add(point.isInteger() ?
-						MutableDataPoint.ofLongValue(point.timestamp(),
-								-1 * point.longValue())
-						: MutableDataPoint.ofDoubleValue(point.timestamp(),
-						-1 * point.doubleValue()));
-			}
-			seekablePoints[1] = new PostAggregatedDataPoints(x,
-					mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-
-			SeekableView[] views = new SeekableView[size];
-			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
-			}
-
-			SeekableView view = (new EndpointAligningAggregationIterator(views,
-					data_query.startTime(), data_query.endTime(),
-					Aggregators.SUM, Aggregators.Interpolation.LERP, false));
-
-			List<DataPoint> points = Lists.newArrayList();
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				points.add(mdp.isInteger() ?
-						MutableDataPoint.ofLongValue(mdp.timestamp(), mdp.longValue()) :
-						MutableDataPoint.ofDoubleValue(mdp.timestamp(), mdp.doubleValue()));
-			}
+			return SeriesStream.materialize(stream(data_query, SeriesStream.of(queryResults), params));
+		}
 
-			if (queryResults.size() > 0 && queryResults.get(0).length > 0) {
-				return new DataPoints[]{new PostAggregatedDataPoints(queryResults.get(0)[0],
-						points.toArray(new DataPoint[points.size()]))};
-			} else {
-				return new DataPoints[]{};
-			}
+		@Override
+		public SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs, List<String> params) {
+			checkInputs(inputs);
+			return combine(data_query, inputs, "difference", StreamView.Op.NEGATE,
+					Aggregators.SUM);
 		}
 
 		@Override
@@ -579,57 +603,17 @@ public class Functions {
 		}
 	}
 
-	public static class SumSeriesFunction implements Expression {
+	public static class SumSeriesFunction implements StreamingExpression {
 
 		@Override
 		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults, List<String> params) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
-			}
-
-			int size = 0;
-			for (DataPoints[] results : queryResults) {
-				size = size + results.length;
-			}
-
-			PostAggregatedDataPoints[] seekablePoints = new PostAggregatedDataPoints[size];
-			int ix = 0;
-			for (DataPoints[] results : queryResults) {
-				for (DataPoints dpoints : results) {
-					List<DataPoint> mutablePoints = new ArrayList<DataPoint>();
-					for (DataPoint point : dpoints) {
-						mutablePoints.add(point.isInteger() ?
-								MutableDataPoint.ofLongValue(point.timestamp(), point.longValue())
-								: MutableDataPoint.ofDoubleValue(point.timestamp(), point.doubleValue()));
-					}
-					seekablePoints[ix++] = new PostAggregatedDataPoints(dpoints,
-							mutablePoints.toArray(new DataPoint[mutablePoints.size()]));
-				}
-			}
-
-			SeekableView[] views = new SeekableView[size];
-			for (int i = 0; i < size; i++) {
-				views[i] = seekablePoints[i].iterator();
-			}
-
-			SeekableView view = (new AggregationIterator(views,
-					data_query.startTime(), data_query.endTime(),
-					Aggregators.SUM, Aggregators.Interpolation.LERP, false));
-
-			List<DataPoint> points = Lists.newArrayList();
-			while (view.hasNext()) {
-				DataPoint mdp = view.next();
-				points.add(mdp.isInteger() ?
-						MutableDataPoint.ofLongValue(mdp.timestamp(), mdp.longValue()) :
-						MutableDataPoint.ofDoubleValue(mdp.timestamp(), mdp.doubleValue()));
-			}
+			return SeriesStream.materialize(stream(data_query, SeriesStream.of(queryResults), params));
+		}
 
-			if (queryResults.size() > 0 && queryResults.get(0).length > 0) {
-				return new DataPoints[]{new PostAggregatedDataPoints(queryResults.get(0)[0],
-						points.toArray(new DataPoint[points.size()]))};
-			} else {
-				return new DataPoints[]{};
-			}
+		@Override
+		public SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs, List<String> params) {
+			checkInputs(inputs);
+			return aggregate(data_query, inputs, Aggregators.SUM);
 		}
 
 		@Override
@@ -638,13 +622,16 @@ public class Functions {
 		}
 	}
 
-	public static class ScaleFunction implements Expression {
+	public static class ScaleFunction implements StreamingExpression {
 
 		@Override
 		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults, List<String> params) {
-			if (queryResults == null || queryResults.isEmpty()) {
-				throw new NullPointerException("Query results cannot be empty");
-			}
+			return SeriesStream.materialize(stream(data_query, SeriesStream.of(queryResults), params));
+		}
+
+		@Override
+		public SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs, List<String> params) {
+			checkInputs(inputs);
 
 			if (params == null || params.isEmpty()) {
 				throw new NullPointerException("Scaling parameter not available");
@@ -654,33 +641,18 @@ public class Functions {
 			factor = factor.replaceAll("'|\"", "").trim();
 			double scaleFactor = Double.parseDouble(factor);
 
-			DataPoints[] inputPoints = queryResults.get(0);
-			DataPoints[] outputPoints = new DataPoints[inputPoints.length];
+			SeriesStream[] inputStreams = inputs.get(0);
+			SeriesStream[] outputStreams = new SeriesStream[inputStreams.length];
 
-			for (int i = 0; i < inputPoints.length; i++) {
-				outputPoints[i] = scale(inputPoints[i], scaleFactor);
+			for (int i = 0; i < inputStreams.length; i++) {
+				outputStreams[i] = inputStreams[i].map(StreamView.Op.SCALE, scaleFactor);
 			}
 
-			return outputPoints;
+			return outputStreams;
 		}
 
 		protected DataPoints scale(DataPoints points, double scaleFactor) {
-			int size = points.size();
-			DataPoint[] dps = new DataPoint[size];
-
-			SeekableView view = points.iterator();
-			int i = 0;
-			while (view.hasNext()) {
-				DataPoint pt = view.next();
-				if (pt.isInteger()) {
-					dps[i] = MutableDataPoint.ofDoubleValue(pt.timestamp(), scaleFactor * pt.longValue());
-				} else {
-					dps[i] = MutableDataPoint.ofDoubleValue(pt.timestamp(), scaleFactor * pt.doubleValue());
-				}
-				i++;
-			}
-
-			return new PostAggregatedDataPoints(points, dps);
+			return SeriesStream.of(points).map(StreamView.Op.SCALE, scaleFactor).materialize();
 		}
 
 		@Override
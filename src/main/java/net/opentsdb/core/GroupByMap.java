@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.hbase.async.Bytes.ByteMap;
+
+/**
+ * Maps the group keys of a 'GROUP BY' (the concatenated value IDs of the
+ * group-by tags) to their {@link SpanGroup}.
+ * <p/>
+ * Keys of up to 16 bytes, which covers group-bys on up to 5 tags with the
+ * default 3-byte tag value IDs, are packed big-endian into two {@code long}s
+ * and stored in an open-addressing hash table, so neither lookups nor
+ * insertions compare or copy arrays.
+ * Longer keys go into a {@link ByteMap}.  All the keys of a map must have the
+ * same length.
+ * <p/>
+ * Either way {@link #sortedValues} returns the groups in the order of their
+ * keys, compared as unsigned bytes.
+ * <p/>
+ * This class is not thread-safe.
+ */
+final class GroupByMap {
+
+	/**
+	 * Longest key that is packed into longs.
+	 */
+	static final int MAX_PACKED_LENGTH = 16;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private final int key_length;
+
+	/**
+	 * Used for keys longer than {@link #MAX_PACKED_LENGTH}, {@code null}
+	 * otherwise.
+	 */
+	private final ByteMap<SpanGroup> by_bytes;
+
+	/**
+	 * Open-addressing table with linear probing: slot {@code i} is used iff
+	 * {@code values[i] != null}, in which case its key is
+	 * {@code (keys_hi[i], keys_lo[i])}.
+	 */
+	private long[] keys_hi;
+	private long[] keys_lo;
+	private SpanGroup[] values;
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key_length The length in bytes of all the keys.
+	 */
+	GroupByMap(final int key_length) {
+		this.key_length = key_length;
+		if (key_length > MAX_PACKED_LENGTH) {
+			by_bytes = new ByteMap<SpanGroup>();
+			return;
+		}
+		by_bytes = null;
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Returns the group of the given key, or {@code null}.
+	 */
+	SpanGroup get(final byte[] key) {
+		checkLength(key);
+		if (by_bytes != null) {
+			return by_bytes.get(key);
+		}
+		final long hi = pack(key, 0);
+		final long lo = pack(key, 8);
+		final int mask = values.length - 1;
+		for (int i = hash(hi, lo) & mask; values[i] != null; i = (i + 1) & mask) {
+			if (keys_hi[i] == hi && keys_lo[i] == lo) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Maps a key to a group, replacing any previous one.  The key isn't kept,
+	 * it can be modified afterwards.
+	 */
+	void put(final byte[] key, final SpanGroup group) {
+		checkLength(key);
+		if (group == null) {
+			throw new IllegalArgumentException("Null group for key "
+					+ Arrays.toString(key));
+		}
+		if (by_bytes != null) {
+			by_bytes.put(Arrays.copyOf(key, key.length), group);
+			return;
+		}
+		if ((size + 1) * 2 > values.length) {
+			rehash();
+		}
+		insert(pack(key, 0), pack(key, 8), group);
+	}
+
+	/**
+	 * @return the number of groups.
+	 */
+	int size() {
+		return by_bytes != null ? by_bytes.size() : size;
+	}
+
+	/**
+	 * @return the groups, ordered by key.
+	 */
+	SpanGroup[] sortedValues() {
+		if (by_bytes != null) {
+			return by_bytes.values().toArray(new SpanGroup[by_bytes.size()]);
+		}
+		final Integer[] slots = new Integer[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				slots[n++] = i;
+			}
+		}
+		Arrays.sort(slots, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				final int cmp = compareUnsigned(keys_hi[a], keys_hi[b]);
+				return cmp != 0 ? cmp : compareUnsigned(keys_lo[a], keys_lo[b]);
+			}
+		});
+		final SpanGroup[] sorted = new SpanGroup[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = values[slots[i]];
+		}
+		return sorted;
+	}
+
+	private void checkLength(final byte[] key) {
+		if (key.length != key_length) {
+			throw new IllegalArgumentException("Expected a key of " + key_length
+					+ " bytes, got " + Arrays.toString(key));
+		}
+	}
+
+	private void insert(final long hi, final long lo, final SpanGroup group) {
+		final int mask = values.length - 1;
+		int i = hash(hi, lo) & mask;
+		while (values[i] != null) {
+			if (keys_hi[i] == hi && keys_lo[i] == lo) {
+				values[i] = group;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys_hi[i] = hi;
+		keys_lo[i] = lo;
+		values[i] = group;
+		size++;
+	}
+
+	private void rehash() {
+		final long[] old_hi = keys_hi;
+		final long[] old_lo = keys_lo;
+		final SpanGroup[] old_values = values;
+		allocate(old_values.length * 2);
+		size = 0;
+		for (int i = 0; i < old_values.length; i++) {
+			if (old_values[i] != null) {
+				insert(old_hi[i], old_lo[i], old_values[i]);
+			}
+		}
+	}
+
+	private void allocate(final int capacity) {
+		keys_hi = new long[capacity];
+		keys_lo = new long[capacity];
+		values = new SpanGroup[capacity];
+	}
+
+	/**
+	 * Packs up to 8 bytes of the key from the given offset into a long,
+	 * big-endian and padded with zeros, so that comparing packed keys as
+	 * unsigned longs orders them like the byte arrays.
+	 */
+	private static long pack(final byte[] key, final int offset) {
+		long packed = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			packed <<= 8;
+			if (i < key.length) {
+				packed |= key[i] & 0xFF;
+			}
+		}
+		return packed;
+	}
+
+	private static int hash(final long hi, final long lo) {
+		long h = hi * 0x9E3779B97F4A7C15L + lo;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private static int compareUnsigned(final long a, final long b) {
+		final long x = a ^ Long.MIN_VALUE;
+		final long y = b ^ Long.MIN_VALUE;
+		return x < y ? -1 : (x == y ? 0 : 1);
+	}
+
+	public String toString() {
+		return "GroupByMap(key_length=" + key_length + ", size=" + size()
+				+ ", packed=" + (by_bytes == null) + ')';
+	}
+
+}
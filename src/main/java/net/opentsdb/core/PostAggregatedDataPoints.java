@@ -202,6 +202,11 @@ public class PostAggregatedDataPoints implements DataPoints {
 			}
 		}
 
+		@Override
+		public int nextBatch(long[] timestamps, long[] values) {
+			return BatchReader.copyPerPoint(this, timestamps, values);
+		}
+
 		public int current() {
 			return pos;
 		}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.tsd.QueryStats;
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseException;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scan of a downsampled query routed to the {@link PreAggregations}: the
+ * spans of the query get the data points of the metric up to the first whole
+ * bucket of the pre-aggregation, the pre-aggregated series, one data point
+ * per bucket, up to a cut-off time, and the data points of the metric from
+ * the cut-off time, which may not be pre-aggregated yet.
+ * <p/>
+ * Pre-aggregated rows are added to the spans under the metric of the query,
+ * so the rest of the query runs unchanged: the downsampler and aggregator of
+ * the query combine the pre-aggregates like data points.
+ */
+final class PreAggregatedScan {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PreAggregatedScan.class);
+
+	private final TSDB tsdb;
+	private final TsdbQuery query;
+
+	/**
+	 * ID of the metric of the pre-aggregation.
+	 */
+	private final byte[] derived_metric;
+
+	/**
+	 * Times between which the pre-aggregation is read, in milliseconds.
+	 */
+	private final long from_ms;
+	private final long cutoff_ms;
+
+	private final SpanTable spans;
+	private final Deferred<SpanTable> result = new Deferred<SpanTable>();
+
+	private final long start_nanos = System.nanoTime();
+	private int nrows;
+	private boolean seen_annotation;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tsdb           The TSDB to scan.
+	 * @param query          The query, routed to the pre-aggregation.
+	 * @param derived_metric The ID of the metric of the pre-aggregation.
+	 * @param from_ms        Time from which to read the pre-aggregation.
+	 * @param cutoff_ms      Time from which to read the metric again.
+	 */
+	PreAggregatedScan(final TSDB tsdb, final TsdbQuery query,
+	                  final byte[] derived_metric, final long from_ms,
+	                  final long cutoff_ms) {
+		this.tsdb = tsdb;
+		this.query = query;
+		this.derived_metric = derived_metric;
+		this.from_ms = from_ms;
+		this.cutoff_ms = cutoff_ms;
+		this.spans = query.newSpanTable();
+	}
+
+	/**
+	 * Starts the scan.
+	 *
+	 * @return The spans found, {@code null} if no row matched.
+	 * @throws HBaseException if there was a problem communicating with HBase.
+	 */
+	Deferred<SpanTable> start() throws HBaseException {
+		LOG.info("Reading " + query + " from its pre-aggregation between "
+				+ from_ms + " and " + cutoff_ms);
+		final Scanner scanner = newScanner(query.metric(),
+				query.getScanStartTimeSeconds(), rowAfter(from_ms));
+		scanner.nextRows().addCallback(new ScannerCB(scanner, Phase.HEAD));
+		return result;
+	}
+
+	/**
+	 * Returns the base time of the row holding the given time.
+	 */
+	private static long rowOf(final long timestamp_ms) {
+		final long seconds = timestamp_ms / 1000;
+		return seconds - seconds % Const.MAX_TIMESPAN;
+	}
+
+	/**
+	 * Returns the base time of the first row after the data points before the
+	 * given time, to stop scanning at.
+	 */
+	private static long rowAfter(final long timestamp_ms) {
+		return rowOf(timestamp_ms - 1) + Const.MAX_TIMESPAN;
+	}
+
+	private Scanner newScanner(final byte[] metric, final long start_seconds,
+	                           final long end_seconds) {
+		final Scanner scanner = query.newScanner(tsdb.table, metric, start_seconds,
+				end_seconds);
+		final String regexp = query.keyRegexp();
+		if (regexp != null) {
+			scanner.setKeyRegexp(regexp, TsdbQuery.CHARSET);
+		}
+		return scanner;
+	}
+
+	/**
+	 * Adds the data points of a compacted row between two times to its span,
+	 * under the metric of the query.
+	 *
+	 * @param key       The row key, with the metric of the query.
+	 * @param compacted The compacted row.
+	 * @param start_ms  Time of the first data point to add.
+	 * @param end_ms    Time at which to stop adding data points, excluded.
+	 */
+	private void addRow(final byte[] key, final KeyValue compacted,
+	                    final long start_ms, final long end_ms) {
+		final long base_time = Bytes.getUnsignedInt(key, tsdb.metrics.width());
+		final ArrayList<Internal.Cell> cells = Internal.extractDataPoints(compacted);
+		final long first = cells.get(0).timestamp(base_time);
+		final long last = cells.get(cells.size() - 1).timestamp(base_time);
+		if (first >= end_ms || last < start_ms) {
+			return;
+		}
+		final Span span = spans.getOrCreate(key);
+		if (first >= start_ms && last < end_ms) {
+			span.addRow(new KeyValue(key, TSDB.FAMILY, compacted.qualifier(),
+					compacted.value()));
+		} else {
+			for (final Internal.Cell cell : cells) {
+				final long timestamp = cell.timestamp(base_time);
+				if (timestamp >= start_ms && timestamp < end_ms) {
+					span.addRow(new KeyValue(key, TSDB.FAMILY, cell.qualifier(),
+							cell.value()));
+				}
+			}
+		}
+		nrows++;
+	}
+
+	/**
+	 * What a scanner reads.
+	 */
+	private enum Phase {
+		/** Data points before the pre-aggregation. */
+		HEAD,
+		/** The pre-aggregation. */
+		DERIVED,
+		/** Data points after the pre-aggregation. */
+		TAIL
+	}
+
+	/**
+	 * Reads the data rows before the pre-aggregation, the pre-aggregated rows,
+	 * then the data rows from the cut-off time.
+	 */
+	private final class ScannerCB implements Callback<Object,
+			ArrayList<ArrayList<KeyValue>>> {
+
+		private final Scanner scanner;
+		private final Phase phase;
+
+		private final ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+
+		ScannerCB(final Scanner scanner, final Phase phase) {
+			this.scanner = scanner;
+			this.phase = phase;
+		}
+
+		@Override
+		public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+			try {
+				if (rows == null) {
+					scanner.close();
+					if (phase == Phase.HEAD) {
+						final Scanner derived_scanner = newScanner(derived_metric,
+								rowOf(from_ms), rowAfter(cutoff_ms));
+						return derived_scanner.nextRows().addCallback(
+								new ScannerCB(derived_scanner, Phase.DERIVED));
+					} else if (phase == Phase.DERIVED) {
+						final Scanner data_scanner = newScanner(query.metric(),
+								rowOf(cutoff_ms), query.getScanEndTimeSeconds());
+						return data_scanner.nextRows().addCallback(
+								new ScannerCB(data_scanner, Phase.TAIL));
+					}
+					done();
+					return null;
+				}
+				final byte[] metric = phase == Phase.DERIVED
+						? derived_metric
+						: query.metric();
+				for (final ArrayList<KeyValue> row : rows) {
+					byte[] key = row.get(0).key();
+					if (Bytes.memcmp(metric, key, 0, tsdb.metrics.width()) != 0) {
+						throw new IllegalDataException("HBase returned a row that doesn't"
+								+ " match our scanner (" + scanner + ")! " + row);
+					}
+					annotations.clear();
+					final KeyValue compacted = tsdb.compact(row, annotations);
+					if (phase == Phase.DERIVED) {
+						key = key.clone();
+						System.arraycopy(query.metric(), 0, key, 0, tsdb.metrics.width());
+						if (compacted != null) {
+							addRow(key, compacted, from_ms, cutoff_ms);
+						}
+						continue;
+					}
+					final long start_ms = phase == Phase.HEAD ? Long.MIN_VALUE : cutoff_ms;
+					final long end_ms = phase == Phase.HEAD ? from_ms : Long.MAX_VALUE;
+					// a row may be read both before and after the pre-aggregation
+					for (final Annotation annotation : annotations) {
+						final long time = annotation.getStartTime() * 1000;
+						if (time >= start_ms && time < end_ms) {
+							spans.getOrCreate(key).getAnnotations().add(annotation);
+							seen_annotation = true;
+						}
+					}
+					if (compacted != null) {
+						addRow(key, compacted, start_ms, end_ms);
+					}
+				}
+				return scanner.nextRows().addCallback(this);
+			} catch (Exception e) {
+				scanner.close();
+				result.callback(e);
+				return null;
+			}
+		}
+	}
+
+	private void done() {
+		final long elapsed = System.nanoTime() - start_nanos;
+		LOG.info(query + " matched " + nrows + " rows in " + spans.size()
+				+ " spans with its pre-aggregation in " + elapsed / 1000000 + "ms");
+		QueryStats.hbaseScan().update(elapsed, TimeUnit.NANOSECONDS);
+		if (nrows < 1 && !seen_annotation) {
+			result.callback(null);
+		} else {
+			query.sealSpans(spans);
+			result.callback(spans);
+		}
+	}
+
+}
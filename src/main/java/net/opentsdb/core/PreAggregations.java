@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-aggregations of high cardinality metrics, which drop the tags most
+ * queries aggregate away, like the host, and keep the others.
+ * <p/>
+ * A rule is a {@link ContinuousQuery} grouping by the tags kept, e.g.
+ * {@code sum:1m-sum:http.requests{dc=*}}, whose closed buckets are written as
+ * the derived metric {@code http.requests.sum.1m-sum.by.dc}.  The aggregator
+ * and the downsampler of a rule must be the same sum, min or max, the only
+ * functions whose partial aggregates combine exactly: across intervals, tags
+ * and TSDs.  Rules therefore accumulate each group as a whole, keeping no
+ * state per series, see {@link ContinuousQuery#accumulatesGroups}.  A sub
+ * query is transparently read from the derived metric when it only uses tags
+ * kept by a rule, with the same aggregator and downsampler, at a multiple of
+ * the interval of the rule.
+ * <p/>
+ * Each TSD only aggregates the data points written to it, so the derived
+ * series carry the {@code preagg_writer} tag, set by
+ * {@code tsd.preaggregation.writer} and defaulting to the host name and port,
+ * which the queries aggregate away.  The derived series only exist from the
+ * time the rules run, see {@code tsd.preaggregation.since}, and lag behind by
+ * the buckets still open: a query reads the derived metric from its first
+ * whole bucket up to the newest closed bucket, less one interval for the
+ * writes in flight, and the metric itself around that.  The buckets open when
+ * a TSD stops are lost, and as with
+ * continuous queries, the series missing from an interval aren't
+ * interpolated.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class PreAggregations {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PreAggregations.class);
+
+	/**
+	 * Tag identifying the TSD which wrote a derived series.
+	 */
+	static final String WRITER_TAG = "preagg_writer";
+
+	/**
+	 * Number of buckets each rule keeps in memory.
+	 */
+	private static final int RETENTION = 3;
+
+	/**
+	 * Rules by metric.
+	 */
+	private final HashMap<String, List<Rule>> rules = new HashMap<String, List<Rule>>();
+
+	private final AtomicLong queries_routed = new AtomicLong();
+
+	/**
+	 * A pre-aggregation rule, and since when its derived series are complete.
+	 */
+	private static final class Rule {
+		final ContinuousQuery query;
+		final long since_ms;
+
+		Rule(final ContinuousQuery query, final long since_ms) {
+			this.query = query;
+			this.since_ms = since_ms;
+		}
+	}
+
+	/**
+	 * Where to read a sub query from: the derived metric between two times
+	 * aligned on the interval of the rule, the metric itself around them.
+	 */
+	static final class Route {
+		final String derived_metric;
+		final long from_ms;
+		final long cutoff_ms;
+
+		Route(final String derived_metric, final long from_ms, final long cutoff_ms) {
+			this.derived_metric = derived_metric;
+			this.from_ms = from_ms;
+			this.cutoff_ms = cutoff_ms;
+		}
+	}
+
+	/**
+	 * Constructor, registering the rules as continuous queries.
+	 *
+	 * @param queries The continuous queries of the TSDB.
+	 * @param config  The configuration, with the rules.
+	 * @throws IllegalArgumentException if a rule or the writer is invalid.
+	 */
+	PreAggregations(final ContinuousQueries queries, final Config config) {
+		final String since = config.preaggregation_since();
+		final long since_ms = since == null || since.isEmpty()
+				? -1
+				: DateTime.parseDateTimeString(since, null);
+		final Map<String, String> writer =
+				Collections.singletonMap(WRITER_TAG, writer(config));
+		final long now = System.currentTimeMillis();
+		for (final String spec : Tags.splitString(config.preaggregation_rules(), ';')) {
+			if (spec.trim().isEmpty()) {
+				continue;
+			}
+			final String[] parts = Tags.splitString(spec.trim(), ':');
+			final HashMap<String, String> tags = new HashMap<String, String>();
+			final String metric = Tags.parseWithMetric(parts[parts.length - 1], tags);
+			if (parts.length != 3 || tags.containsKey(WRITER_TAG)) {
+				throw new IllegalArgumentException("Pre-aggregation rules need a"
+						+ " downsampler, and can't keep the " + WRITER_TAG + " tag: " + spec);
+			}
+			final StringBuilder derived = new StringBuilder(metric).append('.')
+					.append(parts[0]).append('.').append(parts[1]).append(".by");
+			for (final String name : new TreeSet<String>(tags.keySet())) {
+				derived.append('.').append(name);
+			}
+
+			final ContinuousQuery query = queries.register(spec.trim(), RETENTION,
+					derived.toString(), writer);
+			if (query.filtersTags()) {
+				queries.unregister(query.getId());
+				throw new IllegalArgumentException("Pre-aggregation rules can only"
+						+ " keep tags with any value, like {host=*}: " + spec);
+			}
+			if (!query.accumulatesGroups()) {
+				queries.unregister(query.getId());
+				throw new IllegalArgumentException("Pre-aggregation rules must"
+						+ " aggregate and downsample with the same sum, min or max: " + spec);
+			}
+			final long interval = query.getInterval();
+			List<Rule> list = rules.get(metric);
+			if (list == null) {
+				list = new ArrayList<Rule>(1);
+				rules.put(metric, list);
+			}
+			list.add(new Rule(query, since_ms >= 0
+					? since_ms
+					: now - now % interval + interval));
+			LOG.info("Pre-aggregating " + metric + " into " + derived);
+		}
+	}
+
+	/**
+	 * Returns the value of the writer tag of this TSD.
+	 */
+	private static String writer(final Config config) {
+		String writer = config.preaggregation_writer();
+		if (writer == null || writer.isEmpty()) {
+			try {
+				writer = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("Can't find the host name, set"
+						+ " tsd.preaggregation.writer", e);
+			}
+			if (config.hasProperty("tsd.network.port")) {
+				writer += '_' + config.getString("tsd.network.port");
+			}
+		}
+		Tags.validateString("tag value", writer);
+		return writer;
+	}
+
+	/**
+	 * Returns where to read a sub query from, if a rule can answer it.  The
+	 * rule keeping the fewest tags wins, then the coarsest interval.
+	 *
+	 * @param sub      The sub query, validated.
+	 * @param start_ms The start time of the query, in milliseconds.
+	 * @param end_ms   The end time of the query, in milliseconds.
+	 * @return The route, or {@code null} to read the metric only.
+	 */
+	Route route(final TSSubQuery sub, final long start_ms, final long end_ms) {
+		if (sub.getMetric() == null || sub.getRate() || sub.downsampler() == null) {
+			return null;
+		}
+		final List<Rule> candidates = rules.get(sub.getMetric());
+		if (candidates == null) {
+			return null;
+		}
+		final ContinuousQuery.Function aggregator =
+				ContinuousQuery.Function.find(sub.aggregator().toString());
+		final ContinuousQuery.Function downsampler =
+				ContinuousQuery.Function.find(sub.downsampler().toString());
+		if (aggregator == null || aggregator != downsampler) {
+			return null;
+		}
+		final long interval = sub.downsampleInterval();
+		final Map<String, String> tags = sub.getTags();
+		ContinuousQuery best = null;
+		long best_from = 0;
+		long best_cutoff = 0;
+		for (final Rule rule : candidates) {
+			final ContinuousQuery query = rule.query;
+			if (start_ms < rule.since_ms
+					|| query.aggregator() != aggregator
+					|| interval % query.getInterval() != 0
+					|| (tags != null && !query.groupByTags().containsAll(tags.keySet()))) {
+				continue;
+			}
+			final long closed = query.closedBefore();
+			if (closed == Long.MIN_VALUE) {
+				continue;
+			}
+			// whole buckets of the rule within the query, all written
+			final long from = start_ms - start_ms % query.getInterval()
+					+ (start_ms % query.getInterval() == 0 ? 0 : query.getInterval());
+			long cutoff = Math.min(closed - query.getInterval(), end_ms);
+			cutoff -= cutoff % query.getInterval();
+			if (cutoff <= from) {
+				continue;
+			}
+			if (best == null
+					|| query.groupByTags().size() < best.groupByTags().size()
+					|| (query.groupByTags().size() == best.groupByTags().size()
+					&& query.getInterval() > best.getInterval())) {
+				best = query;
+				best_from = from;
+				best_cutoff = cutoff;
+			}
+		}
+		return best == null ? null : new Route(best.getDerivedMetric(), best_from,
+				best_cutoff);
+	}
+
+	/**
+	 * Counts a sub query read from a derived metric.
+	 */
+	void queryRouted() {
+		queries_routed.incrementAndGet();
+	}
+
+	public void collectStats(final StatsCollector collector) {
+		collector.record("preaggregation.queries_routed", queries_routed.get());
+	}
+
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+/**
+ * Quantile sketch backed by a log-bucketed histogram.
+ * <p/>
+ * Each value {@code v} is counted in the bucket {@code ceil(log(|v|) / log(gamma))}
+ * with {@code gamma = (1 + a) / (1 - a)}, so any quantile is estimated within a
+ * relative error of {@code a} of the true value.  Positive and negative
+ * values are kept in separate stores and values too close to zero are
+ * counted apart.  Each store holds at most {@code max_buckets} contiguous
+ * buckets: when values spread further, the lowest buckets are folded into
+ * the lowest kept one, so memory stays bounded whatever the number of
+ * values.
+ * <p/>
+ * This class is not thread-safe.
+ */
+final class QuantileSketch {
+
+	/**
+	 * Relative accuracy used by default: 1%.
+	 */
+	static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+	/**
+	 * Maximum number of buckets per store used by default.  With the default
+	 * accuracy it covers 17 orders of magnitude before any folding happens.
+	 */
+	static final int DEFAULT_MAX_BUCKETS = 2048;
+
+	/**
+	 * Values with a smaller magnitude are counted as zero.
+	 */
+	private static final double MIN_INDEXABLE_VALUE = 1e-300;
+
+	private final double relative_accuracy;
+	private final double gamma;
+	private final double log_gamma;
+	private final Store positive;
+	private final Store negative;
+	private long zero_count;
+	private long count;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Creates a sketch with the default accuracy and size.
+	 */
+	QuantileSketch() {
+		this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param relative_accuracy Relative error of the estimated quantiles, in
+	 *                          ]0, 1[.
+	 * @param max_buckets       Maximum number of buckets per store.
+	 * @throws IllegalArgumentException if an argument is out of range.
+	 */
+	QuantileSketch(final double relative_accuracy, final int max_buckets) {
+		if (!(relative_accuracy > 0 && relative_accuracy < 1)) {
+			throw new IllegalArgumentException("Invalid relative accuracy: "
+					+ relative_accuracy);
+		}
+		if (max_buckets < 1) {
+			throw new IllegalArgumentException("Invalid max buckets: " + max_buckets);
+		}
+		this.relative_accuracy = relative_accuracy;
+		this.gamma = (1 + relative_accuracy) / (1 - relative_accuracy);
+		this.log_gamma = Math.log(gamma);
+		this.positive = new Store(max_buckets);
+		this.negative = new Store(max_buckets);
+	}
+
+	/**
+	 * Adds a value to the sketch.  NaN values are ignored.
+	 */
+	void add(final double value) {
+		if (value > MIN_INDEXABLE_VALUE) {
+			positive.add(index(value));
+		} else if (value < -MIN_INDEXABLE_VALUE) {
+			negative.add(index(-value));
+		} else if (value == value) {
+			zero_count++;
+		} else {
+			return;
+		}
+		count++;
+		if (value < min) {
+			min = value;
+		}
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Returns the estimated value at the given quantile.
+	 *
+	 * @param quantile The quantile, in [0, 1].
+	 * @return The estimate, or NaN if the sketch is empty.
+	 */
+	double quantile(final double quantile) {
+		if (quantile < 0 || quantile > 1) {
+			throw new IllegalArgumentException("Invalid quantile: " + quantile);
+		}
+		if (count == 0) {
+			return Double.NaN;
+		}
+		final double rank = quantile * (count - 1);
+		long seen = 0;
+		double result = Double.NaN;
+		if (negative.total > 0) {
+			for (int i = negative.max_index; i >= negative.min_index; i--) {
+				seen += negative.get(i);
+				if (seen > rank) {
+					result = -value(i);
+					break;
+				}
+			}
+		}
+		if (result != result) {
+			seen += zero_count;
+			if (seen > rank) {
+				result = 0;
+			} else {
+				for (int i = positive.min_index; i <= positive.max_index; i++) {
+					seen += positive.get(i);
+					if (seen > rank) {
+						result = value(i);
+						break;
+					}
+				}
+			}
+		}
+		if (result != result || result > max) {
+			return max;
+		}
+		return result < min ? min : result;
+	}
+
+	/**
+	 * Returns the number of values added to the sketch.
+	 */
+	long count() {
+		return count;
+	}
+
+	/**
+	 * Removes all the values from the sketch, keeping its memory.
+	 */
+	void reset() {
+		positive.reset();
+		negative.reset();
+		zero_count = 0;
+		count = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	private int index(final double magnitude) {
+		return (int) Math.ceil(Math.log(magnitude) / log_gamma);
+	}
+
+	/**
+	 * Returns the representative value of a bucket, which is within the
+	 * relative accuracy of every value counted in it.
+	 */
+	private double value(final int index) {
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+	public String toString() {
+		return "QuantileSketch(relative_accuracy=" + relative_accuracy
+				+ ", count=" + count + ", zero_count=" + zero_count
+				+ ", min=" + min + ", max=" + max + ')';
+	}
+
+	/**
+	 * Counts of a window of contiguous buckets.
+	 */
+	private static final class Store {
+		private final int max_buckets;
+		/**
+		 * Counts of the window, allocated on the first value.
+		 */
+		private long[] counts;
+		/**
+		 * Bucket index of {@code counts[0]}.
+		 */
+		private int offset;
+		private int min_index = Integer.MAX_VALUE;
+		private int max_index = Integer.MIN_VALUE;
+		private long total;
+
+		Store(final int max_buckets) {
+			this.max_buckets = max_buckets;
+		}
+
+		long get(final int index) {
+			return counts[index - offset];
+		}
+
+		void add(int index) {
+			if (counts == null) {
+				counts = new long[max_buckets];
+			}
+			if (total == 0) {
+				// Center the window on the first value.
+				offset = index - max_buckets / 2;
+			} else if (index >= offset + max_buckets) {
+				rebase(index - max_buckets + 1);
+			} else if (index < offset) {
+				final int lowest = Math.max(index, max_index - max_buckets + 1);
+				if (lowest < offset) {
+					rebase(lowest);
+				}
+				if (index < offset) {
+					index = offset;
+				}
+			}
+			counts[index - offset]++;
+			total++;
+			if (index < min_index) {
+				min_index = index;
+			}
+			if (index > max_index) {
+				max_index = index;
+			}
+		}
+
+		/**
+		 * Moves the window to start at the given index, folding the buckets
+		 * below it into the first one.
+		 */
+		private void rebase(final int new_offset) {
+			final long[] rebased = new long[max_buckets];
+			for (int i = min_index; i <= max_index; i++) {
+				final int j = Math.max(i, new_offset);
+				rebased[j - new_offset] += counts[i - offset];
+			}
+			counts = rebased;
+			offset = new_offset;
+			min_index = Math.max(min_index, new_offset);
+		}
+
+		void reset() {
+			if (total != 0) {
+				Arrays.fill(counts, min_index - offset, max_index - offset + 1, 0);
+			}
+			min_index = Integer.MAX_VALUE;
+			max_index = Integer.MIN_VALUE;
+			total = 0;
+		}
+	}
+
+}
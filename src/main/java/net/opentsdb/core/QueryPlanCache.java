@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded caches of the planning work done for queries, since dashboards send
+ * the same query strings over and over with only the time range changing.
+ * <ul>
+ * <li>Parsed queries, by query string without the time range: the sub
+ * queries and the expression trees, parsed once instead of running the
+ * expression parser for each request.</li>
+ * <li>Resolved series, by metric and tags: the UIDs of the metric, tags and
+ * 'GROUP BY's and the row key regexp of the scanner, so that a
+ * {@link TsdbQuery} doesn't resolve them again.</li>
+ * </ul>
+ * Failures, like a name without UID, are never cached.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class QueryPlanCache {
+
+	/**
+	 * Templates of parsed queries, never validated nor built, by query string.
+	 */
+	private final Cache<String, TSQuery> parsed;
+
+	/**
+	 * Resolved series, by metric name and tags.
+	 */
+	private final Cache<String, TsdbQuery.ResolvedSeries> resolved;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size The maximum number of entries of each cache.
+	 */
+	QueryPlanCache(final int size) {
+		parsed = CacheBuilder.newBuilder().maximumSize(size).recordStats().build();
+		resolved = CacheBuilder.newBuilder().maximumSize(size).recordStats().build();
+	}
+
+	/**
+	 * Sets the sub queries and expressions parsed from the given query string
+	 * on a query, if cached.
+	 *
+	 * @param text  The query string, without the time range.
+	 * @param query A new query, with no sub queries.
+	 * @return Whether the query string was cached.
+	 */
+	public boolean getParsedQuery(final String text, final TSQuery query) {
+		final TSQuery template = parsed.getIfPresent(text);
+		if (template == null) {
+			return false;
+		}
+		query.copyQueriesFrom(template);
+		return true;
+	}
+
+	/**
+	 * Caches the sub queries and expressions parsed from a query string.
+	 *
+	 * @param text  The query string, without the time range.
+	 * @param query The query parsed, before it is validated.
+	 */
+	public void putParsedQuery(final String text, final TSQuery query) {
+		final TSQuery template = new TSQuery();
+		template.copyQueriesFrom(query);
+		parsed.put(text, template);
+	}
+
+	TsdbQuery.ResolvedSeries getResolvedSeries(final String key) {
+		return resolved.getIfPresent(key);
+	}
+
+	void putResolvedSeries(final String key, final TsdbQuery.ResolvedSeries series) {
+		resolved.put(key, series);
+	}
+
+	public void collectStats(final StatsCollector collector) {
+		final CacheStats parsed_stats = parsed.stats();
+		collector.record("query.plan_cache.parsed.hits", parsed_stats.hitCount());
+		collector.record("query.plan_cache.parsed.misses", parsed_stats.missCount());
+		collector.record("query.plan_cache.parsed.size", parsed.size());
+		final CacheStats resolved_stats = resolved.stats();
+		collector.record("query.plan_cache.resolved.hits", resolved_stats.hitCount());
+		collector.record("query.plan_cache.resolved.misses", resolved_stats.missCount());
+		collector.record("query.plan_cache.resolved.size", resolved.size());
+	}
+
+	public String toString() {
+		return "QueryPlanCache(parsed=" + parsed.size() + ", resolved="
+				+ resolved.size() + ')';
+	}
+
+}
@@ -17,38 +17,60 @@ import java.util.NoSuchElementException;
 
 /**
  * Iterator that generates rates from a sequence of adjacent data points.
+ * <p/>
+ * The state is kept in primitives and the source is read in batches, so
+ * iterating doesn't allocate.  The data point returned by {@link #next} is
+ * this object itself, valid until the next call.
+ * <p/>
+ * When the source is downsampled, the rate is rather computed by the
+ * {@link Downsampler} itself, see {@link Span#downsampler(long, Aggregator,
+ * boolean, RateOptions)}.
  */
-public class RateSpan implements SeekableView {
+public class RateSpan implements SeekableView, DataPoint {
 
 	// The Long.MAX_VALUE works fine as the invalid timestamp with open-ended
 	// time ranges.
 	/**
 	 * Timestamp to indicate that the data point is invalid.
 	 */
-	private static long INVALID_TIMESTAMP = Long.MAX_VALUE;
+	private static final long INVALID_TIMESTAMP = Long.MAX_VALUE;
 
 	/**
 	 * A sequence of data points to compute rates.
 	 */
 	private final SeekableView source;
+	/**
+	 * {@link #source} read one batch at a time.
+	 */
+	private final BatchReader reader;
 	/**
 	 * Options for calculating rates.
 	 */
 	private final RateOptions options;
-	// TODO: use primitives for next_data, next_rate, and prev_rate instead
-	// in order to reduce memory and CPU overhead.
+
 	/**
-	 * The latter of two raw data points used to calculate the next rate.
+	 * The latter of two raw data points used to calculate the next rate.  Its
+	 * value is in {@link #data_long} if it's an integer, {@link #data_double}
+	 * otherwise.
 	 */
-	private final MutableDataPoint next_data = new MutableDataPoint();
+	private long data_timestamp;
+	private boolean data_is_integer;
+	private long data_long;
+	private double data_double;
+
 	/**
-	 * The rate that will be returned at the {@link #next} call.
+	 * The rate that will be returned at the {@link #next} call, its timestamp
+	 * is {@link #INVALID_TIMESTAMP} if there is none.
 	 */
-	private final MutableDataPoint next_rate = new MutableDataPoint();
+	private long next_rate_timestamp = INVALID_TIMESTAMP;
+	private double next_rate;
+
 	/**
 	 * Users see this rate after they called next.
 	 */
-	private final MutableDataPoint prev_rate = new MutableDataPoint();
+	private long timestamp;
+	private double rate;
+
 	/**
 	 * True if it is initialized for iterating rates of changes.
 	 */
@@ -62,9 +84,83 @@ public class RateSpan implements SeekableView {
 	 */
 	RateSpan(final SeekableView source, final RateOptions options) {
 		this.source = source;
+		this.reader = new BatchReader(source);
 		this.options = options;
 	}
 
+	/**
+	 * Computes the rate between two integer data points.
+	 *
+	 * @param options Options for calculating rates.
+	 * @param t0      Timestamp of the first data point, in milliseconds.
+	 * @param y0      Value of the first data point.
+	 * @param t1      Timestamp of the second data point, in milliseconds.
+	 * @param y1      Value of the second data point.
+	 * @return The rate per second.
+	 * @throws IllegalStateException if {@code t1} isn't after {@code t0}.
+	 */
+	static double rate(final RateOptions options, final long t0, final long y0,
+	                   final long t1, final long y1) {
+		final double time_delta_secs = timeDelta(t0, t1);
+		// NOTE: Calculates in the long type to avoid precision loss
+		// while converting long values to double values if both values are long.
+		// NOTE: Ignores the integer overflow.
+		final double difference = y1 - y0;
+		if (options.isCounter() && difference < 0) {
+			return counterRate(options,
+					options.getCounterMax() - y0 + y1, time_delta_secs);
+		}
+		return difference / time_delta_secs;
+	}
+
+	/**
+	 * Computes the rate between two data points, at least one of which is a
+	 * floating point value.
+	 *
+	 * @see #rate(RateOptions, long, long, long, long)
+	 */
+	static double rate(final RateOptions options, final long t0, final double y0,
+	                   final long t1, final double y1) {
+		final double time_delta_secs = timeDelta(t0, t1);
+		final double difference = y1 - y0;
+		if (options.isCounter() && difference < 0) {
+			return counterRate(options,
+					options.getCounterMax() - y0 + y1, time_delta_secs);
+		}
+		return difference / time_delta_secs;
+	}
+
+	/**
+	 * Returns the time between two data points in seconds.
+	 */
+	private static double timeDelta(final long t0, final long t1) {
+		if (t1 <= t0) {
+			throw new IllegalStateException(
+					"Next timestamp (" + t1 + ") is supposed to be "
+							+ " strictly greater than the previous one (" + t0 + "), but it's"
+							+ " not.");
+		}
+		// TODO: for backwards compatibility we'll convert the ms to seconds
+		// but in the future we should add a ratems flag that will calculate
+		// the rate as is.
+		return (double) (t1 - t0) / 1000.0;
+	}
+
+	/**
+	 * Returns the rate of a counter that rolled over.
+	 */
+	private static double counterRate(final RateOptions options,
+	                                  final double difference,
+	                                  final double time_delta_secs) {
+		// If the rate is greater than the reset value, return a 0
+		final double rate = difference / time_delta_secs;
+		if (options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
+				&& rate > options.getResetValue()) {
+			return 0.0D;
+		}
+		return rate;
+	}
+
 	// ------------------ //
 	// Iterator interface //
 	// ------------------ //
@@ -75,7 +171,7 @@ public class RateSpan implements SeekableView {
 	@Override
 	public boolean hasNext() {
 		initializeIfNotDone();
-		return next_rate.timestamp() != INVALID_TIMESTAMP;
+		return next_rate_timestamp != INVALID_TIMESTAMP;
 	}
 
 	/**
@@ -86,12 +182,10 @@ public class RateSpan implements SeekableView {
 	public DataPoint next() {
 		initializeIfNotDone();
 		if (hasNext()) {
-			// NOTE: Just copies currentRate to prevRate, and does not allocate
-			// any new DataPoint object to reduce the memory allocation overhead.
-			// So, users access data at prev_rate.
-			prev_rate.reset(next_rate);
+			timestamp = next_rate_timestamp;
+			rate = next_rate;
 			populateNextRate();
-			return prev_rate;
+			return this;
 		} else {
 			throw new NoSuchElementException("no more values for " + toString());
 		}
@@ -108,10 +202,55 @@ public class RateSpan implements SeekableView {
 
 	@Override
 	public void seek(long timestamp) {
-		source.seek(timestamp);
+		reader.seek(timestamp);
 		initialized = false;
 	}
 
+	@Override
+	public int nextBatch(final long[] timestamps, final long[] values) {
+		initializeIfNotDone();
+		final int max = Math.min(timestamps.length, values.length);
+		int n = 0;
+		while (n < max && next_rate_timestamp != INVALID_TIMESTAMP) {
+			timestamps[n] = next_rate_timestamp | FLAG_FLOAT;
+			values[n] = Double.doubleToRawLongBits(next_rate);
+			timestamp = next_rate_timestamp;
+			rate = next_rate;
+			populateNextRate();
+			n++;
+		}
+		return n;
+	}
+
+	// ------------------- //
+	// DataPoint interface //
+	// ------------------- //
+
+	@Override
+	public long timestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public boolean isInteger() {
+		return false;
+	}
+
+	@Override
+	public long longValue() {
+		throw new ClassCastException("Rates are doubles");
+	}
+
+	@Override
+	public double doubleValue() {
+		return rate;
+	}
+
+	@Override
+	public double toDouble() {
+		return rate;
+	}
+
 	// ---------------------- //
 	// Private methods        //
 	// ---------------------- //
@@ -128,7 +267,9 @@ public class RateSpan implements SeekableView {
 			// NOTE: Calculates the first rate between the time zero and the first
 			// data point for the backward compatibility.
 			// TODO: Don't compute the first rate with the time zero.
-			next_data.reset(0, 0);
+			data_timestamp = 0;
+			data_is_integer = true;
+			data_long = 0;
 			// Sets the first rate to be retrieved.
 			populateNextRate();
 		}
@@ -138,59 +279,32 @@ public class RateSpan implements SeekableView {
 	 * Populate the next rate.
 	 */
 	private void populateNextRate() {
-		final MutableDataPoint prev_data = new MutableDataPoint();
-		if (source.hasNext()) {
-			prev_data.reset(next_data);
-			next_data.reset(source.next());
-
-			final long t0 = prev_data.timestamp();
-			final long t1 = next_data.timestamp();
-			if (t1 <= t0) {
-				throw new IllegalStateException(
-						"Next timestamp (" + t1 + ") is supposed to be "
-								+ " strictly greater than the previous one (" + t0 + "), but it's"
-								+ " not.  this=" + this);
-			}
-			// TODO: for backwards compatibility we'll convert the ms to seconds
-			// but in the future we should add a ratems flag that will calculate
-			// the rate as is.
-			final double time_delta_secs = ((double) (t1 - t0) / 1000.0);
-			double difference;
-			if (prev_data.isInteger() && next_data.isInteger()) {
-				// NOTE: Calculates in the long type to avoid precision loss
-				// while converting long values to double values if both values are long.
-				// NOTE: Ignores the integer overflow.
-				difference = next_data.longValue() - prev_data.longValue();
-			} else {
-				difference = next_data.toDouble() - prev_data.toDouble();
-			}
-
-			if (options.isCounter() && difference < 0) {
-				if (prev_data.isInteger() && next_data.isInteger()) {
-					// NOTE: Calculates in the long type to avoid precision loss
-					// while converting long values to double values if both values are long.
-					difference = options.getCounterMax() - prev_data.longValue() +
-							next_data.longValue();
-				} else {
-					difference = options.getCounterMax() - prev_data.toDouble() +
-							next_data.toDouble();
-				}
-
-				// If the rate is greater than the reset value, return a 0
-				final double rate = difference / time_delta_secs;
-				if (options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
-						&& rate > options.getResetValue()) {
-					next_rate.reset(next_data.timestamp(), 0.0D);
-				} else {
-					next_rate.reset(next_data.timestamp(), rate);
-				}
+		if (!reader.hasNext()) {
+			// Invalidates the next rate with invalid timestamp.
+			next_rate_timestamp = INVALID_TIMESTAMP;
+			next_rate = 0;
+			return;
+		}
+		reader.next();
+		final long t0 = data_timestamp;
+		final long t1 = reader.timestamp();
+		if (data_is_integer && reader.isInteger()) {
+			final long y1 = reader.longValue();
+			next_rate = rate(options, t0, data_long, t1, y1);
+			data_long = y1;
+		} else {
+			final double y0 = data_is_integer ? data_long : data_double;
+			final double y1 = reader.toDouble();
+			next_rate = rate(options, t0, y0, t1, y1);
+			data_is_integer = reader.isInteger();
+			if (data_is_integer) {
+				data_long = reader.longValue();
 			} else {
-				next_rate.reset(next_data.timestamp(), (difference / time_delta_secs));
+				data_double = y1;
 			}
-		} else {
-			// Invalidates the next rate with invalid timestamp.
-			next_rate.reset(INVALID_TIMESTAMP, 0);
 		}
+		data_timestamp = t1;
+		next_rate_timestamp = t1;
 	}
 
 	@Override
@@ -198,9 +312,12 @@ public class RateSpan implements SeekableView {
 		final StringBuilder buf = new StringBuilder();
 		buf.append("RateSpan: ")
 				.append(", options=").append(options)
-				.append(", next_data=[").append(next_data)
-				.append("], next_rate=[").append(next_rate)
-				.append("], prev_rate=[").append(prev_rate)
+				.append(", next_data=[timestamp=").append(data_timestamp)
+				.append(", value=").append(data_is_integer ? data_long : data_double)
+				.append("], next_rate=[timestamp=").append(next_rate_timestamp)
+				.append(", value=").append(next_rate)
+				.append("], rate=[timestamp=").append(timestamp)
+				.append(", value=").append(rate)
 				.append("], source=[").append(source).append("]");
 		return buf.toString();
 	}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.tsd.QueryStats;
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseException;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scan of a downsampled query routed to the {@link Rollups}: the spans of the
+ * query get one data point per rollup interval up to a cut-off time, which
+ * the downsampler of the query then aggregates like data points, and the
+ * data points from the cut-off time, which may not be rolled up yet.
+ * <p/>
+ * Rollup cells are added to the spans as rows of one data point each, at the
+ * start of their interval, so the rest of the query runs unchanged.
+ */
+final class RollupScan {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RollupScan.class);
+
+	private final TSDB tsdb;
+	private final TsdbQuery query;
+	private final Rollups.Level level;
+
+	/**
+	 * The function read, see {@link Rollups#downsampler}.
+	 */
+	private final byte function;
+
+	/**
+	 * Start of the first rollup interval read, in seconds.
+	 */
+	private final long start_seconds;
+
+	/**
+	 * Time from which data points are read instead of rollups, in seconds.
+	 */
+	private final long cutoff_seconds;
+
+	private final SpanTable spans;
+	private final Deferred<SpanTable> result = new Deferred<SpanTable>();
+
+	private final long start_nanos = System.nanoTime();
+	private int nrows;
+	private boolean seen_annotation;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tsdb           The TSDB to scan.
+	 * @param query          The query, routed to the rollups.
+	 * @param level          The rollups to read.
+	 * @param function       The function to read, see {@link Rollups#downsampler}.
+	 * @param cutoff_seconds Time from which to read data points, aligned on
+	 *                       the interval of the level.
+	 */
+	RollupScan(final TSDB tsdb, final TsdbQuery query, final Rollups.Level level,
+	           final byte function, final long cutoff_seconds) {
+		this.tsdb = tsdb;
+		this.query = query;
+		this.level = level;
+		this.function = function;
+		final long start = query.getScanStartTimeSeconds();
+		this.start_seconds = start - start % level.interval;
+		this.cutoff_seconds = cutoff_seconds;
+		this.spans = query.newSpanTable();
+	}
+
+	/**
+	 * Starts the scan.
+	 *
+	 * @return The spans found, {@code null} if no row matched.
+	 * @throws HBaseException if there was a problem communicating with HBase.
+	 */
+	Deferred<SpanTable> start() throws HBaseException {
+		LOG.info("Reading " + query + " from " + level + " until " + cutoff_seconds);
+		final Scanner scanner = query.newScanner(level.table,
+				start_seconds - start_seconds % level.row_span, cutoff_seconds);
+		setKeyRegexp(scanner);
+		scanner.nextRows().addCallback(new ScannerCB(scanner, true));
+		return result;
+	}
+
+	private void setKeyRegexp(final Scanner scanner) {
+		final String regexp = query.keyRegexp();
+		if (regexp != null) {
+			scanner.setKeyRegexp(regexp, TsdbQuery.CHARSET);
+		}
+	}
+
+	/**
+	 * Adds the cells of a rollup row to the spans.
+	 */
+	private void addRollupRow(final ArrayList<KeyValue> row) {
+		final byte[] key = row.get(0).key();
+		final long row_base = Bytes.getUnsignedInt(key, tsdb.metrics.width());
+		// sums by index, to divide by the counts for averages
+		final HashMap<Integer, KeyValue> sums = function == Rollups.AVG
+				? new HashMap<Integer, KeyValue>()
+				: null;
+		Span span = null;
+		for (final KeyValue kv : row) {
+			final byte[] qualifier = kv.qualifier();
+			if (qualifier.length != 3) {
+				continue;
+			}
+			final int index = Rollups.index(qualifier);
+			final long timestamp = row_base + index * level.interval;
+			if (timestamp < start_seconds || timestamp >= cutoff_seconds) {
+				continue;
+			}
+			final short flags = Rollups.flags(qualifier);
+			final byte[] value;
+			final short value_flags;
+			if (function == Rollups.AVG) {
+				if (qualifier[0] == Rollups.SUM) {
+					sums.put(index, kv);
+					continue;
+				} else if (qualifier[0] != Rollups.COUNT || !sums.containsKey(index)) {
+					continue;
+				}
+				final byte[] sum_qualifier = sums.get(index).qualifier();
+				final byte sum_flags = (byte) Rollups.flags(sum_qualifier);
+				final double sum = (sum_flags & Const.FLAG_FLOAT) == 0
+						? Internal.extractIntegerValue(sums.get(index).value(), 0, sum_flags)
+						: Internal.extractFloatingPointValue(sums.get(index).value(), 0, sum_flags);
+				final long count = Internal.extractIntegerValue(kv.value(), 0, (byte) flags);
+				value = Bytes.fromLong(Double.doubleToRawLongBits(sum / count));
+				value_flags = Const.FLAG_FLOAT | 0x7;
+			} else if (qualifier[0] == function) {
+				value = kv.value();
+				value_flags = flags;
+			} else {
+				continue;
+			}
+
+			final byte[] point_key = key.clone();
+			Bytes.setInt(point_key, (int) (timestamp - timestamp % Const.MAX_TIMESPAN),
+					tsdb.metrics.width());
+			if (span == null) {
+				span = spans.getOrCreate(point_key);
+			}
+			span.addRow(new KeyValue(point_key, TSDB.FAMILY,
+					Internal.buildQualifier(timestamp, value_flags), value));
+		}
+		if (span != null) {
+			nrows++;
+		}
+	}
+
+	/**
+	 * Reads the rollup rows, then the data rows from the cut-off time.
+	 */
+	private final class ScannerCB implements Callback<Object,
+			ArrayList<ArrayList<KeyValue>>> {
+
+		private final Scanner scanner;
+
+		/**
+		 * Whether the scanner reads rollups, or data points.
+		 */
+		private final boolean rollups;
+
+		private final ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+
+		ScannerCB(final Scanner scanner, final boolean rollups) {
+			this.scanner = scanner;
+			this.rollups = rollups;
+		}
+
+		@Override
+		public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+			try {
+				if (rows == null) {
+					scanner.close();
+					if (rollups && cutoff_seconds < query.getScanEndTimeSeconds()) {
+						final Scanner data_scanner = query.newScanner(tsdb.table,
+								cutoff_seconds, query.getScanEndTimeSeconds());
+						setKeyRegexp(data_scanner);
+						return data_scanner.nextRows().addCallback(
+								new ScannerCB(data_scanner, false));
+					}
+					done();
+					return null;
+				}
+				for (final ArrayList<KeyValue> row : rows) {
+					final byte[] key = row.get(0).key();
+					if (Bytes.memcmp(query.metric(), key, 0, tsdb.metrics.width()) != 0) {
+						throw new IllegalDataException("HBase returned a row that doesn't"
+								+ " match our scanner (" + scanner + ")! " + row);
+					}
+					if (rollups) {
+						addRollupRow(row);
+						continue;
+					}
+					annotations.clear();
+					final KeyValue compacted = tsdb.compact(row, annotations);
+					final Span span = spans.getOrCreate(key);
+					span.getAnnotations().addAll(annotations);
+					seen_annotation |= !annotations.isEmpty();
+					if (compacted != null) {
+						span.addRow(compacted);
+						nrows++;
+					}
+				}
+				return scanner.nextRows().addCallback(this);
+			} catch (Exception e) {
+				scanner.close();
+				result.callback(e);
+				return null;
+			}
+		}
+	}
+
+	private void done() {
+		final long elapsed = System.nanoTime() - start_nanos;
+		LOG.info(query + " matched " + nrows + " rows in " + spans.size()
+				+ " spans from " + level + " in " + elapsed / 1000000 + "ms");
+		QueryStats.hbaseScan().update(elapsed, TimeUnit.NANOSECONDS);
+		if (nrows < 1 && !seen_annotation) {
+			result.callback(null);
+		} else {
+			query.sealSpans(spans);
+			result.callback(spans);
+		}
+	}
+
+}
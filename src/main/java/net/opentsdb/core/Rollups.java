@@ -0,0 +1,530 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-series pre-aggregates of the data points (sum, count, min and max) at
+ * coarser intervals, e.g. 1h and 1d, each in its own table, so that queries
+ * downsampling over long ranges read a cell per interval instead of every
+ * data point.
+ * <p/>
+ * The first interval is one hour, the span of a row: its cells are written
+ * when the {@link CompactionQueue} compacts a row, so compactions must be
+ * enabled.  Each following interval is a multiple of the previous one, and
+ * its cell is recomputed from the cells of the previous interval once one of
+ * them is written, so rewriting a cell is always safe, e.g. when a row is
+ * compacted again.  Recomputations of a row are serialized, so that a stale
+ * one can't overwrite a newer one.
+ * <p/>
+ * Rows compacted before the rollups were enabled aren't rolled up, so
+ * queries are only routed to the rollups from {@code tsd.rollups.since},
+ * by default the first hour after the TSD started.
+ * <p/>
+ * Rollup rows have the layout of data rows, the base time aligned on the
+ * next interval (256 intervals for the last one), so that all the cells
+ * rolled up into one cell of the next interval are in one row.  Qualifiers
+ * are the ID of the function followed by the index of the interval in the
+ * row and the flags of the value, like the qualifiers of data points.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class Rollups {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+
+	/**
+	 * IDs of the functions, first byte of the qualifiers.
+	 */
+	static final byte SUM = 0;
+	static final byte COUNT = 1;
+	static final byte MIN = 2;
+	static final byte MAX = 3;
+
+	/**
+	 * Pseudo function read as {@link #SUM} divided by {@link #COUNT}.
+	 */
+	static final byte AVG = 4;
+
+	/**
+	 * Number of intervals in a row of the last level.
+	 */
+	private static final int LAST_ROW_INTERVALS = 256;
+
+	private final TSDB tsdb;
+
+	/**
+	 * The levels, from the finest interval.
+	 */
+	private final Level[] levels;
+
+	/**
+	 * Time since which the rollups are complete, in seconds, aligned on the
+	 * first interval.
+	 */
+	private final long since_seconds;
+
+	private final AtomicLong cells_written = new AtomicLong();
+	private final AtomicLong write_errors = new AtomicLong();
+	private final AtomicLong queries_routed = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tsdb         The TSDB.
+	 * @param intervals    The intervals, comma separated, e.g. {@code 1h,1d}.
+	 * @param table_prefix The prefix of the tables, followed by the interval.
+	 * @param since        The time since which the rollups are complete, or
+	 *                     empty for the first hour after now.
+	 * @throws IllegalArgumentException if the intervals are invalid, or if
+	 *                                  compactions are disabled.
+	 */
+	Rollups(final TSDB tsdb, final String intervals, final String table_prefix,
+	        final String since) {
+		if (!tsdb.getConfig().enable_compactions()) {
+			throw new IllegalArgumentException("Rollups are written by compactions,"
+					+ " they can't be enabled without tsd.storage.enable_compaction");
+		}
+		this.tsdb = tsdb;
+		final long since_ms = since == null || since.isEmpty()
+				? System.currentTimeMillis()
+				: DateTime.parseDateTimeString(since, null);
+		final long since_rounded = since_ms / 1000 + Const.MAX_TIMESPAN - 1;
+		since_seconds = since_rounded - since_rounded % Const.MAX_TIMESPAN;
+		final String[] names = Tags.splitString(intervals, ',');
+		final long[] seconds = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			seconds[i] = DateTime.parseDuration(names[i].trim()) / 1000;
+			if (i == 0 && seconds[i] != Const.MAX_TIMESPAN) {
+				throw new IllegalArgumentException("The first rollup interval must be "
+						+ Const.MAX_TIMESPAN + "s, not " + names[i]);
+			} else if (i > 0 && (seconds[i] <= seconds[i - 1]
+					|| seconds[i] % seconds[i - 1] != 0
+					|| seconds[i] / seconds[i - 1] > 4096)) {
+				throw new IllegalArgumentException("Rollup interval " + names[i]
+						+ " is not a multiple of " + names[i - 1] + " up to 4096 times");
+			}
+		}
+		levels = new Level[names.length];
+		for (int i = 0; i < names.length; i++) {
+			final String name = names[i].trim();
+			levels[i] = new Level(i, seconds[i],
+					i + 1 < names.length ? seconds[i + 1] : seconds[i] * LAST_ROW_INTERVALS,
+					(table_prefix + name).getBytes(TsdbQuery.CHARSET));
+		}
+	}
+
+	/**
+	 * An interval of rollups.
+	 */
+	static final class Level {
+		final int index;
+
+		/**
+		 * The interval, in seconds.
+		 */
+		final long interval;
+
+		/**
+		 * The time spanned by a row, in seconds.
+		 */
+		final long row_span;
+
+		final byte[] table;
+
+		/**
+		 * Keys of the rows being rolled up into the next level, mapped to
+		 * whether they were written again since, see {@link #rollUp}.
+		 */
+		final ByteMap<Boolean> rolling_up = new ByteMap<Boolean>();
+
+		Level(final int index, final long interval, final long row_span,
+		      final byte[] table) {
+			this.index = index;
+			this.interval = interval;
+			this.row_span = row_span;
+			this.table = table;
+		}
+
+		public String toString() {
+			return "Rollups.Level(interval=" + interval + "s, table="
+					+ new String(table, TsdbQuery.CHARSET) + ')';
+		}
+	}
+
+	/**
+	 * Returns the coarsest level a downsampled query can read instead of the
+	 * data points, or {@code null}.  The query must start once the rollups
+	 * are complete, the downsampling interval must be a multiple of the
+	 * interval of the level, and the downsampler a sum, min, max, or avg if
+	 * the intervals are equal.
+	 *
+	 * @param start_seconds The start of the query, in seconds.
+	 * @param interval_ms   The downsampling interval, in milliseconds.
+	 * @param downsampler   The downsampler.
+	 */
+	Level route(final long start_seconds, final long interval_ms,
+	            final Aggregator downsampler) {
+		if (interval_ms % 1000 != 0 || start_seconds < since_seconds) {
+			return null;
+		}
+		final byte function = downsampler(downsampler);
+		if (function < 0) {
+			return null;
+		}
+		final long interval = interval_ms / 1000;
+		for (int i = levels.length - 1; i >= 0; i--) {
+			// the first interval read starts at the start aligned on the level
+			if (start_seconds - start_seconds % levels[i].interval < since_seconds) {
+				continue;
+			}
+			if (interval == levels[i].interval
+					|| (interval % levels[i].interval == 0 && function != AVG)) {
+				return levels[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the function to read from the rollups for a downsampler, or -1
+	 * if not supported.
+	 */
+	static byte downsampler(final Aggregator downsampler) {
+		final String name = downsampler.toString();
+		if ("sum".equals(name) || "zimsum".equals(name)) {
+			return SUM;
+		} else if ("min".equals(name) || "mimmin".equals(name)) {
+			return MIN;
+		} else if ("max".equals(name) || "mimmax".equals(name)) {
+			return MAX;
+		} else if ("avg".equals(name)) {
+			return AVG;
+		}
+		return -1;
+	}
+
+	void queryRouted() {
+		queries_routed.incrementAndGet();
+	}
+
+	/**
+	 * Returns the qualifier of a rollup cell.
+	 *
+	 * @param function The ID of the function.
+	 * @param index    The index of the interval in the row.
+	 * @param flags    The flags of the value.
+	 */
+	static byte[] qualifier(final byte function, final int index,
+	                        final short flags) {
+		final short offset = (short) (index << Const.FLAG_BITS | flags);
+		return new byte[]{function, (byte) (offset >>> 8), (byte) offset};
+	}
+
+	/**
+	 * @return the index of the interval of a rollup cell in its row.
+	 */
+	static int index(final byte[] qualifier) {
+		return ((qualifier[1] & 0xFF) << 8 | (qualifier[2] & 0xFF)) >>> Const.FLAG_BITS;
+	}
+
+	/**
+	 * @return the flags of the value of a rollup cell.
+	 */
+	static short flags(final byte[] qualifier) {
+		return (short) (qualifier[2] & Const.FLAGS_MASK);
+	}
+
+	/**
+	 * Returns the key of the rollup row of a series.
+	 *
+	 * @param series    A row key of the series.
+	 * @param base_time The base time of the rollup row.
+	 */
+	private byte[] rowKey(final byte[] series, final long base_time) {
+		final byte[] key = series.clone();
+		Bytes.setInt(key, (int) base_time, tsdb.metrics.width());
+		return key;
+	}
+
+	/**
+	 * Rolls up a data row once compacted.
+	 *
+	 * @param compacted The compacted row.
+	 */
+	void onCompacted(final KeyValue compacted) {
+		final Accumulator accumulator = new Accumulator();
+		for (final Internal.Cell cell : Internal.extractDataPoints(compacted)) {
+			final Number value = cell.parseValue();
+			if (cell.isInteger()) {
+				accumulator.add(value.longValue());
+			} else {
+				accumulator.add(value.doubleValue());
+			}
+		}
+		if (accumulator.count == 0) {
+			return;
+		}
+		final long base_time = Bytes.getUnsignedInt(compacted.key(), tsdb.metrics.width());
+		write(levels[0], compacted.key(), base_time, accumulator);
+	}
+
+	/**
+	 * Writes the cells of a level for an interval, then recomputes the cells
+	 * of the next level.
+	 *
+	 * @param level       The level.
+	 * @param series      A row key of the series.
+	 * @param start       The start of the interval, in seconds.
+	 * @param accumulator The values of the interval.
+	 * @return A deferred called back once the cells are written and rolled up.
+	 */
+	private Deferred<Object> write(final Level level, final byte[] series,
+	                               final long start, final Accumulator accumulator) {
+		final long row_base = start - start % level.row_span;
+		final int index = (int) ((start - row_base) / level.interval);
+		final byte[] key = rowKey(series, row_base);
+		final byte[][] qualifiers = new byte[4][];
+		final byte[][] values = new byte[4][];
+		accumulator.encode(index, qualifiers, values);
+
+		final Deferred<Object> put = tsdb.client.put(
+				new PutRequest(level.table, key, TSDB.FAMILY, qualifiers, values));
+		put.addCallbacks(new Callback<Object, Object>() {
+			public Object call(final Object arg) {
+				cells_written.addAndGet(4);
+				return arg;
+			}
+		}, new Callback<Object, Exception>() {
+			public Object call(final Exception e) {
+				write_errors.incrementAndGet();
+				LOG.error("Failed to roll up " + level + " at " + start + " for row "
+						+ Arrays.toString(series), e);
+				return e;
+			}
+		});
+		if (level.index + 1 < levels.length) {
+			put.addCallbackDeferring(new Callback<Deferred<Object>, Object>() {
+				public Deferred<Object> call(final Object arg) {
+					return rollUp(level, key, series, row_base);
+				}
+			});
+		}
+		return put;
+	}
+
+	/**
+	 * Recomputes the cells of the next level from a row of a level.
+	 * <p/>
+	 * Reading the row and writing the cells isn't atomic, so a row is rolled
+	 * up once at a time: if it's written again meanwhile, it's rolled up again
+	 * once the cells computed are written, and the last cells written are
+	 * always computed from all the cells of the row.
+	 *
+	 * @param level    The level of the row.
+	 * @param key      The key of the row.
+	 * @param series   A row key of the series.
+	 * @param row_base The base time of the row, the start of the interval of
+	 *                 the next level.
+	 */
+	private Deferred<Object> rollUp(final Level level, final byte[] key,
+	                                final byte[] series, final long row_base) {
+		synchronized (level.rolling_up) {
+			if (level.rolling_up.containsKey(key)) {
+				level.rolling_up.put(key, Boolean.TRUE);
+				return Deferred.fromResult(null);
+			}
+			level.rolling_up.put(key, Boolean.FALSE);
+		}
+		final Level next = levels[level.index + 1];
+
+		final class RollUpCB implements Callback<Deferred<Object>, ArrayList<KeyValue>> {
+			public Deferred<Object> call(final ArrayList<KeyValue> row) {
+				final Accumulator next_accumulator = Accumulator.merge(row);
+				if (next_accumulator.count > 0) {
+					return write(next, series, row_base, next_accumulator);
+				}
+				return Deferred.fromResult(null);
+			}
+
+			public String toString() {
+				return "roll up into " + next;
+			}
+		}
+
+		final class DoneCB implements Callback<Deferred<Object>, Object> {
+			public Deferred<Object> call(final Object arg) {
+				if (arg instanceof Exception) {
+					LOG.error("Failed to roll up row " + Arrays.toString(key) + " of "
+							+ level + " into " + next, (Exception) arg);
+				}
+				synchronized (level.rolling_up) {
+					if (level.rolling_up.get(key) != Boolean.TRUE) {
+						level.rolling_up.remove(key);
+						return Deferred.fromResult(null);
+					}
+					level.rolling_up.put(key, Boolean.FALSE);
+				}
+				return tsdb.client.get(new GetRequest(level.table, key, TSDB.FAMILY))
+						.addCallbackDeferring(new RollUpCB())
+						.addBothDeferring(this);
+			}
+		}
+
+		return tsdb.client.get(new GetRequest(level.table, key, TSDB.FAMILY))
+				.addCallbackDeferring(new RollUpCB())
+				.addBothDeferring(new DoneCB());
+	}
+
+	public void collectStats(final StatsCollector collector) {
+		collector.record("rollups.cells_written", cells_written.get());
+		collector.record("rollups.write_errors", write_errors.get());
+		collector.record("rollups.queries_routed", queries_routed.get());
+	}
+
+	public String toString() {
+		return "Rollups(levels=" + Arrays.toString(levels) + ')';
+	}
+
+	/**
+	 * Sum, count, min and max of values, integers as long as all the values
+	 * are integers.
+	 */
+	static final class Accumulator {
+		long count;
+		long long_sum;
+		long long_min = Long.MAX_VALUE;
+		long long_max = Long.MIN_VALUE;
+		double sum;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		boolean integer = true;
+
+		void add(final long value) {
+			add(1, value, value, value);
+		}
+
+		void add(final double value) {
+			count++;
+			addDouble(value, value, value);
+		}
+
+		private void add(final long n, final long value_sum, final long value_min,
+		                 final long value_max) {
+			count += n;
+			long_sum += value_sum;
+			long_min = Math.min(long_min, value_min);
+			long_max = Math.max(long_max, value_max);
+			sum += value_sum;
+			min = Math.min(min, value_min);
+			max = Math.max(max, value_max);
+		}
+
+		private void addDouble(final double value_sum, final double value_min,
+		                       final double value_max) {
+			integer = false;
+			sum += value_sum;
+			min = Math.min(min, value_min);
+			max = Math.max(max, value_max);
+		}
+
+		/**
+		 * Encodes the cells of an interval.
+		 *
+		 * @param index      The index of the interval in the row.
+		 * @param qualifiers Receives the 4 qualifiers.
+		 * @param values     Receives the 4 values.
+		 */
+		void encode(final int index, final byte[][] qualifiers,
+		            final byte[][] values) {
+			final short long_flags = 0x7;
+			final short double_flags = Const.FLAG_FLOAT | 0x7;
+			final short flags = integer ? long_flags : double_flags;
+			qualifiers[0] = qualifier(SUM, index, flags);
+			values[0] = integer ? Bytes.fromLong(long_sum) : doubleBytes(sum);
+			qualifiers[1] = qualifier(COUNT, index, long_flags);
+			values[1] = Bytes.fromLong(count);
+			qualifiers[2] = qualifier(MIN, index, flags);
+			values[2] = integer ? Bytes.fromLong(long_min) : doubleBytes(min);
+			qualifiers[3] = qualifier(MAX, index, flags);
+			values[3] = integer ? Bytes.fromLong(long_max) : doubleBytes(max);
+		}
+
+		private static byte[] doubleBytes(final double value) {
+			return Bytes.fromLong(Double.doubleToRawLongBits(value));
+		}
+
+		/**
+		 * Rolls up all the cells of a rollup row.
+		 */
+		static Accumulator merge(final List<KeyValue> row) {
+			final Accumulator accumulator = new Accumulator();
+			for (final KeyValue kv : row) {
+				final byte[] qualifier = kv.qualifier();
+				if (qualifier.length != 3) {
+					continue;
+				}
+				final short flags = flags(qualifier);
+				final boolean is_integer = (flags & Const.FLAG_FLOAT) == 0;
+				final long long_value = is_integer
+						? Internal.extractIntegerValue(kv.value(), 0, (byte) flags)
+						: 0;
+				final double value = is_integer
+						? long_value
+						: Internal.extractFloatingPointValue(kv.value(), 0, (byte) flags);
+				switch (qualifier[0]) {
+					case COUNT:
+						accumulator.count += long_value;
+						break;
+					case SUM:
+						if (is_integer) {
+							accumulator.long_sum += long_value;
+							accumulator.sum += long_value;
+						} else {
+							accumulator.addDouble(value, Double.POSITIVE_INFINITY,
+									Double.NEGATIVE_INFINITY);
+						}
+						break;
+					case MIN:
+						if (is_integer) {
+							accumulator.long_min = Math.min(accumulator.long_min, long_value);
+							accumulator.min = Math.min(accumulator.min, long_value);
+						} else {
+							accumulator.addDouble(0, value, Double.NEGATIVE_INFINITY);
+						}
+						break;
+					case MAX:
+						if (is_integer) {
+							accumulator.long_max = Math.max(accumulator.long_max, long_value);
+							accumulator.max = Math.max(accumulator.max, long_value);
+						} else {
+							accumulator.addDouble(0, Double.POSITIVE_INFINITY, value);
+						}
+						break;
+					default:
+						break;
+				}
+			}
+			return accumulator;
+		}
+	}
+
+}
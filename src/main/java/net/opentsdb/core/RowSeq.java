@@ -60,6 +60,32 @@ final class RowSeq implements DataPoints {
 	 */
 	private byte[] values;
 
+	/**
+	 * Number of data points between two entries of {@link #offset_index}.
+	 */
+	private static final int INDEX_STRIDE = 16;
+
+	/**
+	 * Offsets in {@link #qualifiers} and {@link #values} of every
+	 * {@link #INDEX_STRIDE}-th data point, interleaved.
+	 * <p/>
+	 * Built lazily by {@link #offsetIndex} on the second seek or random
+	 * access, the first one scanning the row up to its target, and dropped
+	 * whenever the row changes.
+	 */
+	private int[] offset_index;
+
+	/**
+	 * Number of seeks or random accesses since the row changed, while there
+	 * is no {@link #offset_index}.
+	 */
+	private int random_accesses;
+
+	/**
+	 * Number of data points, valid along with {@link #offset_index}.
+	 */
+	private int indexed_size;
+
 	/**
 	 * Constructor.
 	 *
@@ -83,6 +109,8 @@ final class RowSeq implements DataPoints {
 		this.key = row.key();
 		this.qualifiers = row.qualifier();
 		this.values = row.value();
+		this.offset_index = null;
+		this.random_accesses = 0;
 	}
 
 	/**
@@ -226,6 +254,8 @@ final class RowSeq implements DataPoints {
 		}
 		values = Arrays.copyOfRange(merged_values, 0, merged_v_index + 1);
 		values[values.length - 1] = meta;
+		offset_index = null;
+		random_accesses = 0;
 	}
 
 	/**
@@ -337,22 +367,15 @@ final class RowSeq implements DataPoints {
 
 	/**
 	 * @return the number of data points in this row
-	 * Unfortunately we must walk the entire array as there may be a mix of
-	 * second and millisecond timestamps
+	 * If there is a mix of second and millisecond timestamps, the first call
+	 * walks the entire array to build the offset index.
 	 */
 	public int size() {
 		// if we don't have a mix of second and millisecond qualifiers we can run
-		// this in O(1), otherwise we have to run O(n)
-		if ((values[values.length - 1] & Const.MS_MIXED_COMPACT) ==
-				Const.MS_MIXED_COMPACT) {
-			int size = 0;
-			for (int i = 0; i < qualifiers.length; i += 2) {
-				if ((qualifiers[i] & Const.MS_BYTE_FLAG) == Const.MS_BYTE_FLAG) {
-					i += 2;
-				}
-				size++;
-			}
-			return size;
+		// this in O(1), otherwise we need the index
+		if (isMixed()) {
+			offsetIndex();
+			return indexed_size;
 		} else if ((qualifiers[0] & Const.MS_BYTE_FLAG) == Const.MS_BYTE_FLAG) {
 			return qualifiers.length / 4;
 		} else {
@@ -360,6 +383,123 @@ final class RowSeq implements DataPoints {
 		}
 	}
 
+	/**
+	 * Tells whether a cell, compacted or not, holds any data point with a
+	 * millisecond timestamp.
+	 *
+	 * @param qualifier The qualifier of the cell.
+	 * @param value     The value of the cell.
+	 */
+	static boolean hasMilliseconds(final byte[] qualifier, final byte[] value) {
+		if (Internal.inMilliseconds(qualifier[0])) {
+			return true;
+		}
+		// A compacted cell starting with a second qualifier only has
+		// millisecond ones if it's flagged as mixed.  A single second data
+		// point has no meta byte to look at.
+		return qualifier.length > 2 && (value[value.length - 1]
+				& Const.MS_MIXED_COMPACT) == Const.MS_MIXED_COMPACT;
+	}
+
+	/**
+	 * Tells whether or not this row mixes second and millisecond qualifiers.
+	 */
+	private boolean isMixed() {
+		return (values[values.length - 1] & Const.MS_MIXED_COMPACT) ==
+				Const.MS_MIXED_COMPACT;
+	}
+
+	/**
+	 * Returns the length in bytes of the qualifier at the given offset.
+	 */
+	private static int qualifierLength(final byte[] qualifiers, final int offset) {
+		return Internal.inMilliseconds(qualifiers[offset]) ? 4 : 2;
+	}
+
+	/**
+	 * Returns the length in bytes of the value of the qualifier at the given
+	 * offset.  The flags are in the last byte of the qualifier.
+	 */
+	private static int valueLength(final byte[] qualifiers, final int offset,
+	                               final int qual_length) {
+		return (qualifiers[offset + qual_length - 1] & Const.LENGTH_MASK) + 1;
+	}
+
+	/**
+	 * Returns the offset index, building it if needed.
+	 */
+	private int[] offsetIndex() {
+		int[] index = offset_index;
+		if (index != null) {
+			return index;
+		}
+		// Qualifiers are at least 2 bytes so this is enough room.
+		index = new int[((qualifiers.length / 2 + INDEX_STRIDE - 1) / INDEX_STRIDE) * 2];
+		int qual_offset = 0;
+		int value_offset = 0;
+		int n = 0;
+		while (qual_offset < qualifiers.length) {
+			if (n % INDEX_STRIDE == 0) {
+				index[(n / INDEX_STRIDE) * 2] = qual_offset;
+				index[(n / INDEX_STRIDE) * 2 + 1] = value_offset;
+			}
+			final int qual_length = qualifierLength(qualifiers, qual_offset);
+			value_offset += valueLength(qualifiers, qual_offset, qual_length);
+			qual_offset += qual_length;
+			n++;
+		}
+		indexed_size = n;
+		offset_index = index;
+		return index;
+	}
+
+	/**
+	 * Returns the offset index for a seek or random access, or {@code null}
+	 * for the first one, which is cheaper to do with a scan of the row up to
+	 * its target: most rows are only seeked once.
+	 */
+	private int[] offsetIndexForAccess() {
+		if (offset_index == null && random_accesses++ == 0) {
+			return null;
+		}
+		return offsetIndex();
+	}
+
+	/**
+	 * Finds the offsets of the i-th data point, or of the end of the row when
+	 * {@code i} is the size of the row.
+	 *
+	 * @return the offset in {@link #qualifiers} and the offset in
+	 * {@link #values}, packed in a long.
+	 */
+	private long locate(final int i) {
+		final int[] index = offsetIndexForAccess();
+		if (index == null) {
+			int qual_offset = 0;
+			int value_offset = 0;
+			for (int n = 0; n < i && qual_offset < qualifiers.length; n++) {
+				final int qual_length = qualifierLength(qualifiers, qual_offset);
+				value_offset += valueLength(qualifiers, qual_offset, qual_length);
+				qual_offset += qual_length;
+			}
+			return qual_offset < qualifiers.length
+					? ((long) qual_offset << 32) | value_offset
+					: ((long) qualifiers.length << 32) | (values.length - 1);
+		}
+		if (i >= indexed_size) {
+			return ((long) qualifiers.length << 32) | (values.length - 1);
+		}
+		final int checkpoint = i / INDEX_STRIDE;
+		int qual_offset = index[checkpoint * 2];
+		int value_offset = index[checkpoint * 2 + 1];
+		for (int n = checkpoint * INDEX_STRIDE; n < i; n++) {
+			final int qual_length = qualifierLength(qualifiers, qual_offset);
+			value_offset += valueLength(qualifiers, qual_offset, qual_length);
+			qual_offset += qual_length;
+		}
+		return ((long) qual_offset << 32) | value_offset;
+	}
+
 	/**
 	 * @return 0 since aggregation cannot happen at the row level
 	 */
@@ -403,33 +543,22 @@ final class RowSeq implements DataPoints {
 	public long timestamp(final int i) {
 		checkIndex(i);
 		// if we don't have a mix of second and millisecond qualifiers we can run
-		// this in O(1), otherwise we have to run O(n)
+		// this in O(1), otherwise we go through the index
 		// Important: Span.addRow assumes this method to work in O(1).
-		if ((values[values.length - 1] & Const.MS_MIXED_COMPACT) ==
-				Const.MS_MIXED_COMPACT) {
-			int index = 0;
-			for (int idx = 0; idx < qualifiers.length; idx += 2) {
-				if (i == index) {
-					return Internal.getTimestampFromQualifier(qualifiers, baseTime(), idx);
-				}
-				if (Internal.inMilliseconds(qualifiers[idx])) {
-					idx += 2;
-				}
-				index++;
-			}
+		if (isMixed()) {
+			return Internal.getTimestampFromQualifier(qualifiers, baseTime(),
+					(int) (locate(i) >>> 32));
 		} else if ((qualifiers[0] & Const.MS_BYTE_FLAG) == Const.MS_BYTE_FLAG) {
 			return Internal.getTimestampFromQualifier(qualifiers, baseTime(), i * 4);
 		} else {
 			return Internal.getTimestampFromQualifier(qualifiers, baseTime(), i * 2);
 		}
-
-		throw new RuntimeException(
-				"WTF timestamp for index: " + i + " on " + this);
 	}
 
 	public boolean isInteger(final int i) {
 		checkIndex(i);
-		return (Internal.getFlagsFromQualifier(qualifiers, i) &
+		final int qual_offset = (int) (locate(i) >>> 32);
+		return (Internal.getFlagsFromQualifier(qualifiers, qual_offset) &
 				Const.FLAG_FLOAT) == 0x0;
 	}
 
@@ -437,22 +566,20 @@ final class RowSeq implements DataPoints {
 		if (!isInteger(i)) {
 			throw new ClassCastException("value #" + i + " is not a long in " + this);
 		}
-		final Iterator it = new Iterator();
-		while (i-- >= 0) {
-			it.next();
-		}
-		return it.longValue();
+		final long offsets = locate(i);
+		final int qual_offset = (int) (offsets >>> 32);
+		final byte flags = (byte) Internal.getFlagsFromQualifier(qualifiers, qual_offset);
+		return extractIntegerValue(values, (int) offsets, flags);
 	}
 
 	public double doubleValue(int i) {
 		if (isInteger(i)) {
 			throw new ClassCastException("value #" + i + " is not a float in " + this);
 		}
-		final Iterator it = new Iterator();
-		while (i-- >= 0) {
-			it.next();
-		}
-		return it.doubleValue();
+		final long offsets = locate(i);
+		final int qual_offset = (int) (offsets >>> 32);
+		final byte flags = (byte) Internal.getFlagsFromQualifier(qualifiers, qual_offset);
+		return extractFloatingPointValue(values, (int) offsets, flags);
 	}
 
 	/**
@@ -601,12 +728,101 @@ final class RowSeq implements DataPoints {
 			if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
 				throw new IllegalArgumentException("invalid timestamp: " + timestamp);
 			}
-			qual_index = 0;
-			value_index = 0;
+			if (offsetIndexForAccess() == null) {
+				seekLinear(timestamp);
+				return;
+			}
+			final int target;
+			if (isMixed()) {
+				target = seekMixed(timestamp);
+			} else {
+				target = seekFixedWidth(timestamp);
+			}
+			final long offsets = locate(target);
+			qual_index = (int) (offsets >>> 32);
+			value_index = (int) offsets;
+			//LOG.debug("seek to " + timestamp + " -> now=" + toStringSummary());
+		}
+
+		/**
+		 * Moves to the first data point at or after the timestamp with a scan
+		 * from the start of the row, stopping there.
+		 */
+		private void seekLinear(final long timestamp) {
+			int qual_offset = 0;
+			int value_offset = 0;
+			while (qual_offset < qualifiers.length
+					&& Internal.getTimestampFromQualifier(qualifiers, base_time, qual_offset)
+					< timestamp) {
+				final int qual_length = qualifierLength(qualifiers, qual_offset);
+				value_offset += valueLength(qualifiers, qual_offset, qual_length);
+				qual_offset += qual_length;
+			}
+			qual_index = qual_offset;
+			value_index = qual_offset < qualifiers.length ? value_offset : values.length - 1;
+		}
+
+		/**
+		 * Binary search of the first data point at or after the timestamp, when
+		 * all the qualifiers have the same width.
+		 */
+		private int seekFixedWidth(final long timestamp) {
+			final int width = qualifierLength(qualifiers, 0);
+			int lo = 0;
+			int hi = qualifiers.length / width;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (Internal.getTimestampFromQualifier(qualifiers, base_time, mid * width)
+						< timestamp) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Finds the first data point at or after the timestamp with a binary
+		 * search over the offset index, then a scan of at most one stride.
+		 */
+		private int seekMixed(final long timestamp) {
+			final int[] index = offsetIndex();
+			// Find the last checkpoint strictly before the timestamp.
+			int lo = 0;
+			int hi = (indexed_size + INDEX_STRIDE - 1) / INDEX_STRIDE;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (Internal.getTimestampFromQualifier(qualifiers, base_time, index[mid * 2])
+						< timestamp) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			if (lo == 0) {
+				return 0;
+			}
+			int n = (lo - 1) * INDEX_STRIDE;
+			int qual_offset = index[(lo - 1) * 2];
+			while (n < indexed_size
+					&& Internal.getTimestampFromQualifier(qualifiers, base_time, qual_offset)
+					< timestamp) {
+				qual_offset += qualifierLength(qualifiers, qual_offset);
+				n++;
+			}
+			return n;
+		}
+
+		/**
+		 * Decodes the next qualifiers and values straight into the arrays, without
+		 * going through the {@link DataPoint} interface for each point.
+		 */
+		public int nextBatch(final long[] out_timestamps, final long[] out_values) {
+			final int max = Math.min(out_timestamps.length, out_values.length);
 			final int len = qualifiers.length;
-			//LOG.debug("Peeking timestamp: " + (peekNextTimestamp() < timestamp));
-			while (qual_index < len && peekNextTimestamp() < timestamp) {
-				//LOG.debug("Moving to next timestamp: " + peekNextTimestamp());
+			int n = 0;
+			while (n < max && qual_index < len) {
 				if (Internal.inMilliseconds(qualifiers[qual_index])) {
 					qualifier = Bytes.getInt(qualifiers, qual_index);
 					qual_index += 4;
@@ -615,9 +831,19 @@ final class RowSeq implements DataPoints {
 					qual_index += 2;
 				}
 				final byte flags = (byte) qualifier;
-				value_index += (flags & Const.LENGTH_MASK) + 1;
+				final int vlen = (flags & Const.LENGTH_MASK) + 1;
+				value_index += vlen;
+				if ((qualifier & Const.FLAG_FLOAT) == 0x0) {
+					out_timestamps[n] = timestamp();
+					out_values[n] = extractIntegerValue(values, value_index - vlen, flags);
+				} else {
+					out_timestamps[n] = timestamp() | FLAG_FLOAT;
+					out_values[n] = Double.doubleToRawLongBits(
+							extractFloatingPointValue(values, value_index - vlen, flags));
+				}
+				n++;
 			}
-			//LOG.debug("seek to " + timestamp + " -> now=" + toStringSummary());
+			return n;
 		}
 
 		// ------------------- //
@@ -36,6 +36,21 @@ import java.util.NoSuchElementException;
  */
 public interface SeekableView extends Iterator<DataPoint> {
 
+	/**
+	 * Bit set on a timestamp filled by {@link #nextBatch} when the matching
+	 * value holds the raw bits of a {@code double} instead of a {@code long}.
+	 * Our timestamps only use the lower 48 bits so the MSB is always free.
+	 */
+	long FLAG_FLOAT = 0x8000000000000000L;
+
+	/**
+	 * Mask to use in order to get rid of {@link #FLAG_FLOAT}.
+	 * This value also conveniently represents the largest timestamp we can
+	 * possibly store, provided that the most significant bit is reserved by
+	 * {@code FLAG_FLOAT}.
+	 */
+	long TIME_MASK = 0x7FFFFFFFFFFFFFFFL;
+
 	/**
 	 * Returns {@code true} if this view has more elements.
 	 */
@@ -71,4 +86,23 @@ public interface SeekableView extends Iterator<DataPoint> {
 	 */
 	void seek(long timestamp);
 
+	/**
+	 * Copies the next data points of this view into the given arrays.
+	 * <p/>
+	 * This is the batch counterpart of {@link #next}: the view moves past every
+	 * data point copied, so {@code next()} and {@code nextBatch()} can be
+	 * interleaved.  Floating point values are stored with
+	 * {@link Double#doubleToRawLongBits} and have {@link #FLAG_FLOAT} set on
+	 * their timestamp, the same way {@link AggregationIterator} keeps them.
+	 * Consumers running over the arrays avoid one virtual call per accessor
+	 * and per data point.
+	 *
+	 * @param timestamps Array to fill with timestamps in milliseconds, possibly
+	 *                   flagged with {@link #FLAG_FLOAT}.
+	 * @param values     Array to fill with the raw value bits.
+	 * @return The number of data points copied, at most the length of the
+	 * shortest array.  {@code 0} means there are no more data points.
+	 */
+	int nextBatch(long[] timestamps, long[] values);
+
 }
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A series flowing between the functions of a compiled expression: the meta
+ * data of the series and a view computing its data points on demand.
+ * <p/>
+ * Functions that work point by point or on aligned timestamps chain their
+ * views, so a nested expression reads each input once and only the final
+ * result is materialized, by {@link #materialize}.
+ * <p/>
+ * A stream can only be read once, by a single consumer.
+ */
+public final class SeriesStream {
+
+	/**
+	 * Series to take the meta data from.
+	 */
+	private final DataPoints meta;
+
+	/**
+	 * Name replacing the metric name and tags of {@link #meta}, or
+	 * {@code null}.
+	 */
+	private final String alias;
+
+	/**
+	 * The data points of the series, created on first use if
+	 * {@link #unchanged}.
+	 */
+	private SeekableView view;
+
+	/**
+	 * Set if this stream returns {@link #meta} unchanged, which is then its
+	 * own materialization.
+	 */
+	private final boolean unchanged;
+
+	private SeriesStream(final DataPoints meta, final String alias,
+	                     final SeekableView view, final boolean unchanged) {
+		this.meta = meta;
+		this.alias = alias;
+		this.view = view;
+		this.unchanged = unchanged;
+	}
+
+	/**
+	 * Returns a stream over the data points of a materialized series.
+	 */
+	public static SeriesStream of(final DataPoints dps) {
+		return new SeriesStream(dps, null, null, true);
+	}
+
+	/**
+	 * Returns streams over the data points of materialized series.
+	 */
+	public static SeriesStream[] of(final DataPoints[] dps) {
+		final SeriesStream[] streams = new SeriesStream[dps.length];
+		for (int i = 0; i < dps.length; i++) {
+			streams[i] = of(dps[i]);
+		}
+		return streams;
+	}
+
+	/**
+	 * Returns streams over the data points of materialized query results.
+	 */
+	public static List<SeriesStream[]> of(final List<DataPoints[]> results) {
+		if (results == null) {
+			return null;
+		}
+		final ArrayList<SeriesStream[]> streams =
+				new ArrayList<SeriesStream[]>(results.size());
+		for (final DataPoints[] dps : results) {
+			streams.add(of(dps));
+		}
+		return streams;
+	}
+
+	/**
+	 * Returns the data points of the stream.
+	 */
+	SeekableView view() {
+		if (view == null) {
+			view = new StreamView(meta.iterator(), StreamView.Op.IDENTITY, 0);
+		}
+		return view;
+	}
+
+	/**
+	 * Returns a stream with the meta data of this one and the given data
+	 * points, typically computed from this stream.  The view is wrapped so
+	 * that the seek of a consumer doesn't rewind it.
+	 */
+	SeriesStream derive(final SeekableView view) {
+		return new SeriesStream(meta, alias,
+				new StreamView(view, StreamView.Op.IDENTITY, 0), false);
+	}
+
+	/**
+	 * Returns a stream applying a point-wise operation to this one.
+	 */
+	SeriesStream map(final StreamView.Op op, final double factor) {
+		return new SeriesStream(meta, alias, new StreamView(view(), op, factor),
+				false);
+	}
+
+	/**
+	 * Returns this stream named by the given alias, without tags, with its
+	 * values converted to doubles.
+	 */
+	public SeriesStream withAlias(final String alias) {
+		return new SeriesStream(meta, alias,
+				new StreamView(view(), StreamView.Op.TO_DOUBLE, 0), false);
+	}
+
+	/**
+	 * @return the tags of the series, empty if it has an alias.
+	 */
+	public Map<String, String> getTags() {
+		return alias != null ? new HashMap<String, String>() : meta.getTags();
+	}
+
+	/**
+	 * Returns the tags of the series as the tag UIDs of its row keys, see
+	 * {@link SpanGroup#getTagUids}, or {@code null} if they are only known by
+	 * name.
+	 */
+	byte[] getTagUids() {
+		if (alias != null) {
+			return new byte[0];
+		}
+		DataPoints dps = meta;
+		while (dps instanceof ColumnarDataPoints) {
+			if (((ColumnarDataPoints) dps).alias() != null) {
+				return new byte[0];
+			}
+			dps = ((ColumnarDataPoints) dps).base();
+		}
+		return dps instanceof SpanGroup ? ((SpanGroup) dps).getTagUids() : null;
+	}
+
+	/**
+	 * Reads all the data points of the stream.
+	 */
+	public DataPoints materialize() {
+		if (unchanged) {
+			return meta;
+		}
+		final ColumnarDataPoints dps = ColumnarDataPoints.collect(meta, view());
+		return alias != null ? dps.withAlias(alias) : dps;
+	}
+
+	/**
+	 * Reads all the data points of the given streams.
+	 */
+	public static DataPoints[] materialize(final SeriesStream[] streams) {
+		final DataPoints[] dps = new DataPoints[streams.length];
+		for (int i = 0; i < streams.length; i++) {
+			dps[i] = streams[i].materialize();
+		}
+		return dps;
+	}
+
+	public String toString() {
+		return "SeriesStream(alias=" + alias + ", unchanged=" + unchanged
+				+ ", view=" + view + ", meta=" + meta + ')';
+	}
+
+}
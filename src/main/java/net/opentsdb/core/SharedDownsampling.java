@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Several downsampling functions of a {@link Span} computed in a single pass,
+ * for sub queries which read the same spans and differ only by their
+ * downsampler, e.g. {@code min}, {@code max} and {@code avg} of a metric on
+ * one dashboard.
+ * <p/>
+ * The first sub query to read one of the functions runs a {@link Downsampler}
+ * computing all of them and keeps the values of every interval; the others
+ * then read their values from memory instead of downsampling the span again.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @see SharedScan
+ */
+final class SharedDownsampling {
+
+	private final Span span;
+	private final long interval_ms;
+	private final Aggregator[] downsamplers;
+
+	/**
+	 * Values computed so far, one entry per set of options and seek time.
+	 */
+	private final ArrayList<Values> computed = new ArrayList<Values>(1);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param span         The span to downsample.
+	 * @param interval_ms  The downsampling interval, in milliseconds.
+	 * @param downsamplers The functions to compute together.
+	 */
+	SharedDownsampling(final Span span, final long interval_ms,
+	                   final Aggregator[] downsamplers) {
+		this.span = span;
+		this.interval_ms = interval_ms;
+		this.downsamplers = downsamplers;
+	}
+
+	/**
+	 * Returns a view of the downsampled span for one of the functions, or
+	 * {@code null} if this doesn't compute it.
+	 *
+	 * @param interval_ms  The downsampling interval, in milliseconds.
+	 * @param downsampler  The downsampling function.
+	 * @param isCounter    Whether drops of the values are adjusted.
+	 * @param rate_options If not {@code null}, the rates of the values are
+	 *                     returned instead.
+	 * @see Downsampler
+	 */
+	SeekableView view(final long interval_ms, final Aggregator downsampler,
+	                  final boolean isCounter, final RateOptions rate_options) {
+		if (interval_ms != this.interval_ms) {
+			return null;
+		}
+		for (int i = 0; i < downsamplers.length; i++) {
+			if (downsamplers[i] == downsampler) {
+				return new View(i, isCounter, rate_options);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the values of all the functions with the given options, as a
+	 * {@link Downsampler} seeked to the given time returns them, computing
+	 * them on the first call.
+	 *
+	 * @param seek_time The time to seek to, or {@code Long.MIN_VALUE} not to.
+	 */
+	private synchronized Values values(final boolean isCounter,
+	                                   final RateOptions rate_options,
+	                                   final long seek_time) {
+		for (final Values values : computed) {
+			if (values.matches(isCounter, rate_options, seek_time)) {
+				return values;
+			}
+		}
+		final Downsampler downsampler = new Downsampler(span.spanIterator(),
+				interval_ms, downsamplers, isCounter, rate_options);
+		if (seek_time != Long.MIN_VALUE) {
+			downsampler.seek(seek_time);
+		}
+		final Values values = new Values(isCounter, rate_options, seek_time,
+				downsamplers.length);
+		while (downsampler.hasNext()) {
+			downsampler.next();
+			values.add(downsampler);
+		}
+		computed.add(values);
+		return values;
+	}
+
+	/**
+	 * The values of every interval for all the functions.
+	 */
+	private static final class Values {
+		final boolean isCounter;
+		final RateOptions rate_options;
+		final long seek_time;
+		long[] timestamps = new long[16];
+		final double[][] values;
+		int size;
+
+		Values(final boolean isCounter, final RateOptions rate_options,
+		       final long seek_time, final int functions) {
+			this.isCounter = isCounter;
+			this.rate_options = rate_options;
+			this.seek_time = seek_time;
+			this.values = new double[functions][16];
+		}
+
+		boolean matches(final boolean isCounter, final RateOptions rate_options,
+		                final long seek_time) {
+			if (isCounter != this.isCounter || seek_time != this.seek_time) {
+				return false;
+			}
+			if (rate_options == null || this.rate_options == null) {
+				return rate_options == this.rate_options;
+			}
+			return rate_options.isCounter() == this.rate_options.isCounter()
+					&& rate_options.getCounterMax() == this.rate_options.getCounterMax()
+					&& rate_options.getResetValue() == this.rate_options.getResetValue();
+		}
+
+		void add(final Downsampler downsampler) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+				for (int i = 0; i < values.length; i++) {
+					values[i] = Arrays.copyOf(values[i], size * 2);
+				}
+			}
+			timestamps[size] = downsampler.timestamp();
+			for (int i = 0; i < values.length; i++) {
+				values[i][size] = downsampler.doubleValue(i);
+			}
+			size++;
+		}
+	}
+
+	/**
+	 * Iterator over the values of one function, returning the same data
+	 * points as a {@link Downsampler} of that function.
+	 */
+	private final class View implements SeekableView, DataPoint {
+		private final int function;
+		private final boolean isCounter;
+		private final RateOptions rate_options;
+
+		/**
+		 * The time to seek to, or {@code Long.MIN_VALUE} not to.
+		 */
+		private long seek_time = Long.MIN_VALUE;
+
+		/**
+		 * The values read, {@code null} until the first access.
+		 */
+		private Values values;
+
+		/**
+		 * Index of the next interval.
+		 */
+		private int pos;
+
+		View(final int function, final boolean isCounter,
+		     final RateOptions rate_options) {
+			this.function = function;
+			this.isCounter = isCounter;
+			this.rate_options = rate_options;
+		}
+
+		private Values values() {
+			if (values == null) {
+				values = SharedDownsampling.this.values(isCounter, rate_options, seek_time);
+			}
+			return values;
+		}
+
+		public boolean hasNext() {
+			return pos < values().size;
+		}
+
+		public DataPoint next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("no more data points in " + this);
+			}
+			pos++;
+			return this;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void seek(final long timestamp) {
+			seek_time = timestamp;
+			values = null;
+			pos = 0;
+		}
+
+		public int nextBatch(final long[] timestamps, final long[] values) {
+			final Values all = values();
+			final int n = Math.min(Math.min(timestamps.length, values.length),
+					all.size - pos);
+			final double[] column = all.values[function];
+			for (int i = 0; i < n; i++) {
+				timestamps[i] = all.timestamps[pos + i] | FLAG_FLOAT;
+				values[i] = Double.doubleToRawLongBits(column[pos + i]);
+			}
+			pos += n;
+			return n;
+		}
+
+		public long timestamp() {
+			return values.timestamps[pos - 1];
+		}
+
+		public boolean isInteger() {
+			return false;
+		}
+
+		public long longValue() {
+			throw new ClassCastException("Downsampled values are doubles: " + this);
+		}
+
+		public double doubleValue() {
+			return values.values[function][pos - 1];
+		}
+
+		public double toDouble() {
+			return doubleValue();
+		}
+
+		public String toString() {
+			return "SharedDownsampling.View(interval_ms=" + interval_ms
+					+ ", downsampler=" + downsamplers[function]
+					+ ", rate_options=" + rate_options + ", pos=" + pos
+					+ ", span=" + span + ')';
+		}
+	}
+
+}
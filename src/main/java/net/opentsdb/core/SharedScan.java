@@ -0,0 +1,412 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Timer;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.tsd.QueryStats;
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseException;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single HBase scan feeding the spans of several queries on the same metric.
+ * <p/>
+ * The scan covers the time ranges of all the queries, with the union of their
+ * row key filters.  Each row is compacted once, then added to the
+ * {@link SpanTable} of every query whose time range and tags it matches, so
+ * that sub queries differing only by their tags, aggregator or downsampling
+ * read their rows once.
+ * <p/>
+ * Queries reading the same spans share a single table.  When they differ by
+ * their downsampler only, the spans then compute all their downsamplers in a
+ * single pass, see {@link SharedDownsampling}.
+ * <p/>
+ * With a single query this is the plain scan of {@link TsdbQuery}.
+ */
+public final class SharedScan {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedScan.class);
+
+	private final TSDB tsdb;
+
+	/**
+	 * The queries fed by the scan.
+	 */
+	private final TsdbQuery[] riders;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tsdb   The TSDB to scan.
+	 * @param riders The queries to feed, on the same metric, which can all
+	 *               {@link TsdbQuery#canShareScan share a scan} if more than one.
+	 */
+	SharedScan(final TSDB tsdb, final TsdbQuery[] riders) {
+		this.tsdb = tsdb;
+		this.riders = riders;
+	}
+
+	/**
+	 * Runs the given queries, sharing scans between the queries on the same
+	 * metric and time range.
+	 *
+	 * @param tsdb    The TSDB to query.
+	 * @param queries The queries to run.
+	 * @return The results of the queries, in the same order.
+	 * @throws HBaseException if there was a problem communicating with HBase.
+	 */
+	public static List<Deferred<DataPoints[]>> run(final TSDB tsdb,
+	                                               final Query[] queries) {
+		final ArrayList<Deferred<DataPoints[]>> results =
+				new ArrayList<Deferred<DataPoints[]>>(queries.length);
+		if (!tsdb.getConfig().shared_scan_enable()
+				|| tsdb.getConfig().parallel_scan_enable()) {
+			for (final Query query : queries) {
+				results.add(query.runAsync());
+			}
+			return results;
+		}
+
+		// Indexes of the queries sharing each scan, by metric and time range.
+		final LinkedHashMap<String, List<Integer>> groups =
+				new LinkedHashMap<String, List<Integer>>();
+		for (int i = 0; i < queries.length; i++) {
+			results.add(null);
+			final String key;
+			if (queries[i] instanceof TsdbQuery
+					&& ((TsdbQuery) queries[i]).canShareScan()) {
+				key = Arrays.toString(((TsdbQuery) queries[i]).metric())
+						+ ' ' + queries[i].getStartTime() + ' ' + queries[i].getEndTime();
+			} else {
+				key = "#" + i;
+			}
+			List<Integer> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Integer>(1);
+				groups.put(key, group);
+			}
+			group.add(i);
+		}
+
+		for (final List<Integer> group : groups.values()) {
+			if (group.size() == 1) {
+				final int i = group.get(0);
+				results.set(i, queries[i].runAsync());
+				continue;
+			}
+			final long start = System.nanoTime();
+			final TsdbQuery[] riders = new TsdbQuery[group.size()];
+			for (int j = 0; j < riders.length; j++) {
+				riders[j] = (TsdbQuery) queries[group.get(j)];
+			}
+			LOG.info("Sharing a scan between {} queries", riders.length);
+			final List<Deferred<SpanTable>> spans =
+					new SharedScan(tsdb, riders).start();
+			for (int j = 0; j < riders.length; j++) {
+				results.set(group.get(j),
+						riders[j].groupAndAggregate(spans.get(j), start));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Starts the scan.
+	 *
+	 * @return The spans found for each query, in the order of the queries;
+	 * {@code null} for a query that matched no row.
+	 * @throws HBaseException if there was a problem communicating with HBase to
+	 *                        perform the search.
+	 */
+	List<Deferred<SpanTable>> start() throws HBaseException {
+		final Scanner scanner = riders.length == 1
+				? riders[0].getScanner()
+				: newSharedScanner();
+		// read after getScanner(), which sets the metric of TSUID queries
+		final byte[] metric = riders[0].metric();
+
+		final ArrayList<Deferred<SpanTable>> results =
+				new ArrayList<Deferred<SpanTable>>(riders.length);
+		for (int i = 0; i < riders.length; i++) {
+			results.add(new Deferred<SpanTable>());
+		}
+
+		LOG.info("Starting scanner");
+		new ScannerCB(scanner, metric, results).scan();
+		return results;
+	}
+
+	/**
+	 * Returns a scanner over the time ranges of all the queries, filtered by
+	 * the union of their row key regexps.
+	 */
+	private Scanner newSharedScanner() {
+		long start_seconds = Long.MAX_VALUE;
+		long end_seconds = Long.MIN_VALUE;
+		final StringBuilder regexp = new StringBuilder("(?s)");
+		boolean filter = true;
+		for (int i = 0; i < riders.length; i++) {
+			start_seconds = Math.min(start_seconds, riders[i].getScanStartTimeSeconds());
+			end_seconds = Math.max(end_seconds, riders[i].getScanEndTimeSeconds());
+			final String rider_regexp = riders[i].keyRegexp();
+			if (rider_regexp == null) {
+				// this query reads all the rows of the metric
+				filter = false;
+				continue;
+			}
+			if (i > 0) {
+				regexp.append('|');
+			}
+			regexp.append("(?:").append(rider_regexp.startsWith("(?s)")
+					? rider_regexp.substring(4)
+					: rider_regexp).append(')');
+		}
+		final Scanner scanner = riders[0].newScanner(start_seconds, end_seconds);
+		if (filter) {
+			scanner.setKeyRegexp(regexp.toString(), TsdbQuery.CHARSET);
+		}
+		return scanner;
+	}
+
+	/**
+	 * Scanner callback executed recursively each time we get a set of data
+	 * from storage. This is responsible for determining what columns are
+	 * returned and issuing requests to load leaf objects.
+	 * When the scanner returns a null set of rows, the method initiates the
+	 * final callbacks.
+	 */
+	private final class ScannerCB implements Callback<Object,
+			ArrayList<ArrayList<KeyValue>>> {
+
+		private final Scanner scanner;
+		private final byte[] metric;
+		private final List<Deferred<SpanTable>> results;
+
+		/**
+		 * The spans of each query.
+		 */
+		private final SpanTable[] spans;
+
+		/**
+		 * Index of the first query reading the same spans as each query, which
+		 * owns their table.
+		 */
+		private final int[] owners;
+
+		/**
+		 * Scan time range of each query, only checked with several queries.
+		 */
+		private final long[] start_seconds;
+		private final long[] end_seconds;
+
+		/**
+		 * Annotations of the row being compacted.
+		 */
+		private final ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+
+		final int[] nrows;
+		final boolean[] seenAnnotation;
+		int hbase_time = 0; // milliseconds.
+		long starttime = System.nanoTime();
+		long timeout = tsdb.getConfig().getLong("tsd.query.timeout");
+		long scannerTime = 0;
+
+		long totalCompactionTime = 0;
+
+		ScannerCB(final Scanner scanner, final byte[] metric,
+		          final List<Deferred<SpanTable>> results) {
+			this.scanner = scanner;
+			this.metric = metric;
+			this.results = results;
+			spans = new SpanTable[riders.length];
+			owners = new int[riders.length];
+			start_seconds = new long[riders.length];
+			end_seconds = new long[riders.length];
+			nrows = new int[riders.length];
+			seenAnnotation = new boolean[riders.length];
+			for (int i = 0; i < riders.length; i++) {
+				owners[i] = i;
+				for (int j = 0; j < i; j++) {
+					if (owners[j] == j && riders[i].readsSameSpans(riders[j])) {
+						owners[i] = j;
+						break;
+					}
+				}
+				spans[i] = owners[i] == i ? riders[i].newSpanTable() : spans[owners[i]];
+				if (riders.length > 1) {
+					start_seconds[i] = riders[i].getScanStartTimeSeconds();
+					end_seconds[i] = riders[i].getScanEndTimeSeconds();
+				}
+			}
+		}
+
+		/**
+		 * Starts the scanner and is called recursively to fetch the next set of
+		 * rows from the scanner.
+		 * @return The map of spans if loaded successfully, null if no data was
+		 * found
+		 */
+		public Object scan() {
+			starttime = System.nanoTime();
+			return scanner.nextRows().addCallback(this);
+		}
+
+		/**
+		 * Loops through each row of the scanner results and parses out data
+		 * points and optional meta data
+		 * @return null once the scan is done, otherwise the next scan
+		 */
+		@Override
+		public Object call(final ArrayList<ArrayList<KeyValue>> rows)
+				throws Exception {
+			hbase_time += (System.nanoTime() - starttime) / 1000000;
+			long scanStartTime = System.nanoTime();
+			try {
+
+				Timer.Context processScan = QueryStats.processScan().time();
+
+				if (rows == null) {
+					done();
+					return null;
+				}
+
+				if (timeout > 0 && hbase_time > timeout) {
+					throw new InterruptedException("Query timeout exceeded!");
+				}
+
+				final short metric_width = tsdb.metrics.width();
+				for (final ArrayList<KeyValue> row : rows) {
+					final byte[] key = row.get(0).key();
+					if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
+						scanner.close();
+						throw new IllegalDataException(
+								"HBase returned a row that doesn't match"
+										+ " our scanner (" + scanner + ")! " + row + " does not start"
+										+ " with " + Arrays.toString(metric));
+					}
+
+					annotations.clear();
+					long compactionTimeStart = System.nanoTime();
+					final KeyValue compacted = tsdb.compact(row, annotations);
+					totalCompactionTime += (System.nanoTime() - compactionTimeStart);
+
+					final long base_time = Bytes.getUnsignedInt(key, metric_width);
+					for (int i = 0; i < riders.length; i++) {
+						if (owners[i] != i) {
+							continue;
+						}
+						if (riders.length > 1
+								&& (base_time < start_seconds[i] || base_time >= end_seconds[i]
+								|| !riders[i].matchesTags(key))) {
+							continue;
+						}
+						final Span datapoints = spans[i].getOrCreate(key);
+
+						int size = datapoints.size();
+						QueryStats.numberOfScannedPointsCounter().inc(size);
+
+						datapoints.getAnnotations().addAll(annotations);
+						seenAnnotation[i] |= !datapoints.getAnnotations().isEmpty();
+						if (compacted != null) { // Can be null if we ignored all KVs.
+							datapoints.addRow(compacted);
+							nrows[i]++;
+						}
+					}
+				}
+
+				processScan.stop();
+
+				return scan();
+			} catch (Exception e) {
+				scanner.close();
+				for (final Deferred<SpanTable> result : results) {
+					result.callback(e);
+				}
+				return null;
+			} finally {
+				scannerTime += (System.nanoTime() - scanStartTime);
+			}
+		}
+
+		/**
+		 * Hands their spans to the queries once all the rows were read.
+		 */
+		private void done() {
+			hbase_time += (System.nanoTime() - starttime) / 1000000;
+			TsdbQuery.scanlatency.add(hbase_time);
+			for (int i = 0; i < riders.length; i++) {
+				LOG.info(riders[i] + " matched " + nrows[owners[i]] + " rows in " +
+						spans[i].size() + " spans in " + hbase_time + "ms. Compaction time= "
+						+ totalCompactionTime / (1000 * 1000));
+			}
+			LOG.info("Time spent in scanner alone = {} ms", scannerTime / (1000 * 1000));
+			QueryStats.hbaseScan().update(hbase_time, TimeUnit.MILLISECONDS);
+			QueryStats.queryCompactionTimer().update(totalCompactionTime, TimeUnit.NANOSECONDS);
+			scanner.close();
+			for (int i = 0; i < riders.length; i++) {
+				if (owners[i] == i && (nrows[i] > 0 || seenAnnotation[i])) {
+					riders[i].sealSpans(spans[i]);
+					shareDownsampling(i);
+				}
+			}
+			for (int i = 0; i < riders.length; i++) {
+				final int owner = owners[i];
+				if (nrows[owner] < 1 && !seenAnnotation[owner]) {
+					results.get(i).callback(null);
+				} else {
+					results.get(i).callback(spans[owner]);
+				}
+			}
+		}
+
+		/**
+		 * Has the spans of a table compute the downsamplers of the queries
+		 * reading them together, if they differ.  Only the first interval
+		 * with several downsamplers is shared.
+		 *
+		 * @param owner The index of the query owning the table.
+		 */
+		private void shareDownsampling(final int owner) {
+			for (int i = owner; i < riders.length; i++) {
+				if (owners[i] != owner || riders[i].explicitDownsampler() == null) {
+					continue;
+				}
+				final long interval = riders[i].sampleInterval();
+				final ArrayList<Aggregator> downsamplers = new ArrayList<Aggregator>(2);
+				for (int j = i; j < riders.length; j++) {
+					final Aggregator downsampler = riders[j].explicitDownsampler();
+					if (owners[j] == owner && downsampler != null
+							&& riders[j].sampleInterval() == interval
+							&& !downsamplers.contains(downsampler)) {
+						downsamplers.add(downsampler);
+					}
+				}
+				if (downsamplers.size() > 1) {
+					final Aggregator[] functions =
+							downsamplers.toArray(new Aggregator[downsamplers.size()]);
+					LOG.info("Downsampling {} spans with {} in a single pass",
+							spans[owner].size(), downsamplers);
+					for (final SpanTable.Entry entry : spans[owner].entries()) {
+						entry.span.shareDownsampling(interval, functions);
+					}
+					return;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+
+/**
+ * Off-heap memory owned by one query, carved out of slabs of a
+ * {@link SlabPool}.
+ * <p/>
+ * Memory is allocated by bumping a pointer in the current slab and is only
+ * freed all at once by {@link #release}, which must be called when nothing
+ * reads the data anymore, i.e. once the response has been serialized.
+ * <p/>
+ * This class is thread-safe: the scanners of a query may seal their spans
+ * concurrently.
+ */
+public final class SlabArena {
+
+	/**
+	 * Pool to take the slabs from.
+	 */
+	private final SlabPool pool;
+
+	/**
+	 * Slabs taken from the pool.
+	 */
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Slab we're allocating from, {@code null} until the first allocation.
+	 */
+	private ByteBuffer current;
+
+	/**
+	 * Set once released, no allocation can happen afterwards.
+	 */
+	private boolean released;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool The pool to take the slabs from.
+	 */
+	SlabArena(final SlabPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Allocates room for the given number of longs.
+	 *
+	 * @param count The number of longs.
+	 * @return A buffer of exactly {@code count} longs, or {@code null} if this
+	 * doesn't fit in a slab or the pool is exhausted, in which case the caller
+	 * should use the heap.
+	 * @throws IllegalStateException if the arena was released.
+	 */
+	synchronized LongBuffer allocateLongs(final int count) {
+		if (released) {
+			throw new IllegalStateException("Arena already released: " + this);
+		}
+		final int bytes = count * 8;
+		if (bytes > pool.slabSize()) {
+			return null;
+		}
+		if (current == null || current.remaining() < bytes) {
+			current = pool.acquire();
+			if (current == null) {
+				return null;
+			}
+			slabs.add(current);
+		}
+		final ByteBuffer chunk = current.duplicate();
+		chunk.limit(chunk.position() + bytes);
+		current.position(current.position() + bytes);
+		return chunk.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+
+	/**
+	 * Gives all the slabs back to the pool.  Buffers allocated from this arena
+	 * must not be used afterwards.  Calling it again has no effect.
+	 */
+	public synchronized void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		for (final ByteBuffer slab : slabs) {
+			pool.release(slab);
+		}
+		slabs.clear();
+		current = null;
+	}
+
+	public synchronized String toString() {
+		return "SlabArena(slabs=" + slabs.size() + ", released=" + released
+				+ ", pool=" + pool + ')';
+	}
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Pool of fixed size direct {@link ByteBuffer}s ("slabs") used to keep the
+ * data of sealed spans off the Java heap.
+ * <p/>
+ * Queries don't use the pool directly: each one gets a {@link SlabArena}
+ * that takes slabs from here and gives them all back when the query is done.
+ * The number of slabs out at any time is capped so the direct memory used is
+ * bounded; when the cap is reached, arenas fall back to the heap.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class SlabPool {
+
+	/**
+	 * Size in bytes of each slab.
+	 */
+	private final int slab_size;
+
+	/**
+	 * Maximum number of slabs in use or pooled.
+	 */
+	private final int max_slabs;
+
+	/**
+	 * Slabs ready to be handed out.
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> free =
+			new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Number of slabs allocated, in use or pooled.
+	 */
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * Number of slabs currently owned by an arena.
+	 */
+	private final AtomicInteger in_use = new AtomicInteger();
+
+	/**
+	 * Number of times a slab was asked for while all were in use.
+	 */
+	private final AtomicLong exhausted = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param slab_size Size in bytes of each slab.
+	 * @param max_slabs Maximum number of slabs to allocate.
+	 * @throws IllegalArgumentException if an argument isn't strictly positive.
+	 */
+	public SlabPool(final int slab_size, final int max_slabs) {
+		if (slab_size <= 0) {
+			throw new IllegalArgumentException("Invalid slab size: " + slab_size);
+		}
+		if (max_slabs <= 0) {
+			throw new IllegalArgumentException("Invalid max slabs: " + max_slabs);
+		}
+		this.slab_size = slab_size;
+		this.max_slabs = max_slabs;
+	}
+
+	/**
+	 * Returns a new arena drawing from this pool, to be released when the
+	 * query is done.
+	 */
+	public SlabArena newArena() {
+		return new SlabArena(this);
+	}
+
+	/**
+	 * @return the size in bytes of each slab.
+	 */
+	int slabSize() {
+		return slab_size;
+	}
+
+	/**
+	 * Takes a slab out of the pool, allocating it if needed.
+	 *
+	 * @return A cleared slab, or {@code null} if all the slabs are in use.
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer slab = free.poll();
+		if (slab == null) {
+			int n;
+			do {
+				n = allocated.get();
+				if (n >= max_slabs) {
+					exhausted.incrementAndGet();
+					return null;
+				}
+			} while (!allocated.compareAndSet(n, n + 1));
+			slab = ByteBuffer.allocateDirect(slab_size);
+		}
+		in_use.incrementAndGet();
+		slab.clear();
+		return slab;
+	}
+
+	/**
+	 * Gives a slab back to the pool.
+	 */
+	void release(final ByteBuffer slab) {
+		in_use.decrementAndGet();
+		free.offer(slab);
+	}
+
+	/**
+	 * Collects the utilization of the pool.
+	 */
+	public void collectStats(final StatsCollector collector) {
+		collector.record("query.offheap.slabs.allocated", allocated.get());
+		collector.record("query.offheap.slabs.in_use", in_use.get());
+		collector.record("query.offheap.slabs.max", max_slabs);
+		collector.record("query.offheap.bytes.allocated", (long) allocated.get() * slab_size);
+		collector.record("query.offheap.bytes.in_use", (long) in_use.get() * slab_size);
+		collector.record("query.offheap.exhausted", exhausted.get());
+	}
+
+	public String toString() {
+		return "SlabPool(slab_size=" + slab_size + ", max_slabs=" + max_slabs
+				+ ", allocated=" + allocated + ", in_use=" + in_use + ')';
+	}
+
+}
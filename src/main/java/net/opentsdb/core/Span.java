@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -23,6 +24,7 @@ import com.stumbleupon.async.Deferred;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.uid.UniqueId;
 import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.KeyValue;
 
 /**
@@ -48,12 +50,74 @@ final class Span implements DataPoints {
 	 */
 	private final ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
 
+	/**
+	 * The rows in this span by row key, to find the row to merge into.
+	 */
+	private final ByteMap<RowSeq> rows_by_key = new ByteMap<RowSeq>();
+
 	/**
 	 * Whether or not the rows have been sorted. This should be toggled by the
 	 * first call to an iterator method
 	 */
 	private boolean sorted;
 
+	/**
+	 * Number of data points before each row, with the total size last.  Built
+	 * along with {@link #row_last_timestamps} once the rows are sorted, and
+	 * dropped when a row is added.
+	 */
+	private int[] row_offsets;
+
+	/**
+	 * Timestamp of the last data point of each row.
+	 */
+	private long[] row_last_timestamps;
+
+	/**
+	 * Number of data points in {@link #rows}, maintained by {@link #addRow}.
+	 */
+	private int num_points;
+
+	/**
+	 * Whether any row added had a data point with a millisecond timestamp.
+	 */
+	private boolean has_milliseconds;
+
+	/**
+	 * Key of the first row, kept once the span is sealed.
+	 */
+	private byte[] sealed_key;
+
+	/**
+	 * Number of data points once the span is sealed, -1 until {@link #seal}
+	 * is called.
+	 */
+	private int sealed_size = -1;
+
+	/**
+	 * Timestamps of all the data points once the span is sealed on the heap,
+	 * flagged with {@link SeekableView#FLAG_FLOAT} for floating point values.
+	 */
+	private long[] sealed_timestamps;
+
+	/**
+	 * Raw values of all the data points once the span is sealed on the heap.
+	 */
+	private long[] sealed_values;
+
+	/**
+	 * Same as {@link #sealed_timestamps} and {@link #sealed_values} when the
+	 * span is sealed in a slab of the query's {@link SlabArena} instead.
+	 */
+	private LongBuffer offheap_timestamps;
+	private LongBuffer offheap_values;
+
+	/**
+	 * Downsampling functions computed together, see {@link #shareDownsampling},
+	 * or {@code null} if none.
+	 */
+	private volatile SharedDownsampling shared_downsampling;
+
 	/**
 	 * Default constructor.
 	 *
@@ -67,7 +131,7 @@ final class Span implements DataPoints {
 	 * @throws IllegalStateException if the span doesn't have any rows
 	 */
 	private void checkNotEmpty() {
-		if (rows.size() == 0) {
+		if (rows.size() == 0 && sealed_key == null) {
 			throw new IllegalStateException("empty Span");
 		}
 	}
@@ -89,7 +153,7 @@ final class Span implements DataPoints {
 
 	public Deferred<String> metricNameAsync() {
 		checkNotEmpty();
-		return rows.get(0).metricNameAsync();
+		return RowKey.metricNameAsync(tsdb, firstKey());
 	}
 
 	/**
@@ -109,7 +173,7 @@ final class Span implements DataPoints {
 
 	public Deferred<Map<String, String>> getTagsAsync() {
 		checkNotEmpty();
-		return rows.get(0).getTagsAsync();
+		return Tags.getTagsAsync(tsdb, firstKey());
 	}
 
 	/**
@@ -125,16 +189,26 @@ final class Span implements DataPoints {
 	}
 
 	/**
-	 * @return the number of data points in this span, O(n)
-	 * Unfortunately we must walk the entire array for every row as there may be a
-	 * mix of second and millisecond timestamps
+	 * Tells whether any data point of this span has a millisecond timestamp.
+	 * Still valid once the span is sealed.
+	 */
+	boolean hasMilliseconds() {
+		return has_milliseconds;
+	}
+
+	/**
+	 * @return the number of data points in this span
 	 */
 	public int size() {
-		int size = 0;
-		for (final RowSeq row : rows) {
-			size += row.size();
-		}
-		return size;
+		return sealed_size >= 0 ? sealed_size : num_points;
+	}
+
+	/**
+	 * Returns the key of the first row, which has the metric and tags of the
+	 * span.  Must not be called on an empty span.
+	 */
+	byte[] firstKey() {
+		return sealed_key != null ? sealed_key : rows.get(0).key;
 	}
 
 	/**
@@ -145,10 +219,10 @@ final class Span implements DataPoints {
 	}
 
 	public List<String> getTSUIDs() {
-		if (rows.size() < 1) {
+		if (rows.size() < 1 && sealed_key == null) {
 			return null;
 		}
-		final byte[] tsuid = UniqueId.getTSUIDFromKey(rows.get(0).key,
+		final byte[] tsuid = UniqueId.getTSUIDFromKey(firstKey(),
 				TSDB.metrics_width(), Const.TIMESTAMP_BYTES);
 		final List<String> tsuids = new ArrayList<String>(1);
 		tsuids.add(UniqueId.uidToString(tsuid));
@@ -171,10 +245,12 @@ final class Span implements DataPoints {
 	 *                                  two different time series.
 	 */
 	void addRow(final KeyValue row) {
-		long last_ts = 0;
+		if (sealed_size >= 0) {
+			throw new IllegalStateException("Can't add a row to a sealed span: " + this);
+		}
+		final byte[] key = row.key();
 		if (rows.size() != 0) {
 			// Verify that we have the same metric id and tags.
-			final byte[] key = row.key();
 			final RowSeq last = rows.get(rows.size() - 1);
 			final short metric_width = tsdb.metrics.width();
 			final short tags_offset = (short) (metric_width + Const.TIMESTAMP_BYTES);
@@ -193,23 +269,107 @@ final class Span implements DataPoints {
 						+ " whereas the row key being added is " + Arrays.toString(key)
 						+ " and metric_width=" + metric_width);
 			}
-			last_ts = last.timestamp(last.size() - 1);  // O(n)
+		}
+
+		row_offsets = null;
+		row_last_timestamps = null;
+		has_milliseconds |= RowSeq.hasMilliseconds(row.qualifier(), row.value());
+		// merge into the existing row if we've already seen this key
+		final RowSeq existing = rows_by_key.get(key);
+		if (existing != null) {
+			num_points -= existing.size();
+			existing.addRow(row);
+			num_points += existing.size();
+			return;
 		}
 
 		final RowSeq rowseq = new RowSeq(tsdb);
 		rowseq.setRow(row);
 		sorted = false;
-		if (last_ts >= rowseq.timestamp(0)) {
-			// scan to see if we need to merge into an existing row
-			for (final RowSeq rs : rows) {
-				if (Bytes.memcmp(rs.key, row.key()) == 0) {
-					rs.addRow(row);
-					return;
-				}
+		rows.add(rowseq);
+		rows_by_key.put(key, rowseq);
+		num_points += rowseq.size();
+	}
+
+	/**
+	 * Decodes all the rows of this span into two contiguous arrays, one for the
+	 * timestamps and one for the values, and drops the rows.  Iterating a
+	 * sealed span is a plain array walk, and the many small arrays of the rows
+	 * become two large ones.  Only the key of the first row is kept, for the
+	 * metric and the tags.
+	 * <p/>
+	 * This should be called once the scan is complete: no row can be added
+	 * afterwards.  Calling it again has no effect.
+	 *
+	 * @param arena Off-heap memory to store the arrays in, decoded straight
+	 *              into it, or {@code null} to keep them on the heap.  If the
+	 *              arena can't fit them, the heap is used as well.
+	 */
+	void seal(final SlabArena arena) {
+		if (sealed_size >= 0 || rows.isEmpty()) {
+			return;
+		}
+		checkRowOrder();
+		final int size = size();
+		// one allocation for both arrays, so that they either both fit or not
+		final LongBuffer offheap = arena == null ? null : arena.allocateLongs(size * 2);
+		final Iterator it = new Iterator();
+		final long[] batch_timestamps = new long[256];
+		final long[] batch_values = new long[256];
+		int n = 0;
+		int batch;
+		if (offheap != null) {
+			offheap_timestamps = ((LongBuffer) offheap.duplicate().limit(size)).slice();
+			offheap_values = ((LongBuffer) offheap.duplicate().position(size)).slice();
+			while (n < size && (batch = it.nextBatch(batch_timestamps, batch_values)) > 0) {
+				batch = Math.min(batch, size - n);
+				offheap_timestamps.put(batch_timestamps, 0, batch);
+				offheap_values.put(batch_values, 0, batch);
+				n += batch;
 			}
+			offheap_timestamps.clear();
+			offheap_values.clear();
+		} else {
+			// no arena or it can't take them, keep them on the heap
+			final long[] timestamps = new long[size];
+			final long[] values = new long[size];
+			while (n < size && (batch = it.nextBatch(batch_timestamps, batch_values)) > 0) {
+				batch = Math.min(batch, size - n);
+				System.arraycopy(batch_timestamps, 0, timestamps, n, batch);
+				System.arraycopy(batch_values, 0, values, n, batch);
+				n += batch;
+			}
+			sealed_timestamps = n == size ? timestamps : Arrays.copyOf(timestamps, n);
+			sealed_values = n == size ? values : Arrays.copyOf(values, n);
 		}
+		sealed_key = rows.get(0).key;
+		sealed_size = n;
+		rows.clear();
+		rows.trimToSize();
+		rows_by_key.clear();
+		row_offsets = null;
+		row_last_timestamps = null;
+	}
 
-		rows.add(rowseq);
+	/**
+	 * @return the flagged timestamp of a data point of the sealed span.
+	 */
+	private long sealedTimestamp(final int i) {
+		return sealed_timestamps != null ? sealed_timestamps[i] : offheap_timestamps.get(i);
+	}
+
+	/**
+	 * @return the raw value of a data point of the sealed span.
+	 */
+	private long sealedValue(final int i) {
+		return sealed_values != null ? sealed_values[i] : offheap_values.get(i);
+	}
+
+	/**
+	 * Tells whether or not {@link #seal} was called.
+	 */
+	boolean isSealed() {
+		return sealed_size >= 0;
 	}
 
 	/**
@@ -237,7 +397,6 @@ final class Span implements DataPoints {
 	 * @return an iterator to run over the list of data points
 	 */
 	public SeekableView iterator() {
-		checkRowOrder();
 		return spanIterator();
 	}
 
@@ -250,23 +409,28 @@ final class Span implements DataPoints {
 	 */
 	private long getIdxOffsetFor(final int i) {
 		checkRowOrder();
-		int idx = 0;
-		int offset = 0;
-		for (final RowSeq row : rows) {
-			final int sz = row.size();
-			if (offset + sz > i) {
-				break;
+		// Binary search of the last row starting at or before i.
+		int lo = 0;
+		int hi = rows.size() - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (row_offsets[mid] <= i) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
 			}
-			offset += sz;
-			idx++;
 		}
-		return ((long) idx << 32) | (i - offset);
+		// Skip empty rows so that the offset is within the row when possible.
+		while (lo < rows.size() - 1 && row_offsets[lo + 1] <= i) {
+			lo++;
+		}
+		return ((long) lo << 32) | (i - row_offsets[lo]);
 	}
 
 	/**
 	 * Returns the timestamp for a data point at index {@code i} if it exists.
-	 * <b>Note:</b> To get to a timestamp this method must walk the entire byte
-	 * array, i.e. O(n) so call this sparingly. Use the iterator instead.
+	 * <b>Note:</b> Random access needs a binary search over the rows and
+	 * within the row, so call this sparingly. Use the iterator instead.
 	 *
 	 * @param i A 0 based index incremented per the number of data points in the
 	 *          span.
@@ -274,6 +438,9 @@ final class Span implements DataPoints {
 	 * @throws IndexOutOfBoundsException if the index would be out of bounds
 	 */
 	public long timestamp(final int i) {
+		if (sealed_size >= 0) {
+			return sealedTimestamp(i) & SeekableView.TIME_MASK;
+		}
 		checkRowOrder();
 		final long idxoffset = getIdxOffsetFor(i);
 		final int idx = (int) (idxoffset >>> 32);
@@ -290,6 +457,9 @@ final class Span implements DataPoints {
 	 * @throws IndexOutOfBoundsException if the index would be out of bounds
 	 */
 	public boolean isInteger(final int i) {
+		if (sealed_size >= 0) {
+			return (sealedTimestamp(i) & SeekableView.FLAG_FLOAT) == 0;
+		}
 		checkRowOrder();
 		final long idxoffset = getIdxOffsetFor(i);
 		final int idx = (int) (idxoffset >>> 32);
@@ -309,6 +479,12 @@ final class Span implements DataPoints {
 	 * @throws IllegalDataException      if the data is malformed
 	 */
 	public long longValue(final int i) {
+		if (sealed_size >= 0) {
+			if (!isInteger(i)) {
+				throw new ClassCastException("value #" + i + " is not a long in " + this);
+			}
+			return sealedValue(i);
+		}
 		checkRowOrder();
 		final long idxoffset = getIdxOffsetFor(i);
 		final int idx = (int) (idxoffset >>> 32);
@@ -328,6 +504,12 @@ final class Span implements DataPoints {
 	 * @throws IllegalDataException      if the data is malformed
 	 */
 	public double doubleValue(final int i) {
+		if (sealed_size >= 0) {
+			if (isInteger(i)) {
+				throw new ClassCastException("value #" + i + " is not a float in " + this);
+			}
+			return Double.longBitsToDouble(sealedValue(i));
+		}
 		checkRowOrder();
 		final long idxoffset = getIdxOffsetFor(i);
 		final int idx = (int) (idxoffset >>> 32);
@@ -341,6 +523,11 @@ final class Span implements DataPoints {
 	@Override
 	public String toString() {
 		final StringBuilder buf = new StringBuilder();
+		if (sealed_size >= 0) {
+			return buf.append("Span(sealed, key=").append(Arrays.toString(sealed_key))
+					.append(", ").append(sealed_size).append(" data points)")
+					.toString();
+		}
 		buf.append("Span(")
 				.append(rows.size())
 				.append(" rows, [");
@@ -362,18 +549,19 @@ final class Span implements DataPoints {
 	 */
 	private int seekRow(final long timestamp) {
 		checkRowOrder();
-		int row_index = 0;
-		RowSeq row = null;
+		// Binary search of the first row whose last DP is at or after 'timestamp'.
 		final int nrows = rows.size();
-		for (int i = 0; i < nrows; i++) {
-			row = rows.get(i);
-			final int sz = row.size();
-			if (row.timestamp(sz - 1) < timestamp) {
-				row_index++;  // The last DP in this row is before 'timestamp'.
+		int lo = 0;
+		int hi = nrows;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (row_last_timestamps[mid] < timestamp) {
+				lo = mid + 1;
 			} else {
-				break;
+				hi = mid;
 			}
 		}
+		int row_index = lo;
 		if (row_index == nrows) {  // If this timestamp was too large for the
 			--row_index;             // last row, return the last row.
 		}
@@ -390,19 +578,142 @@ final class Span implements DataPoints {
 			Collections.sort(rows, new RowSeq.RowSeqComparator());
 			sorted = true;
 		}
+		if (row_offsets == null) {
+			buildRowIndex();
+		}
 	}
 
 	/**
-	 * Package private iterator method to access it as a Span.Iterator.
+	 * Computes the prefix sums of the row sizes and the last timestamp of each
+	 * row, used for random access and seeks.
 	 */
-	Iterator spanIterator() {
-		if (!sorted) {
-			Collections.sort(rows, new RowSeq.RowSeqComparator());
-			sorted = true;
+	private void buildRowIndex() {
+		final int nrows = rows.size();
+		final int[] offsets = new int[nrows + 1];
+		final long[] last_timestamps = new long[nrows];
+		for (int i = 0; i < nrows; i++) {
+			final RowSeq row = rows.get(i);
+			final int sz = row.size();
+			offsets[i + 1] = offsets[i] + sz;
+			last_timestamps[i] = sz == 0 ? Long.MIN_VALUE : row.timestamp(sz - 1);
+		}
+		row_last_timestamps = last_timestamps;
+		row_offsets = offsets;
+	}
+
+	/**
+	 * Package private iterator method to access it as a Span.Iterator, or a
+	 * {@link SealedIterator} once the span is sealed.
+	 */
+	SeekableView spanIterator() {
+		if (sealed_size >= 0) {
+			return new SealedIterator();
 		}
+		checkRowOrder();
 		return new Iterator();
 	}
 
+	/**
+	 * Iterator for sealed {@link Span}s.
+	 */
+	final class SealedIterator implements SeekableView, DataPoint {
+
+		/**
+		 * Index of the next data point.
+		 */
+		private int pos;
+
+		/**
+		 * Views of the off-heap arrays with their own position, {@code null} on
+		 * the heap.
+		 */
+		private final LongBuffer timestamps_view = offheap_timestamps == null
+				? null
+				: offheap_timestamps.duplicate();
+		private final LongBuffer values_view = offheap_values == null
+				? null
+				: offheap_values.duplicate();
+
+		public boolean hasNext() {
+			return pos < sealed_size;
+		}
+
+		public DataPoint next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("no more elements");
+			}
+			pos++;
+			return this;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void seek(final long timestamp) {
+			// Binary search of the first data point at or after 'timestamp'.
+			int lo = 0;
+			int hi = sealed_size;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if ((sealedTimestamp(mid) & TIME_MASK) < timestamp) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			pos = lo;
+		}
+
+		public int nextBatch(final long[] timestamps, final long[] values) {
+			final int n = Math.min(Math.min(timestamps.length, values.length),
+					sealed_size - pos);
+			if (sealed_timestamps != null) {
+				System.arraycopy(sealed_timestamps, pos, timestamps, 0, n);
+				System.arraycopy(sealed_values, pos, values, 0, n);
+			} else {
+				((LongBuffer) timestamps_view.position(pos)).get(timestamps, 0, n);
+				((LongBuffer) values_view.position(pos)).get(values, 0, n);
+			}
+			pos += n;
+			return n;
+		}
+
+		public long timestamp() {
+			return sealedTimestamp(pos - 1) & TIME_MASK;
+		}
+
+		public boolean isInteger() {
+			return (sealedTimestamp(pos - 1) & FLAG_FLOAT) == 0;
+		}
+
+		public long longValue() {
+			if (!isInteger()) {
+				throw new ClassCastException("value #" + (pos - 1)
+						+ " is not a long in " + this);
+			}
+			return sealedValue(pos - 1);
+		}
+
+		public double doubleValue() {
+			if (isInteger()) {
+				throw new ClassCastException("value #" + (pos - 1)
+						+ " is not a float in " + this);
+			}
+			return Double.longBitsToDouble(sealedValue(pos - 1));
+		}
+
+		public double toDouble() {
+			final long value = sealedValue(pos - 1);
+			return isInteger() ? value : Double.longBitsToDouble(value);
+		}
+
+		public String toString() {
+			return "Span.SealedIterator(pos=" + pos + ", span=" + Span.this + ')';
+		}
+
+	}
+
 	/**
 	 * Iterator for {@link Span}s.
 	 */
@@ -451,6 +762,16 @@ final class Span implements DataPoints {
 			current_row.seek(timestamp);
 		}
 
+		public int nextBatch(final long[] timestamps, final long[] values) {
+			int n = current_row.nextBatch(timestamps, values);
+			while (n == 0 && row_index < rows.size() - 1) {
+				row_index++;
+				current_row = rows.get(row_index).internalIterator();
+				n = current_row.nextBatch(timestamps, values);
+			}
+			return n;
+		}
+
 		public String toString() {
 			return "Span.Iterator(row_index=" + row_index
 					+ ", current_row=" + current_row + ", span=" + Span.this + ')';
@@ -458,6 +779,19 @@ final class Span implements DataPoints {
 
 	}
 
+	/**
+	 * Computes the given downsampling functions together, in a single pass,
+	 * the first time one of them is read: for sub queries reading this span
+	 * which differ only by their downsampler.
+	 *
+	 * @param interval_ms  The downsampling interval, in milliseconds.
+	 * @param downsamplers The functions to compute together.
+	 * @see SharedScan
+	 */
+	void shareDownsampling(final long interval_ms, final Aggregator[] downsamplers) {
+		shared_downsampling = new SharedDownsampling(this, interval_ms, downsamplers);
+	}
+
 	/**
 	 * Package private iterator method to access data while downsampling.
 	 *
@@ -465,13 +799,40 @@ final class Span implements DataPoints {
 	 *                    point.
 	 * @param downsampler The downsampling function to use.
 	 */
-	Downsampler downsampler(final long interval_ms,
-	                        final Aggregator downsampler) {
-		return new Downsampler(spanIterator(), interval_ms, downsampler);
+	SeekableView downsampler(final long interval_ms,
+	                         final Aggregator downsampler) {
+		return downsampler(interval_ms, downsampler, false, null);
 	}
 
-	Downsampler downsampler(final long interval_ms,
-	                        final Aggregator downsampler, boolean isCounter) {
-		return new Downsampler(spanIterator(), interval_ms, downsampler, isCounter);
+	SeekableView downsampler(final long interval_ms,
+	                         final Aggregator downsampler, boolean isCounter) {
+		return downsampler(interval_ms, downsampler, isCounter, null);
+	}
+
+	/**
+	 * Package private iterator method to access the rate of change of the
+	 * downsampled data points, computed by the downsampler itself.
+	 *
+	 * @param interval_ms  The interval in milli seconds wanted between each data
+	 *                     point.
+	 * @param downsampler  The downsampling function to use.
+	 * @param isCounter    Whether or not the span is a counter whose drops should
+	 *                     be adjusted.
+	 * @param rate_options Options for calculating rates, or {@code null} for
+	 *                     the downsampled values.
+	 */
+	SeekableView downsampler(final long interval_ms,
+	                         final Aggregator downsampler, boolean isCounter,
+	                         final RateOptions rate_options) {
+		final SharedDownsampling shared = shared_downsampling;
+		if (shared != null) {
+			final SeekableView view = shared.view(interval_ms, downsampler, isCounter,
+					rate_options);
+			if (view != null) {
+				return view;
+			}
+		}
+		return new Downsampler(spanIterator(), interval_ms, downsampler,
+				isCounter, rate_options);
 	}
 }
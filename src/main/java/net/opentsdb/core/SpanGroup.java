@@ -13,6 +13,7 @@
 package net.opentsdb.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -84,6 +85,14 @@ final class SpanGroup implements DataPoints {
 	 */
 	private ArrayList<String> aggregated_tags;
 
+	/**
+	 * Sorted tag name IDs the spans of this group were grouped by, or
+	 * {@code null} if they weren't.
+	 *
+	 * @see #getTagUids
+	 */
+	private List<byte[]> group_bys;
+
 	/**
 	 * Spans in this group.  They must all be for the same metric.
 	 */
@@ -115,6 +124,11 @@ final class SpanGroup implements DataPoints {
 	 */
 	private final long sample_interval;
 
+	/**
+	 * Whether integer values are aggregated as doubles, like downsampled ones.
+	 */
+	private final boolean to_double;
+
 	/**
 	 * Ctor.
 	 *
@@ -168,6 +182,25 @@ final class SpanGroup implements DataPoints {
 	          final boolean rate, final RateOptions rate_options,
 	          final Aggregator aggregator,
 	          final long interval, final Aggregator downsampler) {
+		this(tsdb, start_time, end_time, spans, rate, rate_options, aggregator,
+				interval, downsampler, false);
+	}
+
+	/**
+	 * Ctor.
+	 *
+	 * @param to_double If {@code true}, integer values are aggregated as
+	 *                  doubles, as if they had been downsampled.
+	 * @see #SpanGroup(TSDB, long, long, Iterable, boolean, RateOptions,
+	 * Aggregator, long, Aggregator)
+	 */
+	SpanGroup(final TSDB tsdb,
+	          final long start_time, final long end_time,
+	          final Iterable<Span> spans,
+	          final boolean rate, final RateOptions rate_options,
+	          final Aggregator aggregator,
+	          final long interval, final Aggregator downsampler,
+	          final boolean to_double) {
 		annotations = new ArrayList<Annotation>();
 		this.start_time = (start_time & Const.SECOND_MASK) == 0 ? start_time * 1000 : start_time;
 		this.end_time = (end_time & Const.SECOND_MASK) == 0 ? end_time * 1000 : end_time;
@@ -181,6 +214,7 @@ final class SpanGroup implements DataPoints {
 		this.aggregator = aggregator;
 		this.downsampler = downsampler;
 		this.sample_interval = interval;
+		this.to_double = to_double;
 		this.tsdb = tsdb;
 	}
 
@@ -340,6 +374,62 @@ final class SpanGroup implements DataPoints {
 		return computeTags().addCallback(new ComputeCB());
 	}
 
+	/**
+	 * Sets the tags the spans of this group were grouped by, which identify
+	 * the group.
+	 *
+	 * @param group_bys The sorted tag name IDs, or {@code null} if the spans
+	 *                  weren't grouped.
+	 */
+	void setGroupBys(final List<byte[]> group_bys) {
+		this.group_bys = group_bys;
+	}
+
+	/**
+	 * Returns the tags identifying this group, its 'GROUP BY's, as the tag
+	 * name and value UID pairs of the row keys, in their order, without
+	 * resolving them.  Tags the spans happen to share but weren't grouped by
+	 * are left out.
+	 *
+	 * @return The tags, empty if the spans weren't grouped.
+	 */
+	byte[] getTagUids() {
+		if (spans.isEmpty() || group_bys == null) {
+			return new byte[0];
+		}
+		final int tags_start = TSDB.metrics_width() + Const.TIMESTAMP_BYTES;
+		final int tag_width = TSDB.tagk_width() + TSDB.tagv_width();
+		final byte[] key = spans.get(0).firstKey();
+		final byte[] uids = new byte[group_bys.size() * tag_width];
+		int length = 0;
+		for (final byte[] name : group_bys) {
+			final int offset = findTag(key, tags_start, tag_width, name);
+			if (offset >= 0) {
+				System.arraycopy(key, offset, uids, length, tag_width);
+				length += tag_width;
+			}
+		}
+		return length == uids.length ? uids : Arrays.copyOf(uids, length);
+	}
+
+	/**
+	 * Returns the offset of the tag with the given name ID in a row key, or -1
+	 * if it has none.
+	 */
+	private static int findTag(final byte[] key, final int tags_start,
+	                           final int tag_width, final byte[] name) {
+		for (int offset = tags_start; offset < key.length; offset += tag_width) {
+			int i = 0;
+			while (i < name.length && key[offset + i] == name[i]) {
+				i++;
+			}
+			if (i == name.length) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
 	public List<String> getAggregatedTags() {
 		try {
 			return getAggregatedTagsAsync().joinUninterruptibly();
@@ -408,7 +498,7 @@ final class SpanGroup implements DataPoints {
 		return AggregationIterator.create(spans, start_time, end_time, aggregator,
 				aggregator.interpolationMethod(),
 				downsampler, sample_interval,
-				rate, rate_options, tsdb.getConfig().adjust_drops());
+				rate, rate_options, tsdb.getConfig().adjust_drops(), to_double);
 	}
 
 	/**
@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hash table of the {@link Span}s found by a query, one per time series.
+ * <p/>
+ * Rows are looked up by their series identity, i.e. the row key without its
+ * base timestamp, so all the rows of a series land in the same span without
+ * the ordered comparisons of a tree.  When the query has 'GROUP BY' tags, the
+ * value IDs of those tags are extracted from the row key once, when the
+ * series is first seen, and kept with the span.
+ * <p/>
+ * The table is unordered; {@link #sortedEntries} gives the series sorted by
+ * row key (ignoring the timestamp) for the callers that need it.
+ * <p/>
+ * This class is not thread-safe.
+ */
+final class SpanTable {
+
+	/**
+	 * Orders entries by row key, ignoring the base timestamp.
+	 */
+	private static final Comparator<Entry> ENTRY_CMP = new Comparator<Entry>() {
+		@Override
+		public int compare(final Entry a, final Entry b) {
+			return a.key.compareTo(b.key);
+		}
+	};
+
+	private final TSDB tsdb;
+	private final short metric_width;
+
+	/**
+	 * Tag name IDs to group by, in the order of the group key, or
+	 * {@code null} if the query doesn't group.
+	 */
+	private final List<byte[]> group_bys;
+
+	private final HashMap<SeriesKey, Entry> entries =
+			new HashMap<SeriesKey, Entry>();
+
+	/**
+	 * Reused for lookups so that scanning a row of a known series doesn't
+	 * allocate.
+	 */
+	private final SeriesKey probe;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tsdb      The TSDB the rows come from.
+	 * @param group_bys Tag name IDs to compute the group key of each series
+	 *                  from, or {@code null}.
+	 */
+	SpanTable(final TSDB tsdb, final List<byte[]> group_bys) {
+		this.tsdb = tsdb;
+		this.metric_width = tsdb.metrics.width();
+		this.group_bys = group_bys;
+		this.probe = new SeriesKey(metric_width);
+	}
+
+	/**
+	 * Returns the span of the series of the given row, creating it if this is
+	 * the first row of that series.
+	 *
+	 * @param row A row key.
+	 */
+	Span getOrCreate(final byte[] row) {
+		probe.set(row);
+		Entry entry = entries.get(probe);
+		if (entry == null) {
+			final SeriesKey key = new SeriesKey(metric_width);
+			key.set(row);
+			entry = new Entry(key, new Span(tsdb), groupKey(row));
+			entries.put(key, entry);
+		}
+		return entry.span;
+	}
+
+	/**
+	 * @return the number of series in the table.
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Tells whether any span of the table has a data point with a millisecond
+	 * timestamp.
+	 */
+	boolean hasMilliseconds() {
+		for (final Entry entry : entries.values()) {
+			if (entry.span.hasMilliseconds()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the entries of the table, in no particular order.
+	 */
+	Collection<Entry> entries() {
+		return entries.values();
+	}
+
+	/**
+	 * @return the spans of the table, sorted by row key.
+	 */
+	List<Span> sortedSpans() {
+		final Entry[] sorted = sortedEntries();
+		final ArrayList<Span> spans = new ArrayList<Span>(sorted.length);
+		for (final Entry entry : sorted) {
+			spans.add(entry.span);
+		}
+		return spans;
+	}
+
+	/**
+	 * @return the entries of the table, sorted by row key.
+	 */
+	Entry[] sortedEntries() {
+		final Entry[] sorted = entries.values().toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, ENTRY_CMP);
+		return sorted;
+	}
+
+	/**
+	 * Extracts the value IDs of the 'GROUP BY' tags from a row key.
+	 *
+	 * @return The concatenated value IDs, in the order of {@link #group_bys},
+	 * or {@code null} if the query doesn't group or one of the tags is missing.
+	 */
+	private byte[] groupKey(final byte[] row) {
+		if (group_bys == null) {
+			return null;
+		}
+		final short name_width = tsdb.tag_names.width();
+		final short value_width = tsdb.tag_values.width();
+		final int tag_width = name_width + value_width;
+		final int tags_start = metric_width + Const.TIMESTAMP_BYTES;
+		final int ntags = (row.length - tags_start) / tag_width;
+		final byte[] group = new byte[group_bys.size() * value_width];
+		int i = 0;
+		for (final byte[] tag_id : group_bys) {
+			// Tags are sorted by name ID in the row key.
+			int lo = 0;
+			int hi = ntags - 1;
+			int found = -1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				final int cmp = compareTagName(row, tags_start + mid * tag_width,
+						tag_id);
+				if (cmp < 0) {
+					lo = mid + 1;
+				} else if (cmp > 0) {
+					hi = mid - 1;
+				} else {
+					found = tags_start + mid * tag_width + name_width;
+					break;
+				}
+			}
+			if (found < 0) {
+				return null;
+			}
+			System.arraycopy(row, found, group, i, value_width);
+			i += value_width;
+		}
+		return group;
+	}
+
+	/**
+	 * Compares, as unsigned bytes, the tag name ID at the given offset of a
+	 * row key with the given tag name ID.
+	 */
+	private static int compareTagName(final byte[] row, final int offset,
+	                                  final byte[] tag_id) {
+		for (int i = 0; i < tag_id.length; i++) {
+			if (row[offset + i] != tag_id[i]) {
+				return (row[offset + i] & 0xFF) - (tag_id[i] & 0xFF);
+			}
+		}
+		return 0;
+	}
+
+	public String toString() {
+		return "SpanTable(series=" + entries.size() + ", group_bys="
+				+ (group_bys == null ? 0 : group_bys.size()) + ')';
+	}
+
+	/**
+	 * A series of the table.
+	 */
+	static final class Entry {
+		private final SeriesKey key;
+
+		/**
+		 * The data of the series.
+		 */
+		final Span span;
+
+		/**
+		 * Value IDs of the 'GROUP BY' tags of the series, or {@code null} if
+		 * the query doesn't group or the series lacks one of the tags.
+		 */
+		final byte[] group;
+
+		Entry(final SeriesKey key, final Span span, final byte[] group) {
+			this.key = key;
+			this.span = span;
+			this.group = group;
+		}
+
+		/**
+		 * @return a row key of the series.
+		 */
+		byte[] row() {
+			return key.row;
+		}
+	}
+
+	/**
+	 * Row key compared and hashed without its base timestamp.
+	 */
+	private static final class SeriesKey implements Comparable<SeriesKey> {
+		private final short metric_width;
+		private byte[] row;
+		private int hash;
+
+		SeriesKey(final short metric_width) {
+			this.metric_width = metric_width;
+		}
+
+		void set(final byte[] row) {
+			this.row = row;
+			int h = 1;
+			for (int i = 0; i < metric_width; i++) {
+				h = 31 * h + row[i];
+			}
+			for (int i = metric_width + Const.TIMESTAMP_BYTES; i < row.length; i++) {
+				h = 31 * h + row[i];
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof SeriesKey)) {
+				return false;
+			}
+			final SeriesKey that = (SeriesKey) other;
+			final byte[] a = row;
+			final byte[] b = that.row;
+			if (hash != that.hash || a.length != b.length) {
+				return false;
+			}
+			// Tags differ more often than metrics, check them first.
+			for (int i = a.length - 1; i >= metric_width + Const.TIMESTAMP_BYTES; i--) {
+				if (a[i] != b[i]) {
+					return false;
+				}
+			}
+			for (int i = 0; i < metric_width; i++) {
+				if (a[i] != b[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int compareTo(final SeriesKey that) {
+			final byte[] a = row;
+			final byte[] b = that.row;
+			final int length = Math.min(a.length, b.length);
+			int i;
+			// First compare the metric ID.
+			for (i = 0; i < metric_width; i++) {
+				if (a[i] != b[i]) {
+					return (a[i] & 0xFF) - (b[i] & 0xFF);  // "promote" to unsigned.
+				}
+			}
+			// Then skip the timestamp and compare the rest.
+			for (i += Const.TIMESTAMP_BYTES; i < length; i++) {
+				if (a[i] != b[i]) {
+					return (a[i] & 0xFF) - (b[i] & 0xFF);  // "promote" to unsigned.
+				}
+			}
+			return a.length - b.length;
+		}
+	}
+
+}
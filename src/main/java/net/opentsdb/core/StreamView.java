@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.core;
+
+import java.util.NoSuchElementException;
+
+import com.google.common.math.DoubleMath;
+
+/**
+ * Forward-only view that applies a point-wise operation to the data points of
+ * another view as they are read, used to chain expression functions without
+ * materializing their intermediate results.
+ * <p/>
+ * {@link #seek} never seeks the source: it skips the data points before the
+ * requested time.  The sources of a pipeline are all created for the same
+ * time range, so the only seek they get is the one every
+ * {@link AggregationIterator} does at construction, which must not rewind a
+ * source that was already read from.
+ * <p/>
+ * This view is itself the data point it returns, which is only valid until
+ * the next call to {@link #next}.
+ */
+final class StreamView implements SeekableView, DataPoint {
+
+	/**
+	 * The operation applied to each data point.
+	 */
+	enum Op {
+		/**
+		 * Returns data points unchanged.
+		 */
+		IDENTITY,
+		/**
+		 * Negates values, keeping their type.
+		 */
+		NEGATE,
+		/**
+		 * Inverts values, the results are doubles, and drops the zeros.
+		 */
+		INVERT,
+		/**
+		 * Multiplies values by a factor, the results are doubles.
+		 */
+		SCALE,
+		/**
+		 * Converts values to doubles.
+		 */
+		TO_DOUBLE
+	}
+
+	private final BatchReader source;
+	private final Op op;
+
+	/**
+	 * Factor of {@link Op#SCALE}.
+	 */
+	private final double factor;
+
+	/**
+	 * Set when the next data point was read from the source and transformed.
+	 */
+	private boolean ready;
+
+	/**
+	 * Flagged timestamp and raw value of the next data point, valid if
+	 * {@link #ready}.
+	 */
+	private long next_timestamp;
+	private long next_value;
+
+	/**
+	 * Flagged timestamp and raw value of the current data point.
+	 */
+	private long timestamp;
+	private long value;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source The view to read from.
+	 * @param op     The operation to apply.
+	 * @param factor The factor of {@link Op#SCALE}, ignored otherwise.
+	 */
+	StreamView(final SeekableView source, final Op op, final double factor) {
+		this.source = new BatchReader(source);
+		this.op = op;
+		this.factor = factor;
+	}
+
+	// ------------------ //
+	// Iterator interface //
+	// ------------------ //
+
+	@Override
+	public boolean hasNext() {
+		while (!ready && source.hasNext()) {
+			source.next();
+			ready = transform();
+		}
+		return ready;
+	}
+
+	@Override
+	public DataPoint next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("no more data points in " + this);
+		}
+		timestamp = next_timestamp;
+		value = next_value;
+		ready = false;
+		return this;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Applies {@link #op} to the current data point of the source.
+	 *
+	 * @return {@code false} if the data point is dropped.
+	 */
+	private boolean transform() {
+		final long time = source.timestamp();
+		final boolean is_integer = source.isInteger();
+		switch (op) {
+			case IDENTITY:
+				if (is_integer) {
+					setLong(time, source.longValue());
+				} else {
+					setDouble(time, source.doubleValue());
+				}
+				return true;
+			case NEGATE:
+				if (is_integer) {
+					setLong(time, -1 * source.longValue());
+				} else {
+					setDouble(time, -1 * source.doubleValue());
+				}
+				return true;
+			case INVERT:
+				if (is_integer) {
+					if (source.longValue() == 0) {
+						return false;
+					}
+					setDouble(time, 1.0 / source.longValue());
+				} else {
+					if (DoubleMath.fuzzyCompare(source.doubleValue(), 0, 1E-7) == 0) {
+						return false;
+					}
+					setDouble(time, 1 / source.doubleValue());
+				}
+				return true;
+			case SCALE:
+				if (is_integer) {
+					setDouble(time, factor * source.longValue());
+				} else {
+					setDouble(time, factor * source.doubleValue());
+				}
+				return true;
+			case TO_DOUBLE:
+				setDouble(time, source.toDouble());
+				return true;
+			default:
+				throw new AssertionError("Unknown operation " + op);
+		}
+	}
+
+	private void setLong(final long time, final long v) {
+		next_timestamp = time;
+		next_value = v;
+	}
+
+	private void setDouble(final long time, final double v) {
+		next_timestamp = time | FLAG_FLOAT;
+		next_value = Double.doubleToRawLongBits(v);
+	}
+
+	// ---------------------- //
+	// SeekableView interface //
+	// ---------------------- //
+
+	@Override
+	public void seek(final long timestamp) {
+		while (hasNext() && (next_timestamp & TIME_MASK) < timestamp) {
+			ready = false;
+		}
+	}
+
+	@Override
+	public int nextBatch(final long[] timestamps, final long[] values) {
+		return BatchReader.copyPerPoint(this, timestamps, values);
+	}
+
+	// ------------------- //
+	// DataPoint interface //
+	// ------------------- //
+
+	@Override
+	public long timestamp() {
+		return timestamp & TIME_MASK;
+	}
+
+	@Override
+	public boolean isInteger() {
+		return (timestamp & FLAG_FLOAT) == 0;
+	}
+
+	@Override
+	public long longValue() {
+		if (isInteger()) {
+			return value;
+		}
+		throw new ClassCastException("Not a long in " + this);
+	}
+
+	@Override
+	public double doubleValue() {
+		if (!isInteger()) {
+			return Double.longBitsToDouble(value);
+		}
+		throw new ClassCastException("Not a double in " + this);
+	}
+
+	@Override
+	public double toDouble() {
+		return isInteger() ? value : Double.longBitsToDouble(value);
+	}
+
+	public String toString() {
+		return "StreamView(op=" + op + ", factor=" + factor + ", ready=" + ready
+				+ ", source=" + source + ')';
+	}
+
+}
@@ -131,6 +131,34 @@ public final class TSDB {
 	 */
 	private RTPublisher rt_publisher = null;
 
+	/**
+	 * Off-heap slabs for the data of sealed spans, {@code null} unless
+	 * tsd.queryprocessing.offheap.enable is set.
+	 */
+	private final SlabPool slab_pool;
+
+	/**
+	 * Parsed queries and resolved series, {@code null} if
+	 * tsd.queryprocessing.plan_cache.size is 0.
+	 */
+	private final QueryPlanCache query_plans;
+
+	/**
+	 * Continuous queries fed by the data points written.
+	 */
+	private final ContinuousQueries continuous_queries = new ContinuousQueries(this);
+
+	/**
+	 * Rollups written on compaction and read by downsampled queries,
+	 * {@code null} unless tsd.rollups.enable is set.
+	 */
+	private final Rollups rollups;
+
+	/**
+	 * Pre-aggregations of metrics dropping some of their tags, {@code null}
+	 * unless tsd.preaggregation.rules is set.
+	 */
+	private final PreAggregations pre_aggregations;
 
 	/**
 	 * Constructor
@@ -158,6 +186,23 @@ public final class TSDB {
 		tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH);
 		compactionq = new CompactionQueue(this);
 
+		if (config.offheap_enable()) {
+			slab_pool = new SlabPool(config.offheap_slab_size(),
+					config.offheap_max_slabs());
+		} else {
+			slab_pool = null;
+		}
+		query_plans = config.plan_cache_size() > 0
+				? new QueryPlanCache(config.plan_cache_size())
+				: null;
+		rollups = config.rollups_enable()
+				? new Rollups(this, config.rollups_intervals(), config.rollups_table_prefix(),
+				config.rollups_since())
+				: null;
+		pre_aggregations = config.preaggregation_rules().trim().isEmpty()
+				? null
+				: new PreAggregations(continuous_queries, config);
+
 		if (config.hasProperty("tsd.core.timezone")) {
 			DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
 		}
@@ -450,6 +495,19 @@ public final class TSDB {
 		} finally {
 			collector.clearExtraTag("class");
 		}
+		if (slab_pool != null) {
+			slab_pool.collectStats(collector);
+		}
+		if (query_plans != null) {
+			query_plans.collectStats(collector);
+		}
+		continuous_queries.collectStats(collector);
+		if (rollups != null) {
+			rollups.collectStats(collector);
+		}
+		if (pre_aggregations != null) {
+			pre_aggregations.collectStats(collector);
+		}
 		final ClientStats stats = client.stats();
 		collector.record("hbase.root_lookups", stats.rootLookups());
 		collector.record("hbase.meta_lookups",
@@ -548,6 +606,44 @@ public final class TSDB {
 		return new TsdbQuery(this);
 	}
 
+	/**
+	 * Returns a new arena for the data of one query, to be released once its
+	 * response is serialized.
+	 *
+	 * @return An arena, or {@code null} if off-heap storage is disabled.
+	 */
+	public SlabArena newSlabArena() {
+		return slab_pool == null ? null : slab_pool.newArena();
+	}
+
+	/**
+	 * @return the cache of query plans, or {@code null} if disabled.
+	 */
+	public QueryPlanCache getQueryPlanCache() {
+		return query_plans;
+	}
+
+	/**
+	 * @return the continuous queries registered.
+	 */
+	public ContinuousQueries getContinuousQueries() {
+		return continuous_queries;
+	}
+
+	/**
+	 * @return the rollups, or {@code null} if disabled.
+	 */
+	public Rollups getRollups() {
+		return rollups;
+	}
+
+	/**
+	 * @return the pre-aggregations, or {@code null} if there is no rule.
+	 */
+	public PreAggregations getPreAggregations() {
+		return pre_aggregations;
+	}
+
 	/**
 	 * Returns a new {@link WritableDataPoints} instance suitable for this TSDB.
 	 * <p/>
@@ -718,6 +814,7 @@ public final class TSDB {
 		// TODO(tsuna): Add a callback to time the latency of HBase and store the
 		// timing in a moving Histogram (once we have a class for this).
 		Deferred<Object> result = client.put(point);
+		continuous_queries.onPoint(metric, timestamp, value, tags, flags, row);
 		if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() &&
 				!config.enable_tsuid_tracking() && rt_publisher == null) {
 			return result;
@@ -104,6 +104,12 @@ public final class TSQuery {
 	 */
 	private boolean ms_resolution;
 
+	/**
+	 * For each sub query, the index of the query built for it by
+	 * {@link #buildQueries}.  Identical sub queries share a query.
+	 */
+	private int[] query_indexes;
+
 	/**
 	 * Default constructor necessary for POJO de/serialization
 	 */
@@ -181,9 +187,39 @@ public final class TSQuery {
 	 * @return An array of queries
 	 */
 	public Query[] buildQueries(final TSDB tsdb) {
-		final Query[] queries = new Query[this.queries.size()];
+		return buildQueries(tsdb, null);
+	}
+
+	/**
+	 * Compiles the TSQuery into an array of Query objects for execution, with
+	 * the data of the scanned spans stored in the given arena.
+	 * <p/>
+	 * Identical sub queries are merged into one query, use
+	 * {@link #subQueryResults} to get the results of each sub query.
+	 *
+	 * @param tsdb  The tsdb to use for {@link TSDB#newQuery}
+	 * @param arena Off-heap memory for the scanned data, may be {@code null}.
+	 *              The caller must release it once the results are serialized.
+	 * @return An array of queries
+	 * @see TSDB#newSlabArena
+	 */
+	public Query[] buildQueries(final TSDB tsdb, final SlabArena arena) {
+		// identical sub queries, e.g. the same metric used by several
+		// expressions, are only run once
+		final HashMap<String, Integer> distinct = new HashMap<String, Integer>();
+		final ArrayList<Query> queries = new ArrayList<Query>(this.queries.size());
+		query_indexes = new int[this.queries.size()];
 		int i = 0;
 		for (TSSubQuery sub : this.queries) {
+			final String signature = sub.signature();
+			final Integer index = distinct.get(signature);
+			if (index != null) {
+				query_indexes[i++] = index;
+				continue;
+			}
+			distinct.put(signature, queries.size());
+			query_indexes[i++] = queries.size();
+
 			final Query query = tsdb.newQuery();
 			query.setStartTime(start_time);
 			query.setEndTime(end_time);
@@ -191,8 +227,13 @@ public final class TSQuery {
 				query.downsample(sub.downsampleInterval(), sub.downsampler());
 			} else if (!ms_resolution) {
 				// we *may* have multiple millisecond data points in the set so we have
-				// to downsample. use the sub query's aggregator
-				query.downsample(1000, sub.aggregator());
+				// to downsample. use the sub query's aggregator.  TsdbQuery only does
+				// it if it finds millisecond data points.
+				if (query instanceof TsdbQuery) {
+					((TsdbQuery) query).downsampleMilliseconds(sub.aggregator());
+				} else {
+					query.downsample(1000, sub.aggregator());
+				}
 			}
 			if (sub.getTsuids() != null && !sub.getTsuids().isEmpty()) {
 				if (sub.getRateOptions() != null) {
@@ -201,19 +242,77 @@ public final class TSQuery {
 				} else {
 					query.setTimeSeries(sub.getTsuids(), sub.aggregator(), sub.getRate());
 				}
-			} else if (sub.getRateOptions() != null) {
-				query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(),
-						sub.getRate(), sub.getRateOptions());
 			} else {
-				query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(),
-						sub.getRate());
+				if (sub.getRateOptions() != null) {
+					query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(),
+							sub.getRate(), sub.getRateOptions());
+				} else {
+					query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(),
+							sub.getRate());
+				}
+				// read a pre-aggregation of the metric if one can answer
+				final PreAggregations pre_aggregations = tsdb.getPreAggregations();
+				if (pre_aggregations != null && query instanceof TsdbQuery) {
+					final PreAggregations.Route route =
+							pre_aggregations.route(sub, start_time, end_time);
+					if (route != null && ((TsdbQuery) query).setPreAggregation(
+							route.derived_metric, route.from_ms, route.cutoff_ms)) {
+						pre_aggregations.queryRouted();
+					}
+				}
+			}
+			if (arena != null && query instanceof TsdbQuery) {
+				((TsdbQuery) query).setSlabArena(arena);
 			}
-			queries[i] = query;
-			i++;
+			queries.add(query);
 		}
-		return queries;
+		return queries.toArray(new Query[queries.size()]);
 	}
 
+	/**
+	 * Maps the results of the queries returned by {@link #buildQueries} back to
+	 * the sub queries.  Sub queries that were merged get the same results.
+	 *
+	 * @param query_results The results of the queries, in order.
+	 * @return The results of each sub query, in the order of
+	 * {@link #getQueries}.
+	 * @throws IllegalStateException if the queries weren't built.
+	 */
+	public ArrayList<DataPoints[]> subQueryResults(final List<DataPoints[]> query_results) {
+		if (query_indexes == null) {
+			throw new IllegalStateException("Queries not built yet: " + this);
+		}
+		final ArrayList<DataPoints[]> results =
+				new ArrayList<DataPoints[]>(query_indexes.length);
+		for (final int index : query_indexes) {
+			results.add(query_results.get(index));
+		}
+		return results;
+	}
+
+	/**
+	 * Sets copies of the sub queries and expression trees of another query,
+	 * like the one parsed from the same query string, bound to this query.
+	 * The other query must not have been validated.
+	 *
+	 * @param template The query to copy from.
+	 */
+	public void copyQueriesFrom(final TSQuery template) {
+		if (template.queries != null) {
+			queries = new ArrayList<TSSubQuery>(template.queries.size());
+			for (TSSubQuery sub : template.queries) {
+				queries.add(sub.copy());
+			}
+		}
+		if (template.expressionTrees != null) {
+			expressionTrees = new ArrayList<ExpressionTree>(template.expressionTrees.size());
+			for (ExpressionTree tree : template.expressionTrees) {
+				expressionTrees.add(tree.copy(this));
+			}
+		}
+	}
+
+
 	public String toString() {
 		final StringBuilder buf = new StringBuilder();
 		buf.append("TSQuery(start_time=")
@@ -12,11 +12,13 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 import net.opentsdb.utils.DateTime;
 
@@ -186,6 +188,47 @@ public final class TSSubQuery {
 		}
 	}
 
+	/**
+	 * Returns a copy of the user supplied fields of this sub query, to be
+	 * validated on its own.
+	 */
+	TSSubQuery copy() {
+		final TSSubQuery copy = new TSSubQuery();
+		copy.aggregator = aggregator;
+		copy.metric = metric;
+		copy.tsuids = tsuids == null ? null : new ArrayList<String>(tsuids);
+		copy.tags = tags == null ? null : new HashMap<String, String>(tags);
+		copy.downsample = downsample;
+		copy.rate = rate;
+		copy.rate_options = rate_options;
+		return copy;
+	}
+
+	/**
+	 * Returns a key identifying what this sub query fetches: two sub queries
+	 * with the same signature return the same results.  The tags and TSUIDs
+	 * are sorted and the downsampler is taken in its parsed form, so
+	 * {@code 60s-avg} and {@code 1m-avg} are the same.  Must be called after
+	 * {@link #validateAndSetQuery}.
+	 */
+	String signature() {
+		final StringBuilder buf = new StringBuilder();
+		buf.append(agg)
+				.append(':').append(downsample_interval)
+				.append('-').append(downsampler)
+				.append(':').append(rate)
+				.append(rate_options);
+		if (tsuids != null && !tsuids.isEmpty()) {
+			final ArrayList<String> sorted = new ArrayList<String>(tsuids);
+			Collections.sort(sorted);
+			buf.append(":tsuids=").append(sorted);
+		} else {
+			buf.append(':').append(metric)
+					.append(new TreeMap<String, String>(getTags()));
+		}
+		return buf.toString();
+	}
+
 	/**
 	 * @return the parsed aggregation function
 	 */
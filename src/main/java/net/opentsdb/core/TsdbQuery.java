@@ -16,7 +16,6 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,7 +31,6 @@ import net.opentsdb.tsd.QueryStats;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import org.hbase.async.Bytes;
-import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -64,7 +62,7 @@ final class TsdbQuery implements Query {
 	 * Charset to use with our server-side row-filter.
 	 * We use this one because it preserves every possible byte unchanged.
 	 */
-	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+	static final Charset CHARSET = Charset.forName("ISO-8859-1");
 
 	/**
 	 * The TSDB we belong to.
@@ -91,6 +89,19 @@ final class TsdbQuery implements Query {
 	 */
 	private byte[] metric;
 
+	/**
+	 * ID of the pre-aggregation of the metric to read, {@code null} if none.
+	 *
+	 * @see #setPreAggregation
+	 */
+	private byte[] pre_aggregated_metric;
+
+	/**
+	 * Times between which the pre-aggregation is read, in milliseconds.
+	 */
+	private long pre_aggregated_from_ms;
+	private long pre_aggregated_cutoff_ms;
+
 	/**
 	 * Tags of the metrics being looked up.
 	 * Each tag is a byte array holding the ID of both the name and value
@@ -115,6 +126,12 @@ final class TsdbQuery implements Query {
 	 */
 	private ByteMap<byte[][]> group_by_values;
 
+	/**
+	 * Row key regexp of the tags and 'GROUP BY's, if taken from a cached
+	 * {@link ResolvedSeries}.
+	 */
+	private String key_regexp;
+
 	/**
 	 * If true, use rate of change instead of actual values.
 	 */
@@ -141,11 +158,22 @@ final class TsdbQuery implements Query {
 	 */
 	private long sample_interval_ms;
 
+	/**
+	 * Whether the downsampling was only set to merge millisecond data points
+	 * into seconds, in which case it's skipped if the query finds none.
+	 */
+	private boolean implicit_downsample;
+
 	/**
 	 * Optional list of TSUIDs to fetch and aggregate instead of a metric
 	 */
 	private List<String> tsuids;
 
+	/**
+	 * Off-heap memory to seal the spans in, if any.
+	 */
+	private SlabArena slab_arena;
+
 	/**
 	 * Constructor.
 	 */
@@ -163,13 +191,28 @@ final class TsdbQuery implements Query {
 		if (original.downsampler != null) n.downsampler = original.downsampler;
 		if (original.tsuids != null) n.tsuids = original.tsuids;
 		n.sample_interval_ms = original.sample_interval_ms;
+		n.implicit_downsample = original.implicit_downsample;
 		n.start_time = original.start_time;
 		n.end_time = original.end_time;
 		n.metric = Arrays.copyOf(original.metric, original.metric.length);
+		n.pre_aggregated_metric = original.pre_aggregated_metric;
+		n.pre_aggregated_from_ms = original.pre_aggregated_from_ms;
+		n.pre_aggregated_cutoff_ms = original.pre_aggregated_cutoff_ms;
 		n.rate = original.rate;
+		n.slab_arena = original.slab_arena;
+		n.key_regexp = original.key_regexp;
 		return n;
 	}
 
+	/**
+	 * Sets the arena in which the spans are sealed once scanned.
+	 *
+	 * @param arena Off-heap memory owned by the query, may be {@code null}.
+	 */
+	void setSlabArena(final SlabArena arena) {
+		this.slab_arena = arena;
+	}
+
 	static TsdbQuery spliceOf(TsdbQuery original, long splice_start_time, long splice_end_time) {
 		TsdbQuery nq = copyOf(original);
 		nq.start_time = splice_start_time;
@@ -255,9 +298,30 @@ final class TsdbQuery implements Query {
 	                          final boolean rate,
 	                          final RateOptions rate_options)
 			throws NoSuchUniqueName {
-		findGroupBys(tags);
-		this.metric = tsdb.metrics.getId(metric);
-		this.tags = Tags.resolveAll(tsdb, tags);
+		final QueryPlanCache plans = tsdb.getQueryPlanCache();
+		final String key = plans == null
+				? null
+				: metric + new TreeMap<String, String>(tags);
+		final ResolvedSeries resolved = plans == null
+				? null
+				: plans.getResolvedSeries(key);
+		if (resolved != null) {
+			resolved.applyTo(this);
+			// like findGroupBys(), leave only the plain tags in the map
+			final Iterator<String> i = tags.values().iterator();
+			while (i.hasNext()) {
+				if (isGroupBy(i.next())) {
+					i.remove();
+				}
+			}
+		} else {
+			findGroupBys(tags);
+			this.metric = tsdb.metrics.getId(metric);
+			this.tags = Tags.resolveAll(tsdb, tags);
+			if (plans != null) {
+				plans.putResolvedSeries(key, new ResolvedSeries(this));
+			}
+		}
 		aggregator = function;
 		this.rate = rate;
 		this.rate_options = rate_options;
@@ -318,6 +382,21 @@ final class TsdbQuery implements Query {
 		}
 		this.downsampler = downsampler;
 		this.sample_interval_ms = interval;
+		this.implicit_downsample = false;
+	}
+
+	/**
+	 * Downsamples to one second, only if the query finds millisecond data
+	 * points.  This lets queries at second resolution merge the data points
+	 * that fall in the same second without paying for a downsampler when all
+	 * the data is at second resolution, which is the common case.
+	 *
+	 * @param downsampler An aggregation function to use when rolling up data points
+	 * @throws NullPointerException if the aggregation function is null
+	 */
+	void downsampleMilliseconds(final Aggregator downsampler) {
+		downsample(1000, downsampler);
+		implicit_downsample = true;
 	}
 
 	/**
@@ -342,8 +421,7 @@ final class TsdbQuery implements Query {
 		while (i.hasNext()) {
 			final Map.Entry<String, String> tag = i.next();
 			final String tagvalue = tag.getValue();
-			if (tagvalue.equals("*")  // 'GROUP BY' with any value.
-					|| tagvalue.indexOf('|', 1) >= 0) {  // Multiple possible values.
+			if (isGroupBy(tagvalue)) {
 				if (group_bys == null) {
 					group_bys = new ArrayList<byte[]>();
 				}
@@ -370,6 +448,14 @@ final class TsdbQuery implements Query {
 		}
 	}
 
+	/**
+	 * Tells whether a tag value of a query is a 'GROUP BY'.
+	 */
+	private static boolean isGroupBy(final String tagvalue) {
+		return tagvalue.equals("*")  // 'GROUP BY' with any value.
+				|| tagvalue.indexOf('|', 1) >= 0;  // Multiple possible values.
+	}
+
 	/**
 	 * Executes the query
 	 *
@@ -389,7 +475,8 @@ final class TsdbQuery implements Query {
 	@Override
 	public Deferred<DataPoints[]> runAsync() throws HBaseException {
 		long findSpansStartTime = System.nanoTime();
-		boolean trySplice = tsdb.config.parallel_scan_enable();
+		boolean trySplice = tsdb.config.parallel_scan_enable()
+				&& pre_aggregated_metric == null && rollupCutoffSeconds() < 0;
 		if (trySplice) {
 			return Deferred.fromResult(new TsdbQuerySplicer(tsdb, this).execute());
 		} else {
@@ -407,136 +494,234 @@ final class TsdbQuery implements Query {
 	 * This is what actually scans the HBase table and loads the data into
 	 * {@link Span}s.
 	 *
-	 * @return A map from HBase row key to the {@link Span} for that row key.
-	 * Since a {@link Span} actually contains multiple HBase rows, the row key
-	 * stored in the map has its timestamp zero'ed out.
+	 * @return A table of the {@link Span}s found, one per time series.  When
+	 * grouping, the group key of each span is computed as it's first seen.
 	 * @throws HBaseException           if there was a problem communicating with HBase to
 	 *                                  perform the search.
 	 * @throws IllegalArgumentException if bad data was retrieved from HBase.
+	 * @see SharedScan
 	 */
-	private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
-		final short metric_width = tsdb.metrics.width();
-		final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
-				new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-		final Scanner scanner = getScanner();
-		final Deferred<TreeMap<byte[], Span>> results =
-				new Deferred<TreeMap<byte[], Span>>();
+	private Deferred<SpanTable> findSpans() throws HBaseException {
+		if (pre_aggregated_metric != null) {
+			return new PreAggregatedScan(tsdb, this, pre_aggregated_metric,
+					pre_aggregated_from_ms, pre_aggregated_cutoff_ms).start();
+		}
+		final long cutoff = rollupCutoffSeconds();
+		if (cutoff >= 0) {
+			tsdb.getRollups().queryRouted();
+			return new RollupScan(tsdb, this,
+					tsdb.getRollups().route(getScanStartTimeSeconds(), sample_interval_ms,
+							downsampler),
+					Rollups.downsampler(downsampler), cutoff).start();
+		}
+		return new SharedScan(tsdb, new TsdbQuery[]{this}).start().get(0);
+	}
 
-		/**
-		 * Scanner callback executed recursively each time we get a set of data
-		 * from storage. This is responsible for determining what columns are
-		 * returned and issuing requests to load leaf objects.
-		 * When the scanner returns a null set of rows, the method initiates the
-		 * final callback.
-		 */
-		final class ScannerCB implements Callback<Object,
-				ArrayList<ArrayList<KeyValue>>> {
-
-			int nrows = 0;
-			boolean seenAnnotation = false;
-			int hbase_time = 0; // milliseconds.
-			long starttime = System.nanoTime();
-			long timeout = tsdb.getConfig().getLong("tsd.query.timeout");
-			long scannerTime = 0;
-
-
-			long totalCompactionTime = 0;
-
-			/**
-			 * Starts the scanner and is called recursively to fetch the next set of
-			 * rows from the scanner.
-			 * @return The map of spans if loaded successfully, null if no data was
-			 * found
-			 */
-			public Object scan() {
-				// LOG.info("Starting scan for next set of rows");
-				starttime = System.nanoTime();
-				return scanner.nextRows().addCallback(this);
-			}
+	/**
+	 * Tells whether this query reads {@link Rollups} rather than data points,
+	 * up to the returned time.  That is when rollups are enabled, the query
+	 * is downsampled at an interval and with a downsampler some rollups can
+	 * answer, without rate, and starts once the rollups are complete, see
+	 * {@code tsd.rollups.since}, but before they are up to date.
+	 *
+	 * @return The time, in seconds, aligned on the downsampling interval, from
+	 * which to read data points, or -1 to read only data points.
+	 */
+	long rollupCutoffSeconds() {
+		final Rollups rollups = tsdb.getRollups();
+		if (rollups == null || downsampler == null || implicit_downsample || rate
+				|| pre_aggregated_metric != null
+				|| (tsuids != null && !tsuids.isEmpty()) || end_time == UNSET
+				|| rollups.route(getScanStartTimeSeconds(), sample_interval_ms,
+				downsampler) == null) {
+			return -1;
+		}
+		final long interval = sample_interval_ms / 1000;
+		long cutoff = System.currentTimeMillis() / 1000 - tsdb.getConfig().rollups_lag();
+		cutoff -= cutoff % interval;
+		final long end = getScanEndTimeSeconds();
+		if (cutoff > end) {
+			cutoff = end - end % interval;
+		}
+		return cutoff > getScanStartTimeSeconds() ? cutoff : -1;
+	}
 
-			/**
-			 * Loops through each row of the scanner results and parses out data
-			 * points and optional meta data
-			 * @return null if no rows were found, otherwise the TreeMap with spans
-			 */
-			@Override
-			public Object call(final ArrayList<ArrayList<KeyValue>> rows)
-					throws Exception {
-				hbase_time += (System.nanoTime() - starttime) / 1000000;
-				long scanStartTime = System.nanoTime();
-				try {
-
-					Timer.Context processScan = QueryStats.processScan().time();
-
-					if (rows == null) {
-						hbase_time += (System.nanoTime() - starttime) / 1000000;
-						scanlatency.add(hbase_time);
-						LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
-								spans.size() + " spans in " + hbase_time + "ms. Compaction time= "
-								+ totalCompactionTime / (1000 * 1000));
-						LOG.info("Time spent in scanner alone = {} ms", scannerTime / (1000 * 1000));
-						QueryStats.hbaseScan().update(hbase_time, TimeUnit.MILLISECONDS);
-						QueryStats.queryCompactionTimer().update(totalCompactionTime, TimeUnit.NANOSECONDS);
-						if (nrows < 1 && !seenAnnotation) {
-							results.callback(null);
-						} else {
-							results.callback(spans);
-						}
-//						fos.close();
-						scanner.close();
-						return null;
-					}
+	/**
+	 * Groups and aggregates the spans found by a scan done for this query.
+	 *
+	 * @param spans              The spans of this query, see {@link #findSpans}.
+	 * @param findSpansStartTime When the scan started, from {@link System#nanoTime}.
+	 */
+	Deferred<DataPoints[]> groupAndAggregate(final Deferred<SpanTable> spans,
+	                                         final long findSpansStartTime) {
+		return spans.addCallback(new GroupByAndAggregateCB(findSpansStartTime));
+	}
 
-					if (timeout > 0 && hbase_time > timeout) {
-						throw new InterruptedException("Query timeout exceeded!");
-					}
+	/**
+	 * Tells whether this query can scan its rows along with other queries of
+	 * the same metric and time range.  Queries on TSUIDs or reading rollups
+	 * or pre-aggregations can't.
+	 */
+	boolean canShareScan() {
+		return (tsuids == null || tsuids.isEmpty()) && metric != null
+				&& start_time != UNSET && end_time != UNSET
+				&& pre_aggregated_metric == null && rollupCutoffSeconds() < 0;
+	}
 
-					for (final ArrayList<KeyValue> row : rows) {
-						final byte[] key = row.get(0).key();
-						if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
-							scanner.close();
-							throw new IllegalDataException(
-									"HBase returned a row that doesn't match"
-											+ " our scanner (" + scanner + ")! " + row + " does not start"
-											+ " with " + Arrays.toString(metric));
-						}
-						Span datapoints = spans.get(key);
-						if (datapoints == null) {
-							datapoints = new Span(tsdb);
-							spans.put(key, datapoints);
-						}
+	/**
+	 * Tells whether this query reads the same spans as another query of the
+	 * same metric: the same rows, with the same tags and 'GROUP BY's, over the
+	 * same time range.
+	 */
+	boolean readsSameSpans(final TsdbQuery other) {
+		final String regexp = keyRegexp();
+		return getScanStartTimeSeconds() == other.getScanStartTimeSeconds()
+				&& getScanEndTimeSeconds() == other.getScanEndTimeSeconds()
+				&& (regexp == null
+				? other.keyRegexp() == null
+				: regexp.equals(other.keyRegexp()));
+	}
 
-						int size = datapoints.size();
-						QueryStats.numberOfScannedPointsCounter().inc(size);
+	/**
+	 * @return the downsampling function requested by this query, {@code null}
+	 * if it isn't downsampled or only to merge milliseconds.
+	 */
+	Aggregator explicitDownsampler() {
+		return implicit_downsample ? null : downsampler;
+	}
 
-						long compactionTimeStart = System.nanoTime();
-						final KeyValue compacted = tsdb.compact(row, datapoints.getAnnotations());
-						totalCompactionTime += (System.nanoTime() - compactionTimeStart);
+	/**
+	 * @return the downsampling interval of this query, in milliseconds.
+	 */
+	long sampleInterval() {
+		return sample_interval_ms;
+	}
 
-						seenAnnotation |= !datapoints.getAnnotations().isEmpty();
-						if (compacted != null) { // Can be null if we ignored all KVs.
-							datapoints.addRow(compacted);
-							nrows++;
-						}
-					}
+	/**
+	 * Reads this query from a pre-aggregation of its metric between the given
+	 * times, and from the metric itself around them.  The pre-aggregation
+	 * must have the tags of the metric it keeps, and the aggregator and
+	 * downsampler of this query.
+	 *
+	 * @param derived_metric The metric of the pre-aggregation.
+	 * @param from_ms        Time from which to read the pre-aggregation.
+	 * @param cutoff_ms      Time from which to read the metric again.
+	 * @return Whether the pre-aggregation is read, {@code false} if it wasn't
+	 * written yet.
+	 * @see PreAggregations
+	 */
+	boolean setPreAggregation(final String derived_metric, final long from_ms,
+	                          final long cutoff_ms) {
+		try {
+			pre_aggregated_metric = tsdb.metrics.getId(derived_metric);
+		} catch (NoSuchUniqueName e) {
+			return false;
+		}
+		pre_aggregated_from_ms = from_ms;
+		pre_aggregated_cutoff_ms = cutoff_ms;
+		return true;
+	}
 
-					// LOG.info("Got {} rows so far", nrows);
-					processScan.stop();
+	/**
+	 * @return the ID of the metric of this query, {@code null} until set.
+	 */
+	byte[] metric() {
+		return metric;
+	}
 
-					return scan();
-				} catch (Exception e) {
-					scanner.close();
-					results.callback(e);
-					return null;
-				} finally {
-					scannerTime += (System.nanoTime() - scanStartTime);
+	/**
+	 * @return an empty table for the spans of this query.
+	 */
+	SpanTable newSpanTable() {
+		return new SpanTable(tsdb, group_bys);
+	}
+
+	/**
+	 * Seals the spans of this query once scanned, if configured to.
+	 */
+	void sealSpans(final SpanTable spans) {
+		if (tsdb.getConfig().seal_spans()) {
+			for (final SpanTable.Entry entry : spans.entries()) {
+				entry.span.seal(slab_arena);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a row key has all the tags of this query and a tag for each
+	 * of its 'GROUP BY's, with one of the requested values if any: that is
+	 * whether the row matches the regexp of {@link #keyRegexp}.
+	 *
+	 * @param key A row key of the metric of this query.
+	 */
+	boolean matchesTags(final byte[] key) {
+		final short name_width = tsdb.tag_names.width();
+		final short value_width = tsdb.tag_values.width();
+		final int tag_width = name_width + value_width;
+		final int tags_start = tsdb.metrics.width() + Const.TIMESTAMP_BYTES;
+		for (final byte[] tag : tags) {
+			final int value = findTagValue(key, tags_start, tag_width, tag, name_width);
+			if (value < 0 || !equalsAt(key, value, tag, name_width, value_width)) {
+				return false;
+			}
+		}
+		if (group_bys == null) {
+			return true;
+		}
+		for (final byte[] tag_id : group_bys) {
+			final int value = findTagValue(key, tags_start, tag_width, tag_id, name_width);
+			if (value < 0) {
+				return false;
+			}
+			final byte[][] value_ids = (group_by_values == null
+					? null
+					: group_by_values.get(tag_id));
+			if (value_ids == null) {
+				continue;
+			}
+			boolean found = false;
+			for (final byte[] value_id : value_ids) {
+				if (equalsAt(key, value, value_id, 0, value_width)) {
+					found = true;
+					break;
 				}
 			}
+			if (!found) {
+				return false;
+			}
 		}
+		return true;
+	}
 
-		LOG.info("Starting scanner");
-		new ScannerCB().scan();
-		return results;
+	/**
+	 * Finds a tag in a row key.
+	 *
+	 * @param name A tag name ID, possibly followed by a value ID.
+	 * @return The offset in the row key of the value of the tag, or -1.
+	 */
+	private static int findTagValue(final byte[] key, final int tags_start,
+	                                final int tag_width, final byte[] name,
+	                                final short name_width) {
+		for (int offset = tags_start; offset < key.length; offset += tag_width) {
+			if (equalsAt(key, offset, name, 0, name_width)) {
+				return offset + name_width;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares {@code length} bytes of two arrays, from the given offsets.
+	 */
+	private static boolean equalsAt(final byte[] a, final int a_offset,
+	                                final byte[] b, final int b_offset,
+	                                final int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[a_offset + i] != b[b_offset + i]) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -544,7 +729,7 @@ final class TsdbQuery implements Query {
 	 * {@link TsdbQuery#findSpans} to group and sort the results.
 	 */
 	private class GroupByAndAggregateCB implements
-			Callback<DataPoints[], TreeMap<byte[], Span>> {
+			Callback<DataPoints[], SpanTable> {
 
 		private final long findSpansStartTime;
 
@@ -561,7 +746,7 @@ final class TsdbQuery implements Query {
 		 * any 'GROUP BY' formulated in this query.
 		 */
 		@Override
-		public DataPoints[] call(final TreeMap<byte[], Span> spans) throws Exception {
+		public DataPoints[] call(final SpanTable spans) throws Exception {
 			long findSpansDuration = (System.nanoTime() - findSpansStartTime);
 			LOG.info("Starting GroupByAndAggregateCB. findSpans() took= "
 					+ (findSpansDuration / (1000 * 1000)) + "ms.");
@@ -571,16 +756,30 @@ final class TsdbQuery implements Query {
 				if (spans == null || spans.size() <= 0) {
 					return NO_RESULT;
 				}
+				long interval = sample_interval_ms;
+				Aggregator downsampler = TsdbQuery.this.downsampler;
+				boolean to_double = false;
+				if (implicit_downsample && !spans.hasMilliseconds()
+						&& !(rate && rate_options != null && rate_options.isCounter()
+						&& tsdb.getConfig().adjust_drops())) {
+					// Only seconds, there is nothing to merge.  The values are still
+					// aggregated as doubles, as the downsampler would return them.
+					// Counter rates keep the downsampler, which lifts their resets
+					// when drops are adjusted.
+					interval = 0;
+					downsampler = null;
+					to_double = true;
+				}
 				if (group_bys == null) {
 					// We haven't been asked to find groups, so let's put all the spans
 					// together in the same group.
 					final SpanGroup group = new SpanGroup(tsdb,
 							getScanStartTimeSeconds(),
 							getScanEndTimeSeconds(),
-							spans.values(),
+							spans.sortedSpans(),
 							rate, rate_options,
 							aggregator,
-							sample_interval_ms, downsampler);
+							interval, downsampler, to_double);
 					return new SpanGroup[]{group};
 				}
 
@@ -595,25 +794,16 @@ final class TsdbQuery implements Query {
 				// then the map will have two keys:
 				// - one for the LOL-OMG combination: [0, 0, 1, 0, 0, 4] and,
 				// - one for the LOL-WTF combination: [0, 0, 1, 0, 0, 3].
-				final ByteMap<SpanGroup> groups = new ByteMap<SpanGroup>();
-				final short value_width = tsdb.tag_values.width();
-				final byte[] group = new byte[group_bys.size() * value_width];
-				for (final Map.Entry<byte[], Span> entry : spans.entrySet()) {
-					final byte[] row = entry.getKey();
-					byte[] value_id = null;
-					int i = 0;
-					// TODO(tsuna): The following loop has a quadratic behavior. We can
-					// make it much better since both the row key and group_bys are sorted.
-					for (final byte[] tag_id : group_bys) {
-						value_id = Tags.getValueId(tsdb, row, tag_id);
-						if (value_id == null) {
-							break;
-						}
-						System.arraycopy(value_id, 0, group, i, value_width);
-						i += value_width;
-					}
-					if (value_id == null) {
-						LOG.error("WTF? Dropping span for row " + Arrays.toString(row)
+				// Short keys are packed into longs, see GroupByMap.
+				final GroupByMap groups =
+						new GroupByMap(group_bys.size() * tsdb.tag_values.width());
+				// The group keys were computed by findSpans() when each series was
+				// first seen.  Spans are added in row key order so the aggregation
+				// within each group doesn't depend on the hash order.
+				for (final SpanTable.Entry entry : spans.sortedEntries()) {
+					final byte[] group = entry.group;
+					if (group == null) {
+						LOG.error("WTF? Dropping span for row " + Arrays.toString(entry.row())
 								+ " as it had no matching tag from the requested groups,"
 								+ " which is unexpected. Query=" + this);
 						continue;
@@ -624,20 +814,13 @@ final class TsdbQuery implements Query {
 						thegroup = new SpanGroup(tsdb, getScanStartTimeSeconds(),
 								getScanEndTimeSeconds(),
 								null, rate, rate_options, aggregator,
-								sample_interval_ms, downsampler);
-						// Copy the array because we're going to keep `group' and overwrite
-						// its contents. So we want the collection to have an immutable copy.
-						final byte[] group_copy = new byte[group.length];
-						System.arraycopy(group, 0, group_copy, 0, group.length);
-						groups.put(group_copy, thegroup);
+								interval, downsampler, to_double);
+						thegroup.setGroupBys(group_bys);
+						groups.put(group, thegroup);
 					}
-					thegroup.add(entry.getValue());
+					thegroup.add(entry.span);
 				}
-				//for (final Map.Entry<byte[], SpanGroup> entry : groups) {
-				// LOG.info("group for " + Arrays.toString(entry.getKey()) + ": " + entry.getValue());
-				//}
-
-				return groups.values().toArray(new SpanGroup[groups.size()]);
+				return groups.sortedValues();
 			} finally {
 				long elapsed = groupByTimer.stop();
 				LOG.info("Time taken for groupBy=" + (elapsed / 1000) + "us.");
@@ -648,61 +831,90 @@ final class TsdbQuery implements Query {
 	/**
 	 * Returns a scanner set for the given metric (from {@link #metric} or from
 	 * the first TSUID in the {@link #tsuids}s list. If one or more tags are
-	 * provided, it calls into {@link #createAndSetFilter} to setup a row key
+	 * provided, it calls into {@link #keyRegexp} to setup a row key
 	 * filter. If one or more TSUIDs have been provided, it calls into
 	 * {@link #createAndSetTSUIDFilter} to setup a row key filter.
 	 *
 	 * @return A scanner to use for fetching data points
 	 */
 	protected Scanner getScanner() throws HBaseException {
-		final short metric_width = tsdb.metrics.width();
-		final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
-		final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+		// set the metric UID based on the TSUIDs if given, or the metric UID
+		if (tsuids != null && !tsuids.isEmpty()) {
+			final String tsuid = tsuids.get(0);
+			final String metric_uid = tsuid.substring(0, TSDB.metrics_width() * 2);
+			metric = UniqueId.stringToUid(metric_uid);
+		}
+
 		// We search at least one row before and one row after the start & end
 		// time we've been given as it's quite likely that the exact timestamp
 		// we're looking for is in the middle of a row.  Plus, a number of things
 		// rely on having a few extra data points before & after the exact start
 		// & end dates in order to do proper rate calculation or downsampling near
 		// the "edges" of the graph.
-		Bytes.setInt(start_row, (int) getScanStartTimeSeconds(), metric_width);
-		Bytes.setInt(end_row, (end_time == UNSET
+		final Scanner scanner = newScanner(getScanStartTimeSeconds(),
+				(end_time == UNSET
 						? -1  // Will scan until the end (0xFFF...).
-						: (int) getScanEndTimeSeconds()),
-				metric_width);
-
-		// set the metric UID based on the TSUIDs if given, or the metric UID
+						: getScanEndTimeSeconds()));
 		if (tsuids != null && !tsuids.isEmpty()) {
-			final String tsuid = tsuids.get(0);
-			final String metric_uid = tsuid.substring(0, TSDB.metrics_width() * 2);
-			metric = UniqueId.stringToUid(metric_uid);
-			System.arraycopy(metric, 0, start_row, 0, metric_width);
-			System.arraycopy(metric, 0, end_row, 0, metric_width);
-		} else {
-			System.arraycopy(metric, 0, start_row, 0, metric_width);
-			System.arraycopy(metric, 0, end_row, 0, metric_width);
+			createAndSetTSUIDFilter(scanner);
+		} else if (tags.size() > 0 || group_bys != null) {
+			scanner.setKeyRegexp(keyRegexp(), CHARSET);
 		}
+		return scanner;
+	}
+
+	/**
+	 * Returns a scanner over the rows of the metric of this query between the
+	 * given base times, without any filter.
+	 *
+	 * @param start_seconds Base time of the first row to scan.
+	 * @param end_seconds   Base time at which to stop scanning, excluded.
+	 */
+	Scanner newScanner(final long start_seconds, final long end_seconds) {
+		return newScanner(tsdb.table, start_seconds, end_seconds);
+	}
 
-//		HBaseClient hbClient = new HBaseClient(
-//				tsdb.config.getString("tsd.storage.hbase.zk_quorum"),
-//				tsdb.config.getString("tsd.storage.hbase.zk_basedir"),
-//				new NioClientSocketChannelFactory());
+	/**
+	 * Returns a scanner over the rows of the metric of this query in the given
+	 * table between the given base times, without any filter.
+	 *
+	 * @param table         The data table, or a table with the same row keys.
+	 * @param start_seconds Base time of the first row to scan.
+	 * @param end_seconds   Base time at which to stop scanning, excluded.
+	 */
+	Scanner newScanner(final byte[] table, final long start_seconds,
+	                   final long end_seconds) {
+		return newScanner(table, metric, start_seconds, end_seconds);
+	}
 
-		HBaseClient hbClient = null;
+	/**
+	 * Returns a scanner over the rows of a metric in the given table between
+	 * the given base times, without any filter.
+	 *
+	 * @param table         The data table, or a table with the same row keys.
+	 * @param metric        The ID of the metric.
+	 * @param start_seconds Base time of the first row to scan.
+	 * @param end_seconds   Base time at which to stop scanning, excluded.
+	 */
+	Scanner newScanner(final byte[] table, final byte[] metric,
+	                   final long start_seconds, final long end_seconds) {
+		final short metric_width = tsdb.metrics.width();
+		final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+		final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+		Bytes.setInt(start_row, (int) start_seconds, metric_width);
+		Bytes.setInt(end_row, (int) end_seconds, metric_width);
+		System.arraycopy(metric, 0, start_row, 0, metric_width);
+		System.arraycopy(metric, 0, end_row, 0, metric_width);
 
-		final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+		final Scanner scanner = tsdb.client.newScanner(table);
 		scanner.setMaxNumRows(tsdb.config.getHbaseClient_maxNumRows());
 		LOG.info("Start Row={}, End Row={}, Scan Start Time={}, Scan End Time={}",
 				Arrays.toString(start_row),
 				Arrays.toString(end_row),
-				getScanStartTimeSeconds(),
-				getScanEndTimeSeconds());
+				start_seconds,
+				end_seconds);
 		scanner.setStartKey(start_row);
 		scanner.setStopKey(end_row);
-		if (tsuids != null && !tsuids.isEmpty()) {
-			createAndSetTSUIDFilter(scanner);
-		} else if (tags.size() > 0 || group_bys != null) {
-			createAndSetFilter(scanner);
-		}
 		scanner.setFamily(TSDB.FAMILY);
 		return scanner;
 	}
@@ -710,7 +922,7 @@ final class TsdbQuery implements Query {
 	/**
 	 * Returns the UNIX timestamp from which we must start scanning.
 	 */
-	private long getScanStartTimeSeconds() {
+	long getScanStartTimeSeconds() {
 		// The reason we look before by `MAX_TIMESPAN * 2' seconds is because of
 		// the following.  Let's assume MAX_TIMESPAN = 600 (10 minutes) and the
 		// start_time = ... 12:31:00.  If we initialize the scanner to look
@@ -743,7 +955,7 @@ final class TsdbQuery implements Query {
 	/**
 	 * Returns the UNIX timestamp at which we must stop scanning.
 	 */
-	private long getScanEndTimeSeconds() {
+	long getScanEndTimeSeconds() {
 		// For the end_time, we have a different problem.  For instance if our
 		// end_time = ... 12:30:00, we'll stop scanning when we get to 12:40, but
 		// once again we wanna try to look ahead one more row, so to avoid this
@@ -761,13 +973,19 @@ final class TsdbQuery implements Query {
 	}
 
 	/**
-	 * Sets the server-side regexp filter on the scanner.
+	 * Returns the server-side regexp filter for the scanner.
 	 * In order to find the rows with the relevant tags, we use a
 	 * server-side filter that matches a regular expression on the row key.
 	 *
-	 * @param scanner The scanner on which to add the filter.
+	 * @return The regexp, {@code null} if the query has no tags nor 'GROUP BY'.
 	 */
-	private void createAndSetFilter(final Scanner scanner) {
+	String keyRegexp() {
+		if (key_regexp != null) {
+			return key_regexp;
+		}
+		if (tags.isEmpty() && group_bys == null) {
+			return null;
+		}
 		if (group_bys != null) {
 			Collections.sort(group_bys, Bytes.MEMCMP);
 		}
@@ -825,7 +1043,7 @@ final class TsdbQuery implements Query {
 		} while (tag != group_by);  // Stop when they both become null.
 		// Skip any number of tags before the end.
 		buf.append("(?:.{").append(tagsize).append("})*$");
-		scanner.setKeyRegexp(buf.toString(), CHARSET);
+		return buf.toString();
 	}
 
 	/**
@@ -974,38 +1192,43 @@ final class TsdbQuery implements Query {
 	}
 
 	/**
-	 * Comparator that ignores timestamps in row keys.
+	 * The UIDs resolved for a metric and tags and the row key regexp of the
+	 * scanner, cached by {@link QueryPlanCache} to set up the queries on the
+	 * same series without resolving them again.  Immutable.
 	 */
-	private static final class SpanCmp implements Comparator<byte[]> {
-
-		private final short metric_width;
+	static final class ResolvedSeries {
+		private final byte[] metric;
+		private final ArrayList<byte[]> tags;
+		private final ArrayList<byte[]> group_bys;
+		private final ByteMap<byte[][]> group_by_values;
+		private final String key_regexp;
 
-		public SpanCmp(final short metric_width) {
-			this.metric_width = metric_width;
+		/**
+		 * Takes the series of a query whose time series were just set.
+		 */
+		ResolvedSeries(final TsdbQuery query) {
+			// sorts the group_bys of the query, so do it before copying them
+			key_regexp = query.keyRegexp();
+			metric = query.metric;
+			tags = new ArrayList<byte[]>(query.tags);
+			group_bys = query.group_bys == null
+					? null
+					: new ArrayList<byte[]>(query.group_bys);
+			group_by_values = query.group_by_values;
 		}
 
-		@Override
-		public int compare(final byte[] a, final byte[] b) {
-			final int length = Math.min(a.length, b.length);
-			if (a == b) {  // Do this after accessing a.length and b.length
-				return 0;    // in order to NPE if either a or b is null.
-			}
-			int i;
-			// First compare the metric ID.
-			for (i = 0; i < metric_width; i++) {
-				if (a[i] != b[i]) {
-					return (a[i] & 0xFF) - (b[i] & 0xFF);  // "promote" to unsigned.
-				}
-			}
-			// Then skip the timestamp and compare the rest.
-			for (i += Const.TIMESTAMP_BYTES; i < length; i++) {
-				if (a[i] != b[i]) {
-					return (a[i] & 0xFF) - (b[i] & 0xFF);  // "promote" to unsigned.
-				}
-			}
-			return a.length - b.length;
+		/**
+		 * Sets the series on a query, which gets its own lists.
+		 */
+		void applyTo(final TsdbQuery query) {
+			query.metric = metric;
+			query.tags = new ArrayList<byte[]>(tags);
+			query.group_bys = group_bys == null
+					? null
+					: new ArrayList<byte[]>(group_bys);
+			query.group_by_values = group_by_values;
+			query.key_regexp = key_regexp;
 		}
-
 	}
 
 	/**
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.ContinuousQueries;
+import net.opentsdb.core.ContinuousQuery;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.utils.JSON;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Handles the /api/continuous endpoint, to manage the continuous queries and
+ * read their results.
+ * <ul>
+ * <li>GET lists the queries, or with {@code id} returns the results of a
+ * query between {@code start} and {@code end}, by default over its
+ * retention, formatted like the results of /api/query.</li>
+ * <li>POST registers the query {@code m=agg:interval-downsampler:metric{tags}},
+ * keeping {@code retention} buckets in memory and writing the closed ones to
+ * the metric {@code derived} if set, and returns its ID.</li>
+ * <li>DELETE unregisters the query {@code id}.</li>
+ * </ul>
+ */
+final class ContinuousRpc implements HttpRpc {
+
+	public void execute(final TSDB tsdb, final HttpQuery query)
+			throws IOException {
+		final ContinuousQueries queries = tsdb.getContinuousQueries();
+		final HttpMethod method = query.getAPIMethod();
+		if (method == HttpMethod.GET) {
+			if (query.hasQueryStringParam("id")) {
+				sendResults(query, getQuery(queries, query));
+			} else {
+				final List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+				for (final ContinuousQuery continuous : queries.list()) {
+					list.add(continuous.describe());
+				}
+				query.sendReply(JSON.serializeToBytes(list));
+			}
+		} else if (method == HttpMethod.POST) {
+			final String spec = query.getRequiredQueryStringParam("m");
+			final int retention;
+			try {
+				retention = query.hasQueryStringParam("retention")
+						? Integer.parseInt(query.getQueryStringParam("retention"))
+						: tsdb.getConfig().continuous_retention();
+			} catch (NumberFormatException e) {
+				throw new BadRequestException("Unable to parse 'retention' as a number");
+			}
+			final ContinuousQuery continuous;
+			try {
+				continuous = queries.register(spec, retention,
+						query.getQueryStringParam("derived"));
+			} catch (IllegalArgumentException e) {
+				throw new BadRequestException(e.getMessage());
+			}
+			query.sendReply(JSON.serializeToBytes(continuous.describe()));
+		} else if (method == HttpMethod.DELETE) {
+			final ContinuousQuery continuous = getQuery(queries, query);
+			queries.unregister(continuous.getId());
+			query.sendReply(JSON.serializeToBytes(continuous.describe()));
+		} else {
+			throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED,
+					"Method not allowed", "The HTTP method [" + method.getName() +
+					"] is not permitted for this endpoint");
+		}
+	}
+
+	/**
+	 * @return the query of the {@code id} parameter.
+	 * @throws BadRequestException if there is no such query.
+	 */
+	private static ContinuousQuery getQuery(final ContinuousQueries queries,
+	                                        final HttpQuery query) {
+		final String id = query.getRequiredQueryStringParam("id");
+		final ContinuousQuery continuous = queries.get(id);
+		if (continuous == null) {
+			throw new BadRequestException(HttpResponseStatus.NOT_FOUND,
+					"No continuous query with ID " + id);
+		}
+		return continuous;
+	}
+
+	private static void sendResults(final HttpQuery query,
+	                                final ContinuousQuery continuous) {
+		final TSQuery data_query = new TSQuery();
+		data_query.setStart(query.hasQueryStringParam("start")
+				? query.getQueryStringParam("start")
+				: Long.toString(System.currentTimeMillis()
+				- continuous.getRetention() * continuous.getInterval()));
+		data_query.setEnd(query.getQueryStringParam("end"));
+		data_query.setTimezone(query.getQueryStringParam("tz"));
+		data_query.setMsResolution(query.hasQueryStringParam("ms"));
+		data_query.setNoAnnotations(true);
+		try {
+			data_query.validateTimes();
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestException(e.getMessage());
+		}
+
+		final List<DataPoints[]> results = Collections.singletonList(
+				continuous.getResults(data_query.startTime(), data_query.endTime()));
+		query.sendReply(query.serializer().formatQueryV1(data_query, results, null));
+	}
+
+}
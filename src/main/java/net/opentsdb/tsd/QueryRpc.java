@@ -28,11 +28,15 @@ import com.stumbleupon.async.DeferredGroupException;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryPlanCache;
 import net.opentsdb.core.RateOptions;
+import net.opentsdb.core.SharedScan;
+import net.opentsdb.core.SlabArena;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.core.Tags;
+import net.opentsdb.core.TsdbQuerySplicer;
 import com.codahale.metrics.Timer;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.TSUIDQuery;
@@ -138,88 +142,92 @@ final class QueryRpc implements HttpRpc {
 					e.getMessage(), data_query.toString(), e);
 		}
 
-		Query[] tsdbqueries = data_query.buildQueries(tsdb);
-		final int nqueries = tsdbqueries.length;
-		final ArrayList<DataPoints[]> results =
-				new ArrayList<DataPoints[]>(nqueries);
-		final ArrayList<Deferred<DataPoints[]>> deferreds =
-				new ArrayList<Deferred<DataPoints[]>>(nqueries);
-
-		for (int i = 0; i < nqueries; i++) {
-			deferreds.add(tsdbqueries[i].runAsync());
-		}
-
-		/**
-		 * After all of the queries have run, we get the results in the order given
-		 * and add dump the results in an array
-		 */
-		class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
-			public Object call(final ArrayList<DataPoints[]> query_results)
-					throws Exception {
-				results.addAll(query_results);
-				return null;
-			}
-		}
-
-		// if the user wants global annotations, we need to scan and fetch
-		// TODO(cl) need to async this at some point. It's not super straight
-		// forward as we can't just add it to the "deferreds" queue since the types
-		// are different.
-		List<Annotation> globals = null;
-		Timer.Context annTimer = QueryStats.annotationTimer().time();
+		// off-heap memory for the scanned data, freed once the reply is sent
+		final SlabArena arena = tsdb.newSlabArena();
 		try {
-			if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
-				try {
-					globals = Annotation.getGlobalAnnotations(tsdb,
-							data_query.startTime() / 1000, data_query.endTime() / 1000)
-							.joinUninterruptibly();
-				} catch (Exception e) {
-					throw new RuntimeException("Shouldn't be here", e);
+			Query[] tsdbqueries = data_query.buildQueries(tsdb, arena);
+			final int nqueries = tsdbqueries.length;
+			final ArrayList<DataPoints[]> results =
+					new ArrayList<DataPoints[]>(nqueries);
+			final ArrayList<Deferred<DataPoints[]>> deferreds =
+					new ArrayList<Deferred<DataPoints[]>>(SharedScan.run(tsdb, tsdbqueries));
+
+			/**
+			 * After all of the queries have run, we get the results in the order given
+			 * and add dump the results in an array
+			 */
+			class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
+				public Object call(final ArrayList<DataPoints[]> query_results)
+						throws Exception {
+					results.addAll(data_query.subQueryResults(query_results));
+					return null;
 				}
 			}
-		} finally {
-			annTimer.stop();
-		}
-
-		try {
-			Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
-					.joinUninterruptibly();
-		} catch (Exception e) {
-			throw new RuntimeException("Shouldn't be here", e);
-		}
 
-		Timer.Context expTimer = QueryStats.expressionTimer().time();
-		List<ExpressionTree> exprs = data_query.getExpressionTrees();
-		List<DataPoints[]> exprResults = Lists.newArrayList();
-		try {
-			if (exprs != null && exprs.size() > 0) {
-				for (ExpressionTree tree : exprs) {
+			// if the user wants global annotations, we need to scan and fetch
+			// TODO(cl) need to async this at some point. It's not super straight
+			// forward as we can't just add it to the "deferreds" queue since the types
+			// are different.
+			List<Annotation> globals = null;
+			Timer.Context annTimer = QueryStats.annotationTimer().time();
+			try {
+				if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
 					try {
-						exprResults.add(tree.evaluate(results));
+						globals = Annotation.getGlobalAnnotations(tsdb,
+								data_query.startTime() / 1000, data_query.endTime() / 1000)
+								.joinUninterruptibly();
 					} catch (Exception e) {
-						LOG.error("Error evaluating expression", e);
+						throw new RuntimeException("Shouldn't be here", e);
 					}
 				}
+			} finally {
+				annTimer.stop();
 			}
-		} finally {
-			expTimer.stop();
-		}
 
-		switch (query.apiVersion()) {
-			case 0:
-			case 1:
-				if (data_query.getExpressionTrees() != null && data_query.getExpressionTrees().size() > 0) {
-					query.sendReply(query.serializer().formatQueryV1(data_query, exprResults,
-							globals, data_query.getExpressionTrees()));
-				} else {
-					query.sendReply(query.serializer().formatQueryV1(data_query, results,
-							globals));
+			try {
+				Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
+						.joinUninterruptibly();
+			} catch (Exception e) {
+				throw new RuntimeException("Shouldn't be here", e);
+			}
+
+			Timer.Context expTimer = QueryStats.expressionTimer().time();
+			List<ExpressionTree> exprs = data_query.getExpressionTrees();
+			List<DataPoints[]> exprResults = Lists.newArrayList();
+			try {
+				if (exprs != null && exprs.size() > 0) {
+					// the expressions read the same results: unsealed spans build
+					// their indexes lazily, so only sealed ones are read concurrently
+					final int parallelism = tsdb.getConfig().seal_spans()
+							? tsdb.getConfig().expression_parallelism()
+							: 1;
+					exprResults = ExpressionTree.evaluateAll(exprs, results,
+							TsdbQuerySplicer.POOL, parallelism);
 				}
-				break;
-			default:
-				throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
-						"Requested API version not implemented", "Version " +
-						query.apiVersion() + " is not implemented");
+			} finally {
+				expTimer.stop();
+			}
+
+			switch (query.apiVersion()) {
+				case 0:
+				case 1:
+					if (data_query.getExpressionTrees() != null && data_query.getExpressionTrees().size() > 0) {
+						query.sendReply(query.serializer().formatQueryV1(data_query, exprResults,
+								globals, data_query.getExpressionTrees()));
+					} else {
+						query.sendReply(query.serializer().formatQueryV1(data_query, results,
+								globals));
+					}
+					break;
+				default:
+					throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
+							"Requested API version not implemented", "Version " +
+							query.apiVersion() + " is not implemented");
+			}
+		} finally {
+			if (arena != null) {
+				arena.release();
+			}
 		}
 
 		return data_query;
@@ -422,36 +430,47 @@ final class QueryRpc implements HttpRpc {
 			data_query.setMsResolution(true);
 		}
 
-		// handle tsuid queries first
-		if (query.hasQueryStringParam("tsuid")) {
-			final List<String> tsuids = query.getQueryStringParams("tsuid");
-			for (String q : tsuids) {
-				this.parseTsuidTypeSubQuery(q, data_query);
+		// dashboards send the same query strings over and over with another
+		// time range, so the parsed sub queries and expressions are cached
+		final QueryPlanCache plans = tsdb.getQueryPlanCache();
+		final String plan_key = plans == null ? null : planKey(query);
+		if (plans == null || !plans.getParsedQuery(plan_key, data_query)) {
+			// handle tsuid queries first
+			if (query.hasQueryStringParam("tsuid")) {
+				final List<String> tsuids = query.getQueryStringParams("tsuid");
+				for (String q : tsuids) {
+					this.parseTsuidTypeSubQuery(q, data_query);
+				}
 			}
-		}
 
-		if (query.hasQueryStringParam("x")) {
-			final List<String> exprs = query.getQueryStringParams("x");
-			List<String> metricQueries = new ArrayList<String>();
-			this.syntaxCheck(exprs, data_query, metricQueries);
-			for (String mq : metricQueries) {
-				this.parseMTypeSubQuery(mq, data_query);
+			if (query.hasQueryStringParam("x")) {
+				final List<String> exprs = query.getQueryStringParams("x");
+				List<String> metricQueries = new ArrayList<String>();
+				this.syntaxCheck(exprs, data_query, metricQueries);
+				for (String mq : metricQueries) {
+					this.parseMTypeSubQuery(mq, data_query);
+				}
 			}
-		}
 
-		if (query.hasQueryStringParam("expr")) {
-			final List<String> exprs = query.getQueryStringParams("expr");
-			List<String> metricQueries = new ArrayList<String>();
-			this.prepareExpressions(exprs, data_query, metricQueries);
-			for (String mq : metricQueries) {
-				this.parseMTypeSubQuery(mq, data_query);
+			if (query.hasQueryStringParam("expr")) {
+				final List<String> exprs = query.getQueryStringParams("expr");
+				List<String> metricQueries = new ArrayList<String>();
+				this.prepareExpressions(exprs, data_query, metricQueries);
+				for (String mq : metricQueries) {
+					this.parseMTypeSubQuery(mq, data_query);
+				}
+			}
+
+			if (query.hasQueryStringParam("m")) {
+				final List<String> legacy_queries = query.getQueryStringParams("m");
+				for (String q : legacy_queries) {
+					this.parseMTypeSubQuery(q, data_query);
+				}
 			}
-		}
 
-		if (query.hasQueryStringParam("m")) {
-			final List<String> legacy_queries = query.getQueryStringParams("m");
-			for (String q : legacy_queries) {
-				this.parseMTypeSubQuery(q, data_query);
+			if (plans != null && data_query.getQueries() != null
+					&& data_query.getQueries().size() > 0) {
+				plans.putParsedQuery(plan_key, data_query);
 			}
 		}
 
@@ -462,6 +481,23 @@ final class QueryRpc implements HttpRpc {
 		return data_query;
 	}
 
+	/**
+	 * Returns the parameters of a query string which {@link #parseQuery} turns
+	 * into sub queries and expressions, i.e. without the time range and the
+	 * options.
+	 */
+	private static String planKey(final HttpQuery query) {
+		final StringBuilder buf = new StringBuilder();
+		for (final String name : new String[]{"tsuid", "x", "expr", "m"}) {
+			if (query.hasQueryStringParam(name)) {
+				for (final String value : query.getQueryStringParams(name)) {
+					buf.append(name).append('=').append(value).append('&');
+				}
+			}
+		}
+		return buf.toString();
+	}
+
 	/**
 	 * This code is copied at GraphHandler.java
 	 * If you make changes here, replicate them at GraphHandler.
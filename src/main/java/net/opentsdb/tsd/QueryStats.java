@@ -100,6 +100,14 @@ public class QueryStats {
 		return QUERY_METRICS_REGISTRY.timer("expressionTimer");
 	}
 
+	/**
+	 * Time spent evaluating each expression of a query, while
+	 * {@link #expressionTimer} covers all the expressions of the query.
+	 */
+	public static Timer singleExpressionTimer() {
+		return QUERY_METRICS_REGISTRY.timer("singleExpressionTimer");
+	}
+
 	public static Timer annotationTimer() {
 		return QUERY_METRICS_REGISTRY.timer("annotationTimer");
 	}
@@ -221,5 +229,13 @@ public class QueryStats {
 		collector.record("query.expressionTimer.95thpercentile", expressionTimer().getSnapshot().get98thPercentile());
 		collector.record("query.expressionTimer.98thpercentile", expressionTimer().getSnapshot().get98thPercentile());
 		collector.record("query.expressionTimer.99thpercentile", expressionTimer().getSnapshot().get99thPercentile());
+
+		collector.record("query.singleExpressionTimer.max", singleExpressionTimer().getSnapshot().getMax());
+		collector.record("query.singleExpressionTimer.min", singleExpressionTimer().getSnapshot().getMin());
+		collector.record("query.singleExpressionTimer.mean", singleExpressionTimer().getSnapshot().getMean());
+		collector.record("query.singleExpressionTimer.75thpercentile", singleExpressionTimer().getSnapshot().get75thPercentile());
+		collector.record("query.singleExpressionTimer.95thpercentile", singleExpressionTimer().getSnapshot().get95thPercentile());
+		collector.record("query.singleExpressionTimer.98thpercentile", singleExpressionTimer().getSnapshot().get98thPercentile());
+		collector.record("query.singleExpressionTimer.99thpercentile", singleExpressionTimer().getSnapshot().get99thPercentile());
 	}
 }
@@ -315,6 +315,7 @@ public final class RpcManager {
 				http.put("api/annotations", annotation_rpc);
 			}
 			http.put("api/search", new SearchRpc());
+			http.put("api/continuous", new ContinuousRpc());
 			http.put("api/config", new ShowConfig());
 
 			if (tsdb.getConfig().getString("tsd.no_diediedie").equals("false")) {
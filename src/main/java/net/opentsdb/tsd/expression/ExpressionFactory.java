@@ -6,11 +6,9 @@ import java.util.Map;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Maps;
-import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Functions;
-import net.opentsdb.core.MutableDataPoint;
-import net.opentsdb.core.PostAggregatedDataPoints;
+import net.opentsdb.core.SeriesStream;
 import net.opentsdb.core.TSQuery;
 import org.apache.log4j.Logger;
 
@@ -62,14 +60,21 @@ public class ExpressionFactory {
 		}
 	}
 
-	static class AliasFunction implements Expression {
+	static class AliasFunction implements StreamingExpression {
 
 		static Joiner COMMA_JOINER = Joiner.on(',').skipNulls();
 
 		@Override
 		public DataPoints[] evaluate(TSQuery data_query, List<DataPoints[]> queryResults,
 		                             List<String> queryParams) {
-			if (queryResults == null || queryResults.size() == 0) {
+			return SeriesStream.materialize(stream(data_query,
+					SeriesStream.of(queryResults), queryParams));
+		}
+
+		@Override
+		public SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs,
+		                             List<String> queryParams) {
+			if (inputs == null || inputs.size() == 0) {
 				throw new NullPointerException("No query results");
 			}
 
@@ -79,40 +84,19 @@ public class ExpressionFactory {
 				aliasTemplate = COMMA_JOINER.join(queryParams);
 			}
 
-			DataPoints[] inputPoints = queryResults.get(0);
-
-			DataPoint[][] dps = new DataPoint[inputPoints.length][];
+			SeriesStream[] inputStreams = inputs.get(0);
 
-			for (int j = 0; j < dps.length; j++) {
-				DataPoints base = inputPoints[j];
-				dps[j] = new DataPoint[base.size()];
-				int i = 0;
+			logger.info(", queryResults.size=" + inputs.size()
+					+ ", queryResults(0).length=" + inputStreams.length);
 
-				for (DataPoint pt : base) {
-					if (pt.isInteger()) {
-						dps[j][i] = MutableDataPoint.ofDoubleValue(pt.timestamp(), pt.longValue());
-					} else {
-						dps[j][i] = MutableDataPoint.ofDoubleValue(pt.timestamp(), pt.doubleValue());
-					}
-					i++;
-				}
-			}
-
-			logger.info(", queryResults.size=" + queryResults.size()
-					+ ", queryResults(0).length=" + inputPoints.length);
-
-			DataPoints[] resultArray = new DataPoints[queryResults.get(0).length];
+			SeriesStream[] resultArray = new SeriesStream[inputStreams.length];
 			for (int i = 0; i < resultArray.length; i++) {
-				PostAggregatedDataPoints result = new PostAggregatedDataPoints(inputPoints[i],
-						dps[i]);
-
 				String alias = aliasTemplate;
-				for (Map.Entry<String, String> e : inputPoints[i].getTags().entrySet()) {
+				for (Map.Entry<String, String> e : inputStreams[i].getTags().entrySet()) {
 					alias = alias.replace("@" + e.getKey(), e.getValue());
 				}
 
-				result.setAlias(alias);
-				resultArray[i] = result;
+				resultArray[i] = inputStreams[i].withAlias(alias);
 			}
 
 			return resultArray;
@@ -4,15 +4,24 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.codahale.metrics.Timer;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeriesStream;
 import net.opentsdb.core.TSQuery;
+import net.opentsdb.tsd.QueryStats;
+import org.apache.log4j.Logger;
 
 public class ExpressionTree {
 
+	private static final Logger logger = Logger.getLogger(ExpressionTree.class);
+
 	private final Expression expr;
 	private final TSQuery data_query;
 
@@ -61,14 +70,91 @@ public class ExpressionTree {
 		funcParams.add(param);
 	}
 
+	/**
+	 * Returns a copy of this tree evaluated for another query, which has the
+	 * same sub queries.
+	 */
+	public ExpressionTree copy(TSQuery data_query) {
+		ExpressionTree copy = new ExpressionTree(expr, data_query);
+		if (subExpressions != null) {
+			copy.subExpressions = Lists.newArrayListWithCapacity(subExpressions.size());
+			for (ExpressionTree sub : subExpressions) {
+				copy.subExpressions.add(sub.copy(data_query));
+			}
+		}
+		copy.funcParams = funcParams;
+		copy.subMetricQueries = subMetricQueries;
+		copy.parameterSourceIndex = parameterSourceIndex;
+		return copy;
+	}
+
 	public DataPoints[] evaluate(List<DataPoints[]> queryResults) {
-		List<DataPoints[]> materialized = Lists.newArrayList();
+		return SeriesStream.materialize(compile(queryResults, ParallelEvaluation.SERIAL));
+	}
+
+	/**
+	 * Evaluates several expressions of a query concurrently, along with their
+	 * sibling sub-expressions, recording the time spent on each expression.
+	 *
+	 * @param trees        The expressions to evaluate.
+	 * @param queryResults The results of the metric queries of the expressions.
+	 * @param executor     The executor to evaluate the expressions on.
+	 * @param parallelism  The maximum number of threads to use, including the
+	 *                     calling one: 1 unless the results are sealed, as
+	 *                     the lazy indexes of unsealed spans aren't
+	 *                     thread-safe.
+	 * @return The results of the expressions, in the same order, without the
+	 * expressions which failed.
+	 */
+	public static List<DataPoints[]> evaluateAll(List<ExpressionTree> trees,
+	                                             final List<DataPoints[]> queryResults,
+	                                             ExecutorService executor,
+	                                             int parallelism) {
+		final ParallelEvaluation evaluation = new ParallelEvaluation(executor, parallelism);
+		List<Callable<DataPoints[]>> tasks = Lists.newArrayListWithCapacity(trees.size());
+		for (final ExpressionTree tree : trees) {
+			tasks.add(new Callable<DataPoints[]>() {
+				@Override
+				public DataPoints[] call() {
+					Timer.Context timer = QueryStats.singleExpressionTimer().time();
+					try {
+						return SeriesStream.materialize(tree.compile(queryResults, evaluation));
+					} catch (Exception e) {
+						logger.error("Error evaluating expression " + tree, e);
+						return null;
+					} finally {
+						logger.debug("Evaluated expression " + tree + " in "
+								+ TimeUnit.NANOSECONDS.toMillis(timer.stop()) + " ms");
+					}
+				}
+			});
+		}
+
+		List<DataPoints[]> results = Lists.newArrayListWithCapacity(trees.size());
+		for (DataPoints[] result : evaluation.invokeAll(tasks)) {
+			if (result != null) {
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Builds the streams of the result of this tree.  Sub-expressions that are
+	 * {@link StreamingExpression}s are chained with their parent, the others
+	 * are evaluated and their results materialized.  Sibling sub-expressions
+	 * are compiled, and the inputs of a function materialized, through the
+	 * given evaluation.
+	 */
+	private SeriesStream[] compile(final List<DataPoints[]> queryResults,
+	                               final ParallelEvaluation evaluation) {
 		List<Integer> metricQueryKeys = null;
 		if (subMetricQueries != null && subMetricQueries.size() > 0) {
 			metricQueryKeys = Lists.newArrayList(subMetricQueries.keySet());
 			Collections.sort(metricQueryKeys);
 		}
 
+		List<Callable<SeriesStream[]>> children = Lists.newArrayList();
 		int metricPointer = 0;
 		int subExprPointer = 0;
 		for (int i = 0; i < parameterSourceIndex.size(); i++) {
@@ -80,17 +166,43 @@ public class ExpressionTree {
 							"results when none exist");
 				}
 
-				int ix = metricQueryKeys.get(metricPointer++);
-				materialized.add(queryResults.get(ix));
+				final int ix = metricQueryKeys.get(metricPointer++);
+				children.add(new Callable<SeriesStream[]>() {
+					@Override
+					public SeriesStream[] call() {
+						return SeriesStream.of(queryResults.get(ix));
+					}
+				});
 			} else if (p == Parameter.SUB_EXPRESSION) {
-				ExpressionTree st = subExpressions.get(subExprPointer++);
-				materialized.add(st.evaluate(queryResults));
+				final ExpressionTree st = subExpressions.get(subExprPointer++);
+				children.add(new Callable<SeriesStream[]>() {
+					@Override
+					public SeriesStream[] call() {
+						return st.compile(queryResults, evaluation);
+					}
+				});
 			} else {
 				throw new RuntimeException("Unknown value: " + p);
 			}
 		}
+		List<SeriesStream[]> inputs = evaluation.invokeAll(children);
+
+		if (expr instanceof StreamingExpression) {
+			return ((StreamingExpression) expr).stream(data_query, inputs, funcParams);
+		}
 
-		return expr.evaluate(data_query, materialized, funcParams);
+		List<Callable<DataPoints[]>> materializations =
+				Lists.newArrayListWithCapacity(inputs.size());
+		for (final SeriesStream[] streams : inputs) {
+			materializations.add(new Callable<DataPoints[]>() {
+				@Override
+				public DataPoints[] call() {
+					return SeriesStream.materialize(streams);
+				}
+			});
+		}
+		List<DataPoints[]> materialized = evaluation.invokeAll(materializations);
+		return SeriesStream.of(expr.evaluate(data_query, materialized, funcParams));
 	}
 
 	public String toString() {
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.tsd.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the independent tasks of the expressions of a query, like sibling
+ * sub-expressions, on an executor, using at most a given number of threads
+ * for the whole query.
+ * <p/>
+ * The calling thread always runs tasks too, and takes back the workers
+ * which have not started when it runs out of tasks, so a nested call never
+ * waits for a worker queued behind busy threads of the executor.
+ */
+final class ParallelEvaluation {
+
+	/**
+	 * Evaluation running every task in the calling thread.
+	 */
+	static final ParallelEvaluation SERIAL = new ParallelEvaluation(null, 1);
+
+	private final ExecutorService executor;
+
+	/**
+	 * Number of threads the query may still use besides the calling ones.
+	 */
+	private final AtomicInteger permits;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor    The executor to run tasks on.
+	 * @param parallelism The maximum number of threads evaluating the
+	 *                    expressions of the query, including the calling one.
+	 */
+	ParallelEvaluation(final ExecutorService executor, final int parallelism) {
+		this.executor = executor;
+		this.permits = new AtomicInteger(Math.max(parallelism - 1, 0));
+	}
+
+	/**
+	 * Runs the given tasks and returns their results, in the same order.
+	 *
+	 * @throws RuntimeException the exception of the first task that failed,
+	 *                          wrapped if checked, once all the tasks are done.
+	 */
+	<T> List<T> invokeAll(final List<? extends Callable<T>> tasks) {
+		final Batch<T> batch = new Batch<T>(tasks);
+		final ArrayList<Worker> workers = new ArrayList<Worker>();
+		while (workers.size() < tasks.size() - 1 && acquire()) {
+			final Worker worker = new Worker(batch);
+			try {
+				worker.future = executor.submit(worker);
+			} catch (RejectedExecutionException e) {
+				permits.incrementAndGet();
+				break;
+			}
+			workers.add(worker);
+		}
+
+		batch.run();
+
+		for (final Worker worker : workers) {
+			if (worker.claimed.compareAndSet(false, true)) {
+				// never started, its tasks were run by the other threads
+				permits.incrementAndGet();
+				continue;
+			}
+			try {
+				worker.future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while evaluating expressions", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Unexpected failure of a worker", e.getCause());
+			}
+		}
+		return batch.results();
+	}
+
+	private boolean acquire() {
+		if (executor == null) {
+			return false;
+		}
+		int available;
+		do {
+			available = permits.get();
+			if (available <= 0) {
+				return false;
+			}
+		} while (!permits.compareAndSet(available, available - 1));
+		return true;
+	}
+
+	/**
+	 * Tasks shared by the threads of an {@link #invokeAll} call.
+	 */
+	private static final class Batch<T> {
+		private final List<? extends Callable<T>> tasks;
+		private final Object[] results;
+		private final Throwable[] errors;
+		private final AtomicInteger next = new AtomicInteger();
+
+		Batch(final List<? extends Callable<T>> tasks) {
+			this.tasks = tasks;
+			this.results = new Object[tasks.size()];
+			this.errors = new Throwable[tasks.size()];
+		}
+
+		/**
+		 * Runs tasks until none is left to start.
+		 */
+		void run() {
+			int i;
+			while ((i = next.getAndIncrement()) < tasks.size()) {
+				try {
+					results[i] = tasks.get(i).call();
+				} catch (Throwable t) {
+					errors[i] = t;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		List<T> results() {
+			for (final Throwable t : errors) {
+				if (t instanceof RuntimeException) {
+					throw (RuntimeException) t;
+				} else if (t instanceof Error) {
+					throw (Error) t;
+				} else if (t != null) {
+					throw new RuntimeException(t);
+				}
+			}
+			return (List<T>) Arrays.asList(results);
+		}
+	}
+
+	/**
+	 * Helps the calling thread with the tasks of a batch, unless claimed by
+	 * the calling thread before starting.
+	 */
+	private final class Worker implements Runnable {
+		private final Batch<?> batch;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private Future<?> future;
+
+		Worker(final Batch<?> batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			if (!claimed.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				batch.run();
+			} finally {
+				permits.incrementAndGet();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 Turn Inc. All Rights Reserved.
+ * Proprietary and confidential.
+ */
+package net.opentsdb.tsd.expression;
+
+import java.util.List;
+
+import net.opentsdb.core.SeriesStream;
+import net.opentsdb.core.TSQuery;
+
+/**
+ * Expression that can run on series which are computed on demand, so that
+ * {@link ExpressionTree} can chain it with its sub-expressions without
+ * materializing their results.
+ * <p/>
+ * Only functions that work point by point or on aligned timestamps should
+ * implement this; functions needing a window of data points, like a moving
+ * average, get materialized inputs through {@link Expression#evaluate}.
+ */
+public interface StreamingExpression extends Expression {
+
+	/**
+	 * Builds the streams of the result from the streams of the inputs, without
+	 * reading any data point.
+	 *
+	 * @param data_query The query the expression belongs to.
+	 * @param inputs     One array of streams per parameter of the expression.
+	 * @param params     The constant parameters of the expression, or
+	 *                   {@code null}.
+	 */
+	SeriesStream[] stream(TSQuery data_query, List<SeriesStream[]> inputs,
+	                      List<String> params);
+
+}
@@ -149,6 +149,86 @@ public class Config {
 	 */
 	private boolean adjust_drops = false;
 
+	/**
+	 * tsd.queryprocessing.seal_spans
+	 */
+	private boolean seal_spans = true;
+
+	/**
+	 * tsd.queryprocessing.offheap.enable
+	 */
+	private boolean offheap_enable = false;
+
+	/**
+	 * tsd.queryprocessing.offheap.slab_size
+	 */
+	private int offheap_slab_size = 4 * 1024 * 1024;
+
+	/**
+	 * tsd.queryprocessing.offheap.max_slabs
+	 */
+	private int offheap_max_slabs = 128;
+
+	/**
+	 * tsd.queryprocessing.shared_scan.enable
+	 */
+	private boolean shared_scan_enable = true;
+
+	/**
+	 * tsd.queryprocessing.expression.parallelism
+	 */
+	private int expression_parallelism = 4;
+
+	/**
+	 * tsd.queryprocessing.plan_cache.size
+	 */
+	private int plan_cache_size = 1000;
+
+	/**
+	 * tsd.queryprocessing.continuous.retention
+	 */
+	private int continuous_retention = 60;
+
+	/**
+	 * tsd.rollups.enable
+	 */
+	private boolean rollups_enable = false;
+
+	/**
+	 * tsd.rollups.intervals
+	 */
+	private String rollups_intervals = "1h,1d";
+
+	/**
+	 * tsd.rollups.table_prefix
+	 */
+	private String rollups_table_prefix = "tsdb-rollup-";
+
+	/**
+	 * tsd.rollups.lag
+	 */
+	private long rollups_lag = 7200;
+
+	/**
+	 * tsd.rollups.since
+	 */
+	private String rollups_since = "";
+
+	/**
+	 * tsd.preaggregation.rules
+	 */
+	private String preaggregation_rules = "";
+
+	/**
+	 * tsd.preaggregation.since
+	 */
+	private String preaggregation_since = "";
+
+	/**
+	 * tsd.preaggregation.writer
+	 */
+	private String preaggregation_writer = "";
+
 	/**
 	 * The list of properties configured to their defaults or modified by users
 	 */
@@ -567,6 +647,22 @@ public class Config {
 		default_map.put("tsd.stats.canonical", "false");
 		default_map.put("tsd.storage.hbaseclient.maxNumRows", "768");
 		default_map.put("tsd.queryprocessing.adjust_drops", "true");
+		default_map.put("tsd.queryprocessing.seal_spans", "true");
+		default_map.put("tsd.queryprocessing.offheap.enable", "false");
+		default_map.put("tsd.queryprocessing.offheap.slab_size", "4194304");
+		default_map.put("tsd.queryprocessing.offheap.max_slabs", "128");
+		default_map.put("tsd.queryprocessing.shared_scan.enable", "true");
+		default_map.put("tsd.queryprocessing.expression.parallelism", "4");
+		default_map.put("tsd.queryprocessing.plan_cache.size", "1000");
+		default_map.put("tsd.queryprocessing.continuous.retention", "60");
+		default_map.put("tsd.rollups.enable", "false");
+		default_map.put("tsd.rollups.intervals", "1h,1d");
+		default_map.put("tsd.rollups.table_prefix", "tsdb-rollup-");
+		default_map.put("tsd.rollups.lag", "7200");
+		default_map.put("tsd.rollups.since", "");
+		default_map.put("tsd.preaggregation.rules", "");
+		default_map.put("tsd.preaggregation.since", "");
+		default_map.put("tsd.preaggregation.writer", "");
 		default_map.put("tsd.queryprocessing.parallel_scan.enable", "false");
 		default_map.put("tsd.queryprocessing.parallel_scan.threshold",
 				String.valueOf(TimeUnit.SECONDS.convert(365, TimeUnit.DAYS)));
@@ -706,6 +802,22 @@ public class Config {
 		hbaseclient_maxNumRows = this.getInt("tsd.storage.hbaseclient.maxNumRows");
 
 		adjust_drops = this.getBoolean("tsd.queryprocessing.adjust_drops");
+		seal_spans = this.getBoolean("tsd.queryprocessing.seal_spans");
+		offheap_enable = this.getBoolean("tsd.queryprocessing.offheap.enable");
+		offheap_slab_size = this.getInt("tsd.queryprocessing.offheap.slab_size");
+		offheap_max_slabs = this.getInt("tsd.queryprocessing.offheap.max_slabs");
+		shared_scan_enable = this.getBoolean("tsd.queryprocessing.shared_scan.enable");
+		expression_parallelism = this.getInt("tsd.queryprocessing.expression.parallelism");
+		plan_cache_size = this.getInt("tsd.queryprocessing.plan_cache.size");
+		continuous_retention = this.getInt("tsd.queryprocessing.continuous.retention");
+		rollups_enable = this.getBoolean("tsd.rollups.enable");
+		rollups_intervals = this.getString("tsd.rollups.intervals");
+		rollups_table_prefix = this.getString("tsd.rollups.table_prefix");
+		rollups_lag = this.getLong("tsd.rollups.lag");
+		rollups_since = this.getString("tsd.rollups.since");
+		preaggregation_rules = this.getString("tsd.preaggregation.rules");
+		preaggregation_since = this.getString("tsd.preaggregation.since");
+		preaggregation_writer = this.getString("tsd.preaggregation.writer");
 
 		parallel_scan_enable = this.getBoolean("tsd.queryprocessing.parallel_scan.enable");
 		parallel_scan_threshold_in_seconds = this.getLong("tsd.queryprocessing.parallel_scan.threshold");
@@ -747,4 +859,82 @@ public class Config {
 		return adjust_drops;
 	}
 
+	public boolean seal_spans() {
+		return seal_spans;
+	}
+
+	public boolean offheap_enable() {
+		return offheap_enable;
+	}
+
+	public int offheap_slab_size() {
+		return offheap_slab_size;
+	}
+
+	public int offheap_max_slabs() {
+		return offheap_max_slabs;
+	}
+
+	public boolean shared_scan_enable() {
+		return shared_scan_enable;
+	}
+
+	public int expression_parallelism() {
+		return expression_parallelism;
+	}
+
+	public int plan_cache_size() {
+		return plan_cache_size;
+	}
+
+	public int continuous_retention() {
+		return continuous_retention;
+	}
+
+	public boolean rollups_enable() {
+		return rollups_enable;
+	}
+
+	public String rollups_intervals() {
+		return rollups_intervals;
+	}
+
+	public String rollups_table_prefix() {
+		return rollups_table_prefix;
+	}
+
+	/**
+	 * @return the time, in seconds, after which data points are rolled up.
+	 */
+	public long rollups_lag() {
+		return rollups_lag;
+	}
+
+	/**
+	 * @return the time since which the rollups are complete, empty for the
+	 * time the TSD starts.
+	 */
+	public String rollups_since() {
+		return rollups_since;
+	}
+
+	/**
+	 * @return the pre-aggregation rules, separated by semicolons.
+	 */
+	public String preaggregation_rules() {
+		return preaggregation_rules;
+	}
+
+	public String preaggregation_since() {
+		return preaggregation_since;
+	}
+
+	/**
+	 * @return the name this TSD writes its pre-aggregates under, empty for
+	 * the host name and port.
+	 */
+	public String preaggregation_writer() {
+		return preaggregation_writer;
+	}
+
 }